@@ -0,0 +1,103 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Holds the state of every address in the ledger: its balance, its signature count, and its order, which decides where the
+ * address appears in the ledger (and so in the ledger hash). Listed addresses appear in increasing order. An address with an
+ * order of -1 still has a balance and signature count, but isn't listed.
+ *
+ * A store may keep its contents between runs. save() records which ledger log record the contents match, and the store
+ * reports that record on the next start as long as it wasn't changed since.
+ */
+public interface AccountStore extends Closeable
+{
+	/**
+	 * @param address The address to look for
+	 * @return boolean Whether the address has an entry
+	 */
+	public boolean contains(String address);
+
+	/**
+	 * @param address The address to look up
+	 * @return long The balance of the address, or 0 if it has no entry
+	 */
+	public long getBalance(String address);
+
+	/**
+	 * @param address The address to look up
+	 * @return int The signature count of the address, or -1 if it has no entry
+	 */
+	public int getSignatureCount(String address);
+
+	/**
+	 * @param address The address to look up
+	 * @return long The order of the address, or -1 if it has no entry or isn't listed
+	 */
+	public long getOrder(String address);
+
+	/**
+	 * Creates or replaces the entry of an address.
+	 *
+	 * @param address The address
+	 * @param balance The address's balance
+	 * @param signatureCount The address's signature count
+	 * @param order The address's order, or -1 if it isn't listed
+	 */
+	public void put(String address, long balance, int signatureCount, long order);
+
+	/**
+	 * @param address The address whose entry to remove
+	 */
+	public void remove(String address);
+
+	/**
+	 * @return int The number of addresses with an entry, listed or not
+	 */
+	public int size();
+
+	/**
+	 * @return ArrayList<String> Every listed address, in order
+	 */
+	public ArrayList<String> getListedAddresses();
+
+	/**
+	 * Removes the entry of every address which isn't listed.
+	 *
+	 * @return long One more than the highest order of any listed address, or 0 if there are none
+	 */
+	public long removeUnlisted();
+
+	/**
+	 * Removes every entry.
+	 */
+	public void clear() throws IOException;
+
+	/**
+	 * Marks the current contents as matching the ledger as of a ledger log record, and makes sure they are kept.
+	 *
+	 * @param lastBlockNum The ledger's last block number
+	 * @param logSequence The number of the last ledger log record the contents include
+	 */
+	public void save(int lastBlockNum, long logSequence) throws IOException;
+
+	/**
+	 * @return long The ledger log record the contents were saved at, or -1 if they weren't kept or were changed since
+	 */
+	public long getSavedSequence();
+
+	/**
+	 * @return int The ledger's last block number when the contents were saved
+	 */
+	public int getSavedLastBlockNum();
+}
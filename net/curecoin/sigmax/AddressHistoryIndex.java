@@ -0,0 +1,194 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Indexes the transactions of the longest chain by address: for every address, the block height and position of each
+ * transaction it is the source or an output of, in chain order. Looking up an address's history costs as much as the history
+ * itself.
+ */
+public class AddressHistoryIndex extends ChainIndex<AddressHistoryIndex.BlockEntries>
+{
+	// The transaction positions of each address, in chain order
+	private HashMap<String, Positions> positions = new HashMap<String, Positions>();
+
+	/**
+	 * The index entries of one block: one per address per transaction, in transaction order.
+	 */
+	static class BlockEntries
+	{
+		final String[] addresses;
+		final int[] transactionIndexes;
+
+		BlockEntries(String[] addresses, int[] transactionIndexes)
+		{
+			this.addresses = addresses;
+			this.transactionIndexes = transactionIndexes;
+		}
+	}
+
+	/**
+	 * A growable list of transaction positions, each the block height in the upper 32 bits and the transaction's index in
+	 * its block in the lower 32 bits.
+	 */
+	private static class Positions
+	{
+		long[] items = new long[4];
+		int size = 0;
+
+		void add(long position)
+		{
+			if (size == items.length)
+			{
+				long[] grown = new long[items.length * 2];
+				System.arraycopy(items, 0, grown, 0, size);
+				items = grown;
+			}
+			items[size++] = position;
+		}
+	}
+
+	/**
+	 * @param indexFile The path of the index file
+	 */
+	public AddressHistoryIndex(String indexFile)
+	{
+		super(indexFile, "address history");
+		open();
+	}
+
+	/**
+	 * @param address The address to look up
+	 * @return int The number of transactions on the longest chain involving the address
+	 */
+	public int getCount(String address)
+	{
+		Positions addressPositions = positions.get(address);
+		return addressPositions == null ? 0 : addressPositions.size;
+	}
+
+	/**
+	 * Returns a page of an address's history, oldest first.
+	 *
+	 * @param address The address to look up
+	 * @param start The number of transactions to skip
+	 * @param count The most transactions to return
+	 * @return long[] The position of each transaction: its block height in the upper 32 bits, and its index in the block in
+	 *         the lower 32 bits
+	 */
+	public long[] getPositions(String address, int start, int count)
+	{
+		Positions addressPositions = positions.get(address);
+		if (addressPositions == null || start < 0 || start >= addressPositions.size || count <= 0)
+		{
+			return new long[0];
+		}
+		int end = (int)Math.min((long)start + count, addressPositions.size);
+		long[] page = new long[end - start];
+		System.arraycopy(addressPositions.items, start, page, 0, page.length);
+		return page;
+	}
+
+	protected BlockEntries buildEntries(ArrayList<Transaction> transactions)
+	{
+		ArrayList<String> addresses = new ArrayList<String>();
+		ArrayList<Integer> transactionIndexes = new ArrayList<Integer>();
+		LinkedHashSet<String> involved = new LinkedHashSet<String>();
+		for (int i = 0; i < transactions.size(); i++)
+		{
+			Transaction transaction = transactions.get(i);
+			involved.clear();
+			involved.add(transaction.getSourceAddress());
+			for (int j = 0; j < transaction.getOutputCount(); j++)
+			{
+				involved.add(transaction.getOutputAddress(j));
+			}
+			for (String address : involved)
+			{
+				addresses.add(address);
+				transactionIndexes.add(i);
+			}
+		}
+		int[] indexes = new int[transactionIndexes.size()];
+		for (int i = 0; i < indexes.length; i++)
+		{
+			indexes[i] = transactionIndexes.get(i);
+		}
+		return new BlockEntries(addresses.toArray(new String[addresses.size()]), indexes);
+	}
+
+	protected void writeEntries(DataOutputStream out, BlockEntries entries) throws IOException
+	{
+		out.writeInt(entries.addresses.length);
+		for (int i = 0; i < entries.addresses.length; i++)
+		{
+			out.writeUTF(entries.addresses[i]);
+			out.writeInt(entries.transactionIndexes[i]);
+		}
+	}
+
+	protected BlockEntries readEntries(DataInputStream in) throws IOException
+	{
+		int count = in.readInt();
+		if (count < 0)
+		{
+			throw new IOException("An address history record has " + count + " entries");
+		}
+		String[] addresses = new String[count];
+		int[] transactionIndexes = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			addresses[i] = in.readUTF();
+			transactionIndexes[i] = in.readInt();
+		}
+		return new BlockEntries(addresses, transactionIndexes);
+	}
+
+	protected void addEntries(int height, BlockEntries entries)
+	{
+		for (int i = 0; i < entries.addresses.length; i++)
+		{
+			Positions addressPositions = positions.get(entries.addresses[i]);
+			if (addressPositions == null)
+			{
+				addressPositions = new Positions();
+				positions.put(entries.addresses[i], addressPositions);
+			}
+			addressPositions.add(((long)height << 32) | entries.transactionIndexes[i]);
+		}
+	}
+
+	/**
+	 * Blocks are removed from the highest down, so each removed block's entries are the last ones of their addresses.
+	 */
+	protected void removeEntries(int height, BlockEntries entries)
+	{
+		for (int i = entries.addresses.length - 1; i >= 0; i--)
+		{
+			Positions addressPositions = positions.get(entries.addresses[i]);
+			addressPositions.size--;
+			if (addressPositions.size == 0)
+			{
+				positions.remove(entries.addresses[i]);
+			}
+		}
+	}
+
+	protected void clearEntries()
+	{
+		positions.clear();
+	}
+}
@@ -0,0 +1,191 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.util.Arrays;
+
+/**
+ * Interns addresses as compact int IDs, handed out from 0, so state about addresses can be kept in primitive arrays indexed
+ * by ID instead of in maps of boxed values.
+ *
+ * IDs are looked up in an open-addressing table of IDs, probed linearly, which holds no objects of its own. An address keeps
+ * its ID until it is released, and a released ID is handed out again before any new one, so IDs stay below the most
+ * addresses ever held at once rather than the number ever seen; clear() starts the table over.
+ */
+public class AddressTable
+{
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// The address of each ID
+	private String[] addresses = new String[INITIAL_CAPACITY];
+	// One more than the highest ID given
+	private int limit = 0;
+
+	// Released IDs, the most recently released last
+	private int[] freeIds = new int[INITIAL_CAPACITY];
+	private int freeCount = 0;
+
+	// One more than the ID held in each slot, or 0 for an empty slot; never more than half full
+	private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+	/**
+	 * @param address The address to look up
+	 * @return int The address's ID, or -1 if it has none
+	 */
+	public int getId(String address)
+	{
+		int mask = slots.length - 1;
+		for (int slot = hash(address) & mask; slots[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int id = slots[slot] - 1;
+			if (addresses[id].equals(address))
+			{
+				return id;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param address The address to intern
+	 * @return int The address's ID, newly given if it had none
+	 */
+	public int intern(String address)
+	{
+		int mask = slots.length - 1;
+		int slot = hash(address) & mask;
+		for (; slots[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int id = slots[slot] - 1;
+			if (addresses[id].equals(address))
+			{
+				return id;
+			}
+		}
+		int id;
+		if (freeCount > 0)
+		{
+			id = freeIds[--freeCount];
+		}
+		else if (limit == addresses.length)
+		{
+			addresses = Arrays.copyOf(addresses, addresses.length * 2);
+			growSlots();
+			return intern(address);
+		}
+		else
+		{
+			id = limit++;
+		}
+		addresses[id] = address;
+		slots[slot] = id + 1;
+		return id;
+	}
+
+	/**
+	 * @param id An ID given by this table
+	 * @return String The address with that ID
+	 */
+	public String getAddress(int id)
+	{
+		return addresses[id];
+	}
+
+	/**
+	 * Forgets an address, so its ID can be given to another.
+	 *
+	 * @param id An ID given by this table and not yet released
+	 */
+	public void release(int id)
+	{
+		int mask = slots.length - 1;
+		int hole = hash(addresses[id]) & mask;
+		while (slots[hole] != id + 1)
+		{
+			hole = (hole + 1) & mask;
+		}
+		// Shift back any later ID in the run which would no longer be reached past the hole
+		for (int slot = (hole + 1) & mask; slots[slot] != 0; slot = (slot + 1) & mask)
+		{
+			int home = hash(addresses[slots[slot] - 1]) & mask;
+			if (((slot - home) & mask) >= ((slot - hole) & mask))
+			{
+				slots[hole] = slots[slot];
+				hole = slot;
+			}
+		}
+		slots[hole] = 0;
+		addresses[id] = null;
+		if (freeCount == freeIds.length)
+		{
+			freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+		}
+		freeIds[freeCount++] = id;
+	}
+
+	/**
+	 * @return int The number of addresses held
+	 */
+	public int size()
+	{
+		return limit - freeCount;
+	}
+
+	/**
+	 * @return int One more than the highest ID given, which every ID held is below
+	 */
+	public int getIdLimit()
+	{
+		return limit;
+	}
+
+	/**
+	 * Forgets every address, so IDs are handed out from 0 again.
+	 */
+	public void clear()
+	{
+		addresses = new String[INITIAL_CAPACITY];
+		slots = new int[INITIAL_CAPACITY * 2];
+		limit = 0;
+		freeIds = new int[INITIAL_CAPACITY];
+		freeCount = 0;
+	}
+
+	/**
+	 * Doubles the slot table, keeping it at twice the number of addresses it can hold.
+	 */
+	private void growSlots()
+	{
+		int[] grown = new int[slots.length * 2];
+		int mask = grown.length - 1;
+		for (int id = 0; id < limit; id++)
+		{
+			if (addresses[id] == null)
+			{
+				continue;
+			}
+			int slot = hash(addresses[id]) & mask;
+			while (grown[slot] != 0)
+			{
+				slot = (slot + 1) & mask;
+			}
+			grown[slot] = id + 1;
+		}
+		slots = grown;
+	}
+
+	/**
+	 * Spreads the String hash, whose low bits alone decide the slot.
+	 */
+	private static int hash(String address)
+	{
+		int hash = address.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+}
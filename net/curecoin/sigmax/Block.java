@@ -44,6 +44,9 @@ public class Block
 	public String rawBlock;
 	public String blockHash;
 	
+	// Merkle root of the transactions, computed once when the block is created
+	private String merkleRoot;
+	
 	public static final long EARLIEST_POSSIBLE_TIMESTAMP = 1458266140000L;
 	
 	/**
@@ -100,7 +103,8 @@ public class Block
 		
 		rawBlock = assembleBlock();
 		
-		blockHash = Utilities.getSHA256(previousBlockHash + ":" + Utilities.getMerkleRootOfTransactions(transactions) + ":" + winningNonce);
+		merkleRoot = Utilities.getMerkleRootOfTransactions(transactions);
+		blockHash = Utilities.getSHA256(previousBlockHash + ":" + merkleRoot + ":" + winningNonce);
 	}
 	
 	/**
@@ -117,21 +121,39 @@ public class Block
 	 * @throws TransactionContentException When any transaction contains impossible content
 	 */
 	public Block(String rawBlock) throws BlockFormatException, TransactionFormatException, TransactionContentException
+	{
+		this(rawBlock, true);
+	}
+	
+	/**
+	 * Create a block with a raw String representing the block, optionally leaving transaction signatures unverified. Signatures can
+	 * be checked later with each transaction's hasValidSignature(), which lets them be checked in parallel.
+	 * 
+	 * @param rawBlock The String holding all of the raw block data
+	 * @param verifySignatures Whether to verify the signature of every transaction now
+	 * @throws BlockFormatException When any part of the block data is incorrectly formatted
+	 * @throws TransactionFormatException When any transaction is incorrectly formatted
+	 * @throws TransactionContentException When any transaction contains impossible content
+	 */
+	public Block(String rawBlock, boolean verifySignatures) throws BlockFormatException, TransactionFormatException, TransactionContentException
 	{
 		transactions = new ArrayList<>();
 		
-		String[] parts = rawBlock.split("#");
+		// Each chunk is parsed in place, by its offsets into rawBlock
+		int[] parts = FlatParser.split(rawBlock, 0, rawBlock.length(), '#');
+		int chunkCount = parts.length / 2;
 		
-		if (parts.length < 3) 
+		if (chunkCount < 3) 
 		{
 			throw new BlockFormatException("Too few block chunks! Block format: {timestamp:blockNum:previousBlockHash:difficulty:winningNonce:minerAddress}#{ledgerHash}#{transactions}");
 		}
-		else if (parts.length > 4)
+		else if (chunkCount > 4)
 		{
 			throw new BlockFormatException("Too many block chunks! Block format: {timestamp:blockNum:previousBlockHash:difficulty:winningNonce:minerAddress}#{ledgerHash}#{transactions}");
 		}
 		
-		String[] firstChunk = parts[0].replace("{", "").replace("}", "").split(":");
+		String header = FlatParser.removeBraces(rawBlock, parts[0], parts[1]);
+		String[] firstChunk = FlatParser.splitToStrings(header, 0, header.length(), ':');
 		if (firstChunk.length != 6)
 		{
 			throw new BlockFormatException("Incorrect number of items in the first chunk! First chunk format: {timestamp:blockNum:previousBlockHash:difficulty:winningNonce:minerAddress}");
@@ -173,35 +195,40 @@ public class Block
 		}
 		minerAddress = firstChunk[5];
 		
-		ledgerHash = parts[1].replace("{", "").replace("}", "");
+		ledgerHash = FlatParser.removeBraces(rawBlock, parts[2], parts[3]);
 		if (ledgerHash.length() != 64 || !Utilities.isHex(ledgerHash))
 		{
 			throw new BlockFormatException("The ledger hash must be 64 hexadecimal characters!");
 		}
 		
-		String[] transactionsArray = parts[2].replace("{", "").replace("}", "").split("\\|");
-		System.out.println("After: " + parts[2].replace("{", "").replace("}", ""));
-		System.out.println("TXPARTS: " + parts[2]);
-		if (!(transactionsArray.length <= 1 && transactionsArray[0].equals("")))
+		String transactionData = rawBlock;
+		int[] transactionRange = FlatParser.trimBraces(rawBlock, parts[4], parts[5]);
+		if (transactionRange == null) // Stray braces between transactions, which are simply ignored
+		{
+			transactionData = FlatParser.removeBraces(rawBlock, parts[4], parts[5]);
+			transactionRange = new int[] {0, transactionData.length()};
+		}
+		int[] transactionsArray = FlatParser.split(transactionData, transactionRange[0], transactionRange[1], '|');
+		if (!(transactionsArray.length <= 2 && transactionsArray[0] == transactionsArray[1]))
 		{
-			for (String transactionString : transactionsArray)
+			for (int i = 0; i < transactionsArray.length; i += 2)
 			{
-				System.out.println("Transaction: " + transactionString);
-				Transaction transaction = new Transaction(transactionString);
+				Transaction transaction = new Transaction(transactionData, transactionsArray[i], transactionsArray[i + 1], verifySignatures);
 				transactions.add(transaction);
 			}
 		}
 		
 		this.rawBlock = assembleBlock();
 		
-		blockHash = Utilities.getSHA256(previousBlockHash + ":" + Utilities.getMerkleRootOfTransactions(transactions) + ":" + winningNonce);
+		merkleRoot = Utilities.getMerkleRootOfTransactions(transactions);
+		blockHash = Utilities.getSHA256(previousBlockHash + ":" + merkleRoot + ":" + winningNonce);
 		
-		if (parts.length == 4) // Block hash was provided, let's validate it.
+		if (chunkCount == 4) // Block hash was provided, let's validate it.
 		{
-			parts[4] = parts[4].replace("{", "").replace("}", "");
-			if (!parts[4].equals(blockHash))
+			String providedHash = FlatParser.removeBraces(rawBlock, parts[6], parts[7]);
+			if (!providedHash.equals(blockHash))
 			{
-				throw new BlockFormatException("The provided block hash \"" + parts[4] + "\" does not match the calculated hash: \"" + blockHash + "\"!");
+				throw new BlockFormatException("The provided block hash \"" + providedHash + "\" does not match the calculated hash: \"" + blockHash + "\"!");
 			}
 		}
 	}
@@ -213,12 +240,33 @@ public class Block
 	 */
 	public boolean isMinerHashBelowTarget()
 	{
-		String blockHash = Utilities.getSHA256(previousBlockHash + ":" + Utilities.getMerkleRootOfTransactions(transactions) + ":" + minerAddress + ":" + winningNonce);
+		String blockHash = Utilities.getSHA256(previousBlockHash + ":" + merkleRoot + ":" + minerAddress + ":" + winningNonce);
 		BigInteger target = MAXIMUM_TARGET.divide(difficulty);
 		
 		return new BigInteger(blockHash, 16).compareTo(target) < 0;
 	}
 	
+	/**
+	 * Returns the header of this block, which holds the merkle root of the transactions in place of the transactions themselves.
+	 * 
+	 * @return BlockHeader The header of this block
+	 */
+	public BlockHeader getHeader()
+	{
+		return new BlockHeader(timestamp, blockNum, previousBlockHash, difficulty, winningNonce, minerAddress, ledgerHash, merkleRoot);
+	}
+	
+	/**
+	 * Returns the merkle root of this block's transactions. It is computed when the block is created, so the transaction list
+	 * must not be changed afterwards.
+	 * 
+	 * @return String The merkle root of the transactions
+	 */
+	public String getMerkleRoot()
+	{
+		return merkleRoot;
+	}
+	
 	/**
 	 * Assembles the block portions stored as private variables into a flat (raw) block format.
 	 * 
@@ -227,20 +275,18 @@ public class Block
 	private String assembleBlock()
 	{
 		// Assemble the block into a flat String
-		String rawBlock = "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + ":" + minerAddress + "}#{" + ledgerHash + "}#";
-		String transactionString = "";
-		for (Transaction transaction : transactions)
-		{
-			transactionString += transaction.getFlatTransaction() + "|";
-		}
-
-		if (transactions.size() > 0)
+		StringBuilder rawBlock = new StringBuilder();
+		rawBlock.append("{").append(timestamp).append(":").append(blockNum).append(":").append(previousBlockHash).append(":").append(difficulty)
+				.append(":").append(winningNonce).append(":").append(minerAddress).append("}#{").append(ledgerHash).append("}#{");
+		for (int i = 0; i < transactions.size(); i++)
 		{
-			// Remove final | separator
-			transactionString = transactionString.substring(0, transactionString.length() - 1);
+			if (i > 0)
+			{
+				rawBlock.append("|");
+			}
+			transactions.get(i).appendFlatTransaction(rawBlock);
 		}
-		
-		rawBlock += "{" + transactionString + "}";
-		return rawBlock;
+		rawBlock.append("}");
+		return rawBlock.toString();
 	}
 }
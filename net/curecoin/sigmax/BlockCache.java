@@ -0,0 +1,38 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of blocks which have been read back from disk, indexed by block hash.
+ * Once the cache is full, the block which was looked up longest ago is dropped.
+ */
+public class BlockCache extends LinkedHashMap<String, Block>
+{
+	private static final long serialVersionUID = 0xBEEF;
+
+	private int maxBlocks;
+
+	/**
+	 * @param maxBlocks The maximum number of blocks held at once
+	 */
+	public BlockCache(int maxBlocks)
+	{
+		super(16, 0.75f, true);
+		this.maxBlocks = maxBlocks;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Block> eldest)
+	{
+		return size() > maxBlocks;
+	}
+}
@@ -0,0 +1,468 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+import org.apache.commons.codec.binary.Base64;
+
+import net.curecoin.sigmax.exceptions.BlockFormatException;
+
+/**
+ * Converts raw blocks to and from a compact binary encoding, for storage and for peers which support it.
+ *
+ * The first byte of an encoded block is its encoding version:
+ * 0: The text block as length-prefixed UTF-8
+ * 1: Compact. Hashes are stored as 32 raw bytes, numbers as variable-length integers, addresses as their 5-bit characters packed
+ *    together, and the base64 parts of signatures as the bytes they represent.
+ *
+ * Decoding always gives back exactly the text block that was encoded, so blocks hash identically whichever form they traveled in.
+ * A block which can't be reproduced exactly from the compact form (for example, one with lowercase hexadecimal) is stored as text.
+ */
+public class BlockCodec
+{
+	public static final int TEXT_ENCODING = 0;
+	public static final int COMPACT_ENCODING = 1;
+
+	private static final String BASE32_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+	private static final String HEX_ALPHABET = "0123456789ABCDEF";
+
+	// Every address is a 2-character prefix followed by 36 Base32 characters
+	private static final int ADDRESS_LENGTH = 38;
+	private static final int ADDRESS_PREFIX_LENGTH = 2;
+
+	// Usual decoded sizes of Lamport signature parts (SHA256Short) and of authentication path parts (SHA256)
+	private static final int LAMPORT_PART_BYTES = 12;
+	private static final int AUTH_PATH_PART_BYTES = 32;
+
+	private static Base64 base64 = new Base64();
+
+	/**
+	 * Encodes a raw block, using the compact encoding whenever it reproduces the block exactly.
+	 *
+	 * @param rawBlock The flat block: {timestamp:blockNum:previousBlockHash:difficulty:winningNonce:minerAddress}#{ledgerHash}#{transactions}
+	 * @return byte[] The encoded block
+	 */
+	public static byte[] encode(String rawBlock)
+	{
+		try
+		{
+			byte[] compact = encodeCompact(rawBlock);
+			if (decode(compact).equals(rawBlock))
+			{
+				return compact;
+			}
+		} catch (Exception e)
+		{
+			// Not representable in the compact encoding
+		}
+
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(TEXT_ENCODING);
+			writeBytes(out, rawBlock.getBytes("UTF-8"));
+			return out.toByteArray();
+		} catch (IOException e)
+		{
+			throw new RuntimeException(e); // Writing to memory doesn't fail
+		}
+	}
+
+	/**
+	 * Decodes a block encoded by encode().
+	 *
+	 * @param encoded The encoded block
+	 * @return String The raw block, exactly as it was before encoding
+	 * @throws BlockFormatException When the encoded block is corrupt or of an unknown version
+	 */
+	public static String decode(byte[] encoded) throws BlockFormatException
+	{
+		try
+		{
+			InputStream in = new ByteArrayInputStream(encoded);
+			int version = in.read();
+			if (version == TEXT_ENCODING)
+			{
+				return new String(readBytes(in), "UTF-8");
+			}
+			if (version != COMPACT_ENCODING)
+			{
+				throw new BlockFormatException("Unknown block encoding version " + version + "!");
+			}
+
+			StringBuilder rawBlock = new StringBuilder();
+			rawBlock.append("{").append(readSignedVarint(in));
+			rawBlock.append(":").append(readSignedVarint(in));
+			rawBlock.append(":").append(readHash(in));
+			rawBlock.append(":").append(new BigInteger(readBytes(in)));
+			rawBlock.append(":").append(readSignedVarint(in));
+			rawBlock.append(":").append(readAddress(in));
+			rawBlock.append("}#{").append(readHash(in)).append("}#{");
+
+			long transactionCount = readVarint(in);
+			for (long i = 0; i < transactionCount; i++)
+			{
+				if (i > 0)
+				{
+					rawBlock.append("|");
+				}
+				rawBlock.append(readAddress(in)).append(",").append(readSignedVarint(in));
+				long outputCount = readVarint(in);
+				for (long j = 0; j < outputCount; j++)
+				{
+					rawBlock.append(";").append(readAddress(in)).append(",").append(readSignedVarint(in));
+				}
+
+				ArrayList<String> lamportParts = readTokens(in, LAMPORT_PART_BYTES);
+				rawBlock.append(";");
+				for (int j = 0; j < lamportParts.size(); j++)
+				{
+					rawBlock.append(lamportParts.get(j));
+					if (j < lamportParts.size() - 1)
+					{
+						rawBlock.append(j % 2 == 0 ? ":" : "::");
+					}
+				}
+				ArrayList<String> authPathParts = readTokens(in, AUTH_PATH_PART_BYTES);
+				rawBlock.append(",");
+				for (int j = 0; j < authPathParts.size(); j++)
+				{
+					rawBlock.append(j > 0 ? ":" : "").append(authPathParts.get(j));
+				}
+				rawBlock.append(",").append(readSignedVarint(in));
+			}
+			rawBlock.append("}");
+
+			if (in.read() != -1)
+			{
+				throw new BlockFormatException("Unexpected data after the end of the block!");
+			}
+			return rawBlock.toString();
+		} catch (IOException | RuntimeException e)
+		{
+			throw new BlockFormatException("The encoded block is truncated or corrupt: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Encodes a raw block in the compact encoding. The result may not decode to exactly the same text, which encode() checks.
+	 */
+	private static byte[] encodeCompact(String rawBlock) throws IOException
+	{
+		String[] parts = rawBlock.split("#");
+		if (parts.length != 3)
+		{
+			throw new IOException("Not a flat block");
+		}
+		String[] firstChunk = parts[0].replace("{", "").replace("}", "").split(":");
+		if (firstChunk.length != 6)
+		{
+			throw new IOException("Not a flat block");
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(COMPACT_ENCODING);
+		writeSignedVarint(out, Long.parseLong(firstChunk[0]));
+		writeSignedVarint(out, Integer.parseInt(firstChunk[1]));
+		writeHash(out, firstChunk[2]);
+		writeBytes(out, new BigInteger(firstChunk[3]).toByteArray());
+		writeSignedVarint(out, Long.parseLong(firstChunk[4]));
+		writeAddress(out, firstChunk[5]);
+		writeHash(out, parts[1].replace("{", "").replace("}", ""));
+
+		String transactionString = parts[2].replace("{", "").replace("}", "");
+		String[] transactions = transactionString.length() == 0 ? new String[0] : transactionString.split("\\|");
+		writeVarint(out, transactions.length);
+		for (String transaction : transactions)
+		{
+			String[] transactionParts = transaction.split(";");
+			if (transactionParts.length < 3)
+			{
+				throw new IOException("Not a flat transaction");
+			}
+			String[] source = transactionParts[0].split(",");
+			writeAddress(out, source[0]);
+			writeSignedVarint(out, Long.parseLong(source[1]));
+			writeVarint(out, transactionParts.length - 2);
+			for (int i = 1; i < transactionParts.length - 1; i++)
+			{
+				String[] output = transactionParts[i].split(",");
+				writeAddress(out, output[0]);
+				writeSignedVarint(out, Long.parseLong(output[1]));
+			}
+
+			String[] signature = transactionParts[transactionParts.length - 1].split(",");
+			if (signature.length != 3)
+			{
+				throw new IOException("Not a flat signature");
+			}
+			ArrayList<String> lamportParts = new ArrayList<String>();
+			for (String pair : signature[0].split("::"))
+			{
+				String[] pairParts = pair.split(":");
+				if (pairParts.length != 2)
+				{
+					throw new IOException("Not a Lamport signature pair");
+				}
+				lamportParts.add(pairParts[0]);
+				lamportParts.add(pairParts[1]);
+			}
+			writeTokens(out, lamportParts, LAMPORT_PART_BYTES);
+			ArrayList<String> authPathParts = new ArrayList<String>();
+			for (String part : signature[1].split(":"))
+			{
+				authPathParts.add(part);
+			}
+			writeTokens(out, authPathParts, AUTH_PATH_PART_BYTES);
+			writeSignedVarint(out, Long.parseLong(signature[2]));
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes an unsigned variable-length integer: 7 bits per byte, lowest bits first, with the top bit set on every byte but the last.
+	 *
+	 * @param out The stream to write to
+	 * @param value The value to write, treated as unsigned
+	 */
+	public static void writeVarint(OutputStream out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.write((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int)value);
+	}
+
+	/**
+	 * Reads an unsigned variable-length integer written by writeVarint().
+	 *
+	 * @param in The stream to read from
+	 * @return long The value read
+	 * @throws EOFException If the stream ends before the integer does
+	 */
+	public static long readVarint(InputStream in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.read();
+			if (b == -1)
+			{
+				throw new EOFException("Stream ended inside a variable-length integer");
+			}
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IOException("Variable-length integer is too long");
+	}
+
+	/**
+	 * Signed values are zigzag-encoded first, so small negative numbers stay short.
+	 */
+	private static void writeSignedVarint(OutputStream out, long value) throws IOException
+	{
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	private static long readSignedVarint(InputStream in) throws IOException
+	{
+		long value = readVarint(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeBytes(OutputStream out, byte[] bytes) throws IOException
+	{
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(InputStream in) throws IOException
+	{
+		long length = readVarint(in);
+		if (length > in.available())
+		{
+			throw new EOFException("Length runs past the end of the block");
+		}
+		return readFully(in, (int)length);
+	}
+
+	private static byte[] readFully(InputStream in, int length) throws IOException
+	{
+		byte[] bytes = new byte[length];
+		int read = 0;
+		while (read < length)
+		{
+			int count = in.read(bytes, read, length - read);
+			if (count == -1)
+			{
+				throw new EOFException("Stream ended early");
+			}
+			read += count;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes a 64-character hexadecimal hash as 32 raw bytes.
+	 */
+	private static void writeHash(OutputStream out, String hash) throws IOException
+	{
+		if (hash.length() != 64)
+		{
+			throw new IOException("Not a hash");
+		}
+		for (int i = 0; i < 64; i += 2)
+		{
+			out.write(Integer.parseInt(hash.substring(i, i + 2), 16));
+		}
+	}
+
+	private static String readHash(InputStream in) throws IOException
+	{
+		byte[] bytes = readFully(in, 32);
+		StringBuilder hash = new StringBuilder(64);
+		for (byte b : bytes)
+		{
+			hash.append(HEX_ALPHABET.charAt((b >> 4) & 0xF)).append(HEX_ALPHABET.charAt(b & 0xF));
+		}
+		return hash.toString();
+	}
+
+	/**
+	 * Writes an address as its two prefix characters, followed by its 36 Base32 characters packed at 5 bits each.
+	 */
+	private static void writeAddress(OutputStream out, String address) throws IOException
+	{
+		if (address.length() != ADDRESS_LENGTH)
+		{
+			throw new IOException("Not an address");
+		}
+		out.write(address.charAt(0));
+		out.write(address.charAt(1));
+		int buffer = 0;
+		int bits = 0;
+		for (int i = ADDRESS_PREFIX_LENGTH; i < ADDRESS_LENGTH; i++)
+		{
+			int value = BASE32_ALPHABET.indexOf(address.charAt(i));
+			if (value < 0)
+			{
+				throw new IOException("Not an address");
+			}
+			buffer = (buffer << 5) | value;
+			bits += 5;
+			if (bits >= 8)
+			{
+				bits -= 8;
+				out.write((buffer >> bits) & 0xFF);
+			}
+		}
+		if (bits > 0)
+		{
+			out.write((buffer << (8 - bits)) & 0xFF);
+		}
+	}
+
+	private static String readAddress(InputStream in) throws IOException
+	{
+		int characters = ADDRESS_LENGTH - ADDRESS_PREFIX_LENGTH;
+		byte[] bytes = readFully(in, ADDRESS_PREFIX_LENGTH + (characters * 5 + 7) / 8);
+		StringBuilder address = new StringBuilder(ADDRESS_LENGTH);
+		address.append((char)(bytes[0] & 0xFF)).append((char)(bytes[1] & 0xFF));
+		int buffer = 0;
+		int bits = 0;
+		int position = ADDRESS_PREFIX_LENGTH;
+		while (address.length() < ADDRESS_LENGTH)
+		{
+			if (bits < 5)
+			{
+				buffer = (buffer << 8) | (bytes[position++] & 0xFF);
+				bits += 8;
+			}
+			bits -= 5;
+			address.append(BASE32_ALPHABET.charAt((buffer >> bits) & 0x1F));
+		}
+		return address.toString();
+	}
+
+	/**
+	 * Writes base64 signature parts as the bytes they represent. Parts are expected to decode to usualLength bytes; the few that
+	 * don't are listed by position and length, so common parts carry no length of their own.
+	 */
+	private static void writeTokens(OutputStream out, ArrayList<String> tokens, int usualLength) throws IOException
+	{
+		ArrayList<byte[]> decoded = new ArrayList<byte[]>();
+		ArrayList<Integer> unusual = new ArrayList<Integer>();
+		for (int i = 0; i < tokens.size(); i++)
+		{
+			byte[] bytes = base64.decode(tokens.get(i));
+			decoded.add(bytes);
+			if (bytes.length != usualLength)
+			{
+				unusual.add(i);
+			}
+		}
+
+		writeVarint(out, tokens.size());
+		writeVarint(out, unusual.size());
+		for (int index : unusual)
+		{
+			writeVarint(out, index);
+			writeVarint(out, decoded.get(index).length);
+		}
+		for (byte[] bytes : decoded)
+		{
+			out.write(bytes);
+		}
+	}
+
+	private static ArrayList<String> readTokens(InputStream in, int usualLength) throws IOException
+	{
+		int count = (int)readVarint(in);
+		if (count < 0 || count > in.available())
+		{
+			throw new EOFException("Token count runs past the end of the block");
+		}
+		int[] lengths = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			lengths[i] = usualLength;
+		}
+		long unusualCount = readVarint(in);
+		for (long i = 0; i < unusualCount; i++)
+		{
+			long index = readVarint(in);
+			long length = readVarint(in);
+			if (index >= count || length > in.available())
+			{
+				throw new IOException("Invalid signature part length");
+			}
+			lengths[(int)index] = (int)length;
+		}
+
+		ArrayList<String> tokens = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++)
+		{
+			tokens.add(base64.encodeAsString(readFully(in, lengths[i])));
+		}
+		return tokens;
+	}
+}
@@ -0,0 +1,604 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import net.curecoin.sigmax.exceptions.BlockFormatException;
+
+/**
+ * One blockchain file. Blocks are stored as framed records after a short header identifying the file: each record is the
+ * encoding of a block from BlockCodec, framed by RecordFrame, so a record which was only partly written, or which was
+ * damaged afterwards, is recognized by its length or checksum.
+ *
+ * When the file is opened, recover() scans it and cuts off a partly written record left at the end by a crash, so every
+ * record read afterwards is known to be intact.
+ *
+ * Files from older versions hold either one text block per line with no header, or unframed records (a length and the
+ * encoding, with no checksum). These can still be read and appended to, and are converted the next time the whole file is
+ * rewritten.
+ *
+ * A record is identified by its offset, the position of the record's first byte (or line's first character) in the file,
+ * and its length in bytes, which includes its framing or line terminator. Knowing both, a record is read back with a single
+ * positioned read.
+ *
+ * The file is kept open between appends and reads; close() releases it.
+ */
+public class BlockFile implements Closeable
+{
+	public static final int FRAMED_FORMAT = 0;
+	public static final int TEXT_FORMAT = 1;
+	public static final int UNFRAMED_FORMAT = 2;
+
+	// The longest block encoding read back, framed or not; tighter than RecordFrame.MAX_PAYLOAD_SIZE
+	public static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+	// Written at the start of a file of framed records
+	private static final byte[] MAGIC = {'S', 'G', 'X', 'R'};
+
+	// Written at the start of a file of unframed records, from older versions
+	private static final byte[] UNFRAMED_MAGIC = {'S', 'G', 'X', 'B'};
+
+	private File file;
+
+	// One of the formats above; -1 until checked
+	private int format = -1;
+
+	// Where the intact records end, as found by recover(); -1 until then
+	private long readableEnd = -1;
+
+	// Open for reading and appending, or null until first needed
+	private FileChannel channel = null;
+
+	/**
+	 * @param file The blockchain file; it doesn't have to exist yet
+	 */
+	public BlockFile(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * @return File The file this reads and writes
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * @return long The size of the file in bytes, which is also where the next record will be appended
+	 */
+	public long size() throws IOException
+	{
+		return channel != null ? channel.size() : file.length();
+	}
+
+	private FileChannel getChannel() throws IOException
+	{
+		if (channel == null)
+		{
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		return channel;
+	}
+
+	/**
+	 * Forces every record appended so far to disk.
+	 */
+	public void sync() throws IOException
+	{
+		if (channel != null)
+		{
+			channel.force(false);
+		}
+	}
+
+	/**
+	 * Closes the file. It is opened again if it is used afterwards.
+	 */
+	public void close() throws IOException
+	{
+		if (channel != null)
+		{
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * @return int The format of the file: FRAMED_FORMAT, TEXT_FORMAT or UNFRAMED_FORMAT. A missing or empty file is framed.
+	 */
+	public int getFormat() throws IOException
+	{
+		if (format == -1)
+		{
+			if (size() == 0)
+			{
+				format = FRAMED_FORMAT;
+			}
+			else
+			{
+				try (InputStream in = new FileInputStream(file))
+				{
+					byte[] header = new byte[MAGIC.length];
+					int read = 0;
+					int count;
+					while (read < header.length && (count = in.read(header, read, header.length - read)) != -1)
+					{
+						read += count;
+					}
+					if (Arrays.equals(header, UNFRAMED_MAGIC))
+					{
+						format = UNFRAMED_FORMAT;
+					}
+					else if (Arrays.equals(Arrays.copyOf(header, read), Arrays.copyOf(MAGIC, read)))
+					{
+						format = FRAMED_FORMAT; // Possibly with a partly written header, which recover() removes
+					}
+					else
+					{
+						format = TEXT_FORMAT;
+					}
+				}
+			}
+		}
+		return format;
+	}
+
+	/**
+	 * @return boolean Whether the file is in one of the formats of older versions, and should be rewritten
+	 */
+	public boolean isOlderFormat() throws IOException
+	{
+		return getFormat() != FRAMED_FORMAT;
+	}
+
+	/**
+	 * Scans every record and finds where the intact ones end. Reading stops there afterwards. A text file is not scanned,
+	 * as a damaged line is simply rejected when its block is parsed.
+	 *
+	 * @param truncate Whether to cut the file off after the last intact record, so new records can be appended after it
+	 * @return long The number of bytes after the last intact record
+	 */
+	public long recover(boolean truncate) throws IOException
+	{
+		readableEnd = -1;
+		if (getFormat() == TEXT_FORMAT)
+		{
+			return 0;
+		}
+
+		long size = size();
+		long goodEnd = 0;
+		if (size >= MAGIC.length)
+		{
+			goodEnd = MAGIC.length;
+			try (Reader reader = openReader())
+			{
+				while (reader.nextRecord() != null)
+				{
+					goodEnd = reader.position;
+				}
+			} catch (IOException | BlockFormatException e)
+			{
+				// goodEnd stays at the end of the last intact record
+			}
+		}
+		readableEnd = goodEnd;
+
+		long damaged = size - goodEnd;
+		if (damaged > 0)
+		{
+			if (truncate)
+			{
+				System.err.println("[WARNING] Removing " + damaged + " bytes of a partly written block from the end of " + file + ".");
+				getChannel().truncate(goodEnd);
+				if (goodEnd == 0)
+				{
+					format = -1;
+				}
+			}
+			else
+			{
+				System.err.println("[WARNING] The last " + damaged + " bytes of " + file + " are damaged, and the blocks in them will be downloaded again.");
+			}
+		}
+		return damaged;
+	}
+
+	/**
+	 * Opens the file for reading every record in order.
+	 *
+	 * @return Reader A reader positioned at the first record
+	 */
+	public Reader openReader() throws IOException
+	{
+		return new Reader(getFormat());
+	}
+
+	/**
+	 * Reads every record of a blockchain file in order, keeping track of where each record starts.
+	 */
+	public class Reader implements Closeable
+	{
+		private InputStream in;
+		private int format;
+		private long position = 0;
+		private long recordOffset = -1;
+
+		private Reader(int format) throws IOException
+		{
+			this.format = format;
+			this.in = new BufferedInputStream(new FileInputStream(file));
+			if (format != TEXT_FORMAT)
+			{
+				read(new byte[MAGIC.length]);
+			}
+		}
+
+		private int read() throws IOException
+		{
+			int b = in.read();
+			if (b != -1)
+			{
+				position++;
+			}
+			return b;
+		}
+
+		/**
+		 * @return int The number of bytes read, which is less than the length of the array only at the end of the file
+		 */
+		private int read(byte[] buffer) throws IOException
+		{
+			int read = 0;
+			int count;
+			while (read < buffer.length && (count = in.read(buffer, read, buffer.length - read)) != -1)
+			{
+				read += count;
+			}
+			position += read;
+			return read;
+		}
+
+		/**
+		 * Reads the next record.
+		 *
+		 * @return String The raw text block, or null at the end of the file
+		 * @throws BlockFormatException When a record can't be decoded
+		 */
+		public String next() throws IOException, BlockFormatException
+		{
+			if (format == TEXT_FORMAT)
+			{
+				return nextLine();
+			}
+			byte[] record = nextRecord();
+			return record == null ? null : BlockCodec.decode(record);
+		}
+
+		/**
+		 * Reads the next record of a binary file, without decoding it.
+		 *
+		 * @return byte[] The encoded block, or null at the end of the intact records
+		 * @throws EOFException When the file ends inside a record
+		 * @throws BlockFormatException When a record's length or checksum is wrong
+		 */
+		private byte[] nextRecord() throws IOException, BlockFormatException
+		{
+			if (readableEnd >= 0 && position >= readableEnd)
+			{
+				return null;
+			}
+
+			recordOffset = position;
+			long length;
+			long checksum = -1;
+			if (format == FRAMED_FORMAT)
+			{
+				byte[] header = new byte[RecordFrame.HEADER_SIZE];
+				int read = read(header);
+				if (read == 0)
+				{
+					return null;
+				}
+				if (read < header.length)
+				{
+					throw new EOFException("The blockchain file ends inside a record");
+				}
+				length = RecordFrame.getLength(header);
+				checksum = RecordFrame.getChecksum(header);
+			}
+			else
+			{
+				try
+				{
+					length = BlockCodec.readVarint(new InputStream()
+					{
+						public int read() throws IOException
+						{
+							return Reader.this.read();
+						}
+					});
+				} catch (EOFException e)
+				{
+					if (position == recordOffset)
+					{
+						return null;
+					}
+					throw e;
+				}
+			}
+			if (length <= 0 || length > MAX_RECORD_SIZE)
+			{
+				throw new BlockFormatException("The record at " + recordOffset + " has an impossible length of " + length);
+			}
+
+			byte[] record = new byte[(int)length];
+			if (read(record) < record.length)
+			{
+				throw new EOFException("The blockchain file ends inside a record");
+			}
+			if (format == FRAMED_FORMAT && RecordFrame.checksum(record) != checksum)
+			{
+				throw new BlockFormatException("The record at " + recordOffset + " does not match its checksum");
+			}
+			return record;
+		}
+
+		private String nextLine() throws IOException
+		{
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			long lineStart = position;
+			while (true)
+			{
+				int b = read();
+				if (b == -1 || b == '\n')
+				{
+					String rawBlock = line.toString("UTF-8").trim();
+					if (rawBlock.length() > 0)
+					{
+						recordOffset = lineStart;
+						return rawBlock;
+					}
+					if (b == -1)
+					{
+						return null;
+					}
+					line.reset();
+					lineStart = position;
+				}
+				else
+				{
+					line.write(b);
+				}
+			}
+		}
+
+		/**
+		 * @return long Offset of the record most recently returned by next()
+		 */
+		public long getRecordOffset()
+		{
+			return recordOffset;
+		}
+
+		/**
+		 * @return int Length in bytes of the record most recently returned by next()
+		 */
+		public int getRecordLength()
+		{
+			return (int)(position - recordOffset);
+		}
+
+		public void close() throws IOException
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a record with a single positioned read.
+	 *
+	 * @param offset Offset of the record
+	 * @param length Length of the record in bytes
+	 * @return String The raw text block
+	 * @throws BlockFormatException When the record is damaged or can't be decoded
+	 */
+	public String readAt(long offset, int length) throws IOException, BlockFormatException
+	{
+		int format = getFormat();
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		FileChannel channel = getChannel();
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, offset + buffer.position()) == -1)
+			{
+				throw new EOFException("The blockchain file ends inside a record");
+			}
+		}
+		byte[] record = buffer.array();
+		if (format == TEXT_FORMAT)
+		{
+			return new String(record, "UTF-8").trim();
+		}
+
+		if (format == FRAMED_FORMAT)
+		{
+			byte[] encoded = Arrays.copyOfRange(record, RecordFrame.HEADER_SIZE, record.length);
+			if (RecordFrame.getLength(record) != encoded.length || RecordFrame.checksum(encoded) != RecordFrame.getChecksum(record))
+			{
+				throw new BlockFormatException("The record at " + offset + " is damaged");
+			}
+			return BlockCodec.decode(encoded);
+		}
+
+		InputStream in = new ByteArrayInputStream(record);
+		long encodedLength = BlockCodec.readVarint(in);
+		int prefixLength = record.length - in.available();
+		if (encodedLength != record.length - prefixLength)
+		{
+			throw new BlockFormatException("The record at " + offset + " does not have the expected length");
+		}
+		return BlockCodec.decode(Arrays.copyOfRange(record, prefixLength, record.length));
+	}
+
+	/**
+	 * Appends a block to the end of the file, in the file's current format. The record is written with a single write.
+	 *
+	 * @param rawBlock The raw text block
+	 * @return long Offset of the new record; its length is the growth of size()
+	 */
+	public long append(String rawBlock) throws IOException
+	{
+		int format = getFormat();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long end = size();
+		long offset = end;
+		if (format == TEXT_FORMAT)
+		{
+			out.write((rawBlock + System.lineSeparator()).getBytes("UTF-8"));
+		}
+		else if (format == UNFRAMED_FORMAT)
+		{
+			byte[] record = BlockCodec.encode(rawBlock);
+			BlockCodec.writeVarint(out, record.length);
+			out.write(record);
+		}
+		else
+		{
+			if (end == 0)
+			{
+				out.write(MAGIC);
+				offset = MAGIC.length;
+			}
+			writeRecord(out, rawBlock);
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+		FileChannel channel = getChannel();
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer, end + buffer.position());
+		}
+		return offset;
+	}
+
+	/**
+	 * Starts replacing the whole file, with framed records. The new file is written separately and only moved into place by
+	 * Rewriter.commit(), so records can still be read from the old file until then.
+	 *
+	 * @return Rewriter The writer for the new file
+	 */
+	public Rewriter startRewrite() throws IOException
+	{
+		return new Rewriter();
+	}
+
+	/**
+	 * Writes a replacement for the blockchain file.
+	 */
+	public class Rewriter implements Closeable
+	{
+		private File newFile = new File(file.getPath() + ".new");
+		private FileOutputStream fileOut;
+		private OutputStream out;
+		private long offset = MAGIC.length;
+		private int lastRecordLength = 0;
+
+		private Rewriter() throws IOException
+		{
+			fileOut = new FileOutputStream(newFile);
+			out = new BufferedOutputStream(fileOut);
+			out.write(MAGIC);
+		}
+
+		/**
+		 * @param rawBlock The raw text block to write next
+		 * @return long Offset of the block's record in the new file
+		 */
+		public long write(String rawBlock) throws IOException
+		{
+			long recordOffset = offset;
+			lastRecordLength = writeRecord(out, rawBlock);
+			offset += lastRecordLength;
+			return recordOffset;
+		}
+
+		/**
+		 * @return int Length in bytes of the record most recently written
+		 */
+		public int getLastRecordLength()
+		{
+			return lastRecordLength;
+		}
+
+		/**
+		 * @return long The size of the new file so far
+		 */
+		public long size()
+		{
+			return offset;
+		}
+
+		/**
+		 * Replaces the old file with the new one. Offsets from before the rewrite are no longer valid afterwards.
+		 */
+		public void commit() throws IOException
+		{
+			out.flush();
+			fileOut.getFD().sync(); // On disk before it replaces the old file
+			out.close();
+			BlockFile.this.close();
+			Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			format = FRAMED_FORMAT;
+			readableEnd = -1;
+		}
+
+		/**
+		 * Abandons the new file if it wasn't committed.
+		 */
+		public void close() throws IOException
+		{
+			out.close();
+			if (newFile.exists())
+			{
+				newFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes one framed record: the length of the encoded block, its CRC32, and the encoded block.
+	 *
+	 * @return int The number of bytes written
+	 */
+	private static int writeRecord(OutputStream out, String rawBlock) throws IOException
+	{
+		return RecordFrame.write(out, BlockCodec.encode(rawBlock));
+	}
+}
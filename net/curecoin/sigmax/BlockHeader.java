@@ -0,0 +1,145 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.math.BigInteger;
+
+import net.curecoin.sigmax.exceptions.BlockFormatException;
+
+/**
+ * Class to represent the header of a Block: everything except its transactions, which are represented by their merkle root.
+ * A header is enough to calculate the block hash and to check the block's proof-of-work, so peers can agree on the best chain
+ * before downloading any transaction data.
+ *
+ * Headers are formatted as a String:
+ * {timestamp:blockNum:previousBlockHash:difficulty:winningNonce:minerAddress}#{ledgerHash}#{merkleRoot}
+ */
+public class BlockHeader
+{
+	public final long timestamp;
+	public final int blockNum;
+	public final String previousBlockHash;
+	public final BigInteger difficulty;
+	public final long winningNonce;
+	public final String minerAddress;
+	public final String ledgerHash;
+	public final String merkleRoot;
+
+	public final String blockHash;
+
+	/**
+	 * Constructor for BlockHeader from the individual components, for a block which has already been validated.
+	 */
+	public BlockHeader(long timestamp, int blockNum, String previousBlockHash, BigInteger difficulty, long winningNonce, String minerAddress, String ledgerHash, String merkleRoot)
+	{
+		this.timestamp = timestamp;
+		this.blockNum = blockNum;
+		this.previousBlockHash = previousBlockHash;
+		this.difficulty = difficulty;
+		this.winningNonce = winningNonce;
+		this.minerAddress = minerAddress;
+		this.ledgerHash = ledgerHash;
+		this.merkleRoot = merkleRoot;
+		this.blockHash = Utilities.getSHA256(previousBlockHash + ":" + merkleRoot + ":" + winningNonce);
+	}
+
+	/**
+	 * Create a header from its flat String format:
+	 * {timestamp:blockNum:previousBlockHash:difficulty:winningNonce:minerAddress}#{ledgerHash}#{merkleRoot}
+	 *
+	 * @param rawHeader The String holding the flat header
+	 * @throws BlockFormatException When any part of the header is incorrectly formatted
+	 */
+	public BlockHeader(String rawHeader) throws BlockFormatException
+	{
+		String[] parts = rawHeader.split("#");
+		if (parts.length != 3)
+		{
+			throw new BlockFormatException("Incorrect number of header chunks! Header format: {timestamp:blockNum:previousBlockHash:difficulty:winningNonce:minerAddress}#{ledgerHash}#{merkleRoot}");
+		}
+
+		String[] firstChunk = parts[0].replace("{", "").replace("}", "").split(":");
+		if (firstChunk.length != 6)
+		{
+			throw new BlockFormatException("Incorrect number of items in the first chunk! First chunk format: {timestamp:blockNum:previousBlockHash:difficulty:winningNonce:minerAddress}");
+		}
+
+		if (!Utilities.isLong(firstChunk[0]))
+		{
+			throw new BlockFormatException("The timestamp must be a long!");
+		}
+		timestamp = Long.parseLong(firstChunk[0]);
+
+		if (!Utilities.isInteger(firstChunk[1]))
+		{
+			throw new BlockFormatException("The block number must be an integer!");
+		}
+		blockNum = Integer.parseInt(firstChunk[1]);
+
+		if (firstChunk[2].length() != 64 || !Utilities.isHex(firstChunk[2]))
+		{
+			throw new BlockFormatException("The previous block hash must be 64 hexadecimal characters!");
+		}
+		previousBlockHash = firstChunk[2];
+
+		if (!Utilities.isBigInteger(firstChunk[3]) || new BigInteger(firstChunk[3], 10).signum() <= 0)
+		{
+			throw new BlockFormatException("The difficulty must be a positive BigInteger in Base 10!");
+		}
+		difficulty = new BigInteger(firstChunk[3], 10);
+
+		if (!Utilities.isLong(firstChunk[4]))
+		{
+			throw new BlockFormatException("The winning nonce must be a long!");
+		}
+		winningNonce = Long.parseLong(firstChunk[4]);
+
+		if (!MerkleAddressUtility.isAddressFormattedCorrectly(firstChunk[5]))
+		{
+			throw new BlockFormatException("The miner address \"" + firstChunk[5] + "\" is incorrectly formatted!");
+		}
+		minerAddress = firstChunk[5];
+
+		ledgerHash = parts[1].replace("{", "").replace("}", "");
+		if (ledgerHash.length() != 64 || !Utilities.isHex(ledgerHash))
+		{
+			throw new BlockFormatException("The ledger hash must be 64 hexadecimal characters!");
+		}
+
+		merkleRoot = parts[2].replace("{", "").replace("}", "");
+		if (merkleRoot.length() != 64 || !Utilities.isHex(merkleRoot))
+		{
+			throw new BlockFormatException("The merkle root must be 64 hexadecimal characters!");
+		}
+
+		blockHash = Utilities.getSHA256(previousBlockHash + ":" + merkleRoot + ":" + winningNonce);
+	}
+
+	/**
+	 * Determines whether the nonce the miner mined the block with is valid at this header's difficulty.
+	 * Gives the same result as Block.isMinerHashBelowTarget() for the full block.
+	 *
+	 * @return boolean Whether the nonce produces a hash below the target
+	 */
+	public boolean isMinerHashBelowTarget()
+	{
+		String minerHash = Utilities.getSHA256(previousBlockHash + ":" + merkleRoot + ":" + minerAddress + ":" + winningNonce);
+		BigInteger target = Block.MAXIMUM_TARGET.divide(difficulty);
+
+		return new BigInteger(minerHash, 16).compareTo(target) < 0;
+	}
+
+	/**
+	 * @return String The flat header: {timestamp:blockNum:previousBlockHash:difficulty:winningNonce:minerAddress}#{ledgerHash}#{merkleRoot}
+	 */
+	public String getFlatHeader()
+	{
+		return "{" + timestamp + ":" + blockNum + ":" + previousBlockHash + ":" + difficulty + ":" + winningNonce + ":" + minerAddress + "}#{" + ledgerHash + "}#{" + merkleRoot + "}";
+	}
+}
@@ -0,0 +1,100 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.math.BigInteger;
+
+/**
+ * A single entry in the block tree held by Blockchain. Each node points to the node of its parent block, so any
+ * chain can be walked from its tip back to the genesis block without keeping a separate copy of every fork.
+ *
+ * Nodes also carry their height, so fork choice never has to walk a chain.
+ *
+ * The full block can be released from a node once it is deep enough in the chain. The header fields needed for
+ * fork choice and difficulty calculation stay on the node, and the block itself can be read back from the block store
+ * at location.
+ * 
+ * Nodes are also used for the header chain, where only the block's header is known and block is null.
+ */
+public class BlockNode
+{
+	// The full block, or null if it has been released from memory or only the header is known
+	public Block block;
+	public final BlockHeader header;
+	public final BlockNode parent;
+	public final int height;
+
+	public final String blockHash;
+	public final long timestamp;
+	public final BigInteger difficulty;
+
+	// Where the block is kept in the block store, or null if it hasn't been written yet
+	public BlockStore.Location location = null;
+
+	// Number of blocks in the block tree which use this node as their parent
+	public int childCount = 0;
+
+	// Running totals over the most recent blocks of the chain ending at this node, used for difficulty calculation
+	public DifficultyWindow difficultyWindow = null;
+
+	// Prior ledger state of every address this block changed, set while the block is applied to the ledger
+	public BlockUndo undo = null;
+
+	/**
+	 * Constructor for BlockNode. The parent is null only for the genesis block.
+	 *
+	 * @param block The block this node holds
+	 * @param parent The node holding the previous block, or null for the genesis block
+	 */
+	public BlockNode(Block block, BlockNode parent)
+	{
+		this(block.getHeader(), parent);
+		this.block = block;
+	}
+	
+	/**
+	 * Constructor for a BlockNode which only holds a block header. The parent is null only for the genesis block.
+	 * 
+	 * @param header The header of the block this node represents
+	 * @param parent The node holding the previous block, or null for the genesis block
+	 */
+	public BlockNode(BlockHeader header, BlockNode parent)
+	{
+		this.header = header;
+		this.parent = parent;
+		this.blockHash = header.blockHash;
+		this.timestamp = header.timestamp;
+		this.difficulty = header.difficulty;
+		if (parent == null)
+		{
+			this.height = header.blockNum;
+		}
+		else
+		{
+			this.height = parent.height + 1;
+		}
+	}
+
+	/**
+	 * Determines whether the chain ending at this node should be preferred over the chain ending at the provided node.
+	 * A longer chain always wins. If both chains are the same length, the one whose last block has the higher
+	 * difficulty wins. On a complete tie, the existing chain is kept.
+	 *
+	 * @param other Tip of the chain to compare against
+	 * @return boolean Whether this chain is better than the chain ending at other
+	 */
+	public boolean isBetterThan(BlockNode other)
+	{
+		if (other == null || height > other.height)
+		{
+			return true;
+		}
+		return height == other.height && difficulty.compareTo(other.difficulty) > 0;
+	}
+}
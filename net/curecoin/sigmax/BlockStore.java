@@ -0,0 +1,587 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+import net.curecoin.sigmax.exceptions.BlockFormatException;
+
+/**
+ * Append-only storage for every block this node has accepted, split across segment files so no single file grows without
+ * bound. The first segment is blockchain.dta, followed by blockchain.1.dta, blockchain.2.dta and so on; each is a BlockFile.
+ * A new segment is started once the last one reaches MAX_SEGMENT_SIZE.
+ *
+ * Alongside the segments, blockchain.idx maps the hash and height of every stored block to its location: segment, offset and
+ * length. The index is memory-mapped and read in full when the store is opened, and every append adds one entry to it, so any
+ * stored block can be found by hash and read back with one positioned read.
+ *
+ * The segments are the authority: the index can always be rebuilt by reading them, and Blockchain does so for any block it
+ * loads that the index is missing. When the store is opened, a block left partly written at the end of the last segment is
+ * removed, along with any index entry pointing at it, so the next append starts after the last intact block.
+ */
+public class BlockStore implements Closeable
+{
+	// A segment which has reached this size is not appended to anymore
+	public static final long MAX_SEGMENT_SIZE = 128L * 1024 * 1024;
+
+	// Written at the start of the index file
+	private static final byte[] INDEX_MAGIC = {'S', 'G', 'X', 'I'};
+
+	// Block hash, height, segment, offset and length
+	private static final int INDEX_ENTRY_SIZE = 32 + 4 + 4 + 8 + 4;
+
+	private String dbFolder;
+	private ArrayList<BlockFile> segments = new ArrayList<BlockFile>();
+	private HashMap<String, Location> locationsByHash = new HashMap<String, Location>();
+	private HashMap<Integer, ArrayList<String>> hashesByHeight = new HashMap<Integer, ArrayList<String>>();
+
+	// Open for appending, or null until first needed
+	private FileChannel indexChannel = null;
+
+	/**
+	 * Where a block's record is stored.
+	 */
+	public static class Location
+	{
+		public final int segment;
+		public final long offset;
+		public final int length;
+
+		public Location(int segment, long offset, int length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public boolean equals(Object toTest)
+		{
+			if (toTest instanceof Location)
+			{
+				Location location = (Location)toTest;
+				return location.segment == segment && location.offset == offset && location.length == length;
+			}
+			return false;
+		}
+
+		public int hashCode()
+		{
+			return (int)(segment * 31 + offset * 17 + length);
+		}
+	}
+
+	/**
+	 * Opens the store in the provided folder, recovering from an interrupted append and reading the index if there is one.
+	 *
+	 * @param dbFolder The folder holding the segment and index files
+	 */
+	public BlockStore(String dbFolder)
+	{
+		this.dbFolder = dbFolder;
+		segments.add(new BlockFile(getSegmentFile(0)));
+		while (getSegmentFile(segments.size()).exists())
+		{
+			segments.add(new BlockFile(getSegmentFile(segments.size())));
+		}
+		for (int i = 0; i < segments.size(); i++)
+		{
+			try
+			{
+				// Only the last segment is appended to, so only it can be cut off safely
+				segments.get(i).recover(i == segments.size() - 1);
+			} catch (IOException e)
+			{
+				System.err.println("Unable to check " + segments.get(i).getFile() + " for damaged blocks.");
+				e.printStackTrace();
+			}
+		}
+		if (readIndex() > 0)
+		{
+			// Entries for removed blocks would otherwise point at whatever is appended in their place
+			try
+			{
+				writeIndex();
+			} catch (IOException e)
+			{
+				System.err.println("Unable to rewrite the block index, it will be rebuilt.");
+				e.printStackTrace();
+				getIndexFile().delete();
+			}
+		}
+	}
+
+	private File getSegmentFile(int segment)
+	{
+		return new File(dbFolder + (segment == 0 ? "/blockchain.dta" : "/blockchain." + segment + ".dta"));
+	}
+
+	private File getIndexFile()
+	{
+		return new File(dbFolder + "/blockchain.idx");
+	}
+
+	/**
+	 * Reads every entry of the index file into memory. Entries pointing outside of the segments, and a partly written entry
+	 * at the end, are ignored.
+	 *
+	 * @return int The number of entries ignored because they point outside of the segments
+	 */
+	private int readIndex()
+	{
+		File indexFile = getIndexFile();
+		int dropped = 0;
+		if (!indexFile.exists())
+		{
+			return dropped;
+		}
+		// The magic is checked before the file is mapped, so an index in an unknown format can be deleted once it is closed
+		boolean unknownFormat = false;
+		try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ))
+		{
+			ByteBuffer magic = ByteBuffer.allocate(INDEX_MAGIC.length);
+			int read = 0;
+			while (magic.hasRemaining() && read >= 0)
+			{
+				read = channel.read(magic, magic.position());
+			}
+			if (magic.hasRemaining())
+			{
+				return dropped;
+			}
+			if (!Arrays.equals(magic.array(), INDEX_MAGIC))
+			{
+				unknownFormat = true;
+			}
+			else
+			{
+				dropped = readIndexEntries(channel);
+			}
+		} catch (IOException e)
+		{
+			System.err.println("Unable to read the block index, it will be rebuilt.");
+			e.printStackTrace();
+		}
+		if (unknownFormat)
+		{
+			System.err.println("The block index is not in a known format, and will be rebuilt.");
+			indexFile.delete();
+		}
+		return dropped;
+	}
+
+	/**
+	 * Reads the entries following the magic of an index file.
+	 *
+	 * @return int The number of entries ignored because they point outside of the segments
+	 */
+	private int readIndexEntries(FileChannel channel) throws IOException
+	{
+		int dropped = 0;
+		MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, INDEX_MAGIC.length, channel.size() - INDEX_MAGIC.length);
+		long[] segmentSizes = new long[segments.size()];
+		for (int i = 0; i < segmentSizes.length; i++)
+		{
+			segmentSizes[i] = segments.get(i).size();
+		}
+		byte[] hash = new byte[32];
+		while (index.remaining() >= INDEX_ENTRY_SIZE)
+		{
+			index.get(hash);
+			int height = index.getInt();
+			Location location = new Location(index.getInt(), index.getLong(), index.getInt());
+			if (location.segment >= 0 && location.segment < segmentSizes.length && location.offset + location.length <= segmentSizes[location.segment])
+			{
+				putLocation(DatatypeConverter.printHexBinary(hash), height, location);
+			}
+			else
+			{
+				dropped++;
+			}
+		}
+		return dropped;
+	}
+
+	/**
+	 * Replaces the index file with the entries currently in memory.
+	 */
+	private void writeIndex() throws IOException
+	{
+		if (indexChannel != null)
+		{
+			indexChannel.close();
+			indexChannel = null;
+		}
+		File indexFile = getIndexFile();
+		File newIndexFile = new File(indexFile.getPath() + ".new");
+		try (FileChannel channel = FileChannel.open(newIndexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			long position = 0;
+			writeFully(channel, ByteBuffer.wrap(INDEX_MAGIC), position);
+			position += INDEX_MAGIC.length;
+			for (Map.Entry<Integer, ArrayList<String>> height : hashesByHeight.entrySet())
+			{
+				for (String blockHash : height.getValue())
+				{
+					writeFully(channel, getIndexEntry(blockHash, height.getKey(), locationsByHash.get(blockHash)), position);
+					position += INDEX_ENTRY_SIZE;
+				}
+			}
+			channel.force(false);
+		}
+		Files.move(newIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void putLocation(String blockHash, int height, Location location)
+	{
+		if (locationsByHash.put(blockHash, location) == null)
+		{
+			ArrayList<String> hashes = hashesByHeight.get(height);
+			if (hashes == null)
+			{
+				hashes = new ArrayList<String>();
+				hashesByHeight.put(height, hashes);
+			}
+			hashes.add(blockHash);
+		}
+	}
+
+	/**
+	 * Adds a block to the index, unless it is already there at the same location.
+	 *
+	 * @param blockHash The hash of the block
+	 * @param height The block number
+	 * @param location Where the block is stored
+	 */
+	public void index(String blockHash, int height, Location location) throws IOException
+	{
+		if (location.equals(locationsByHash.get(blockHash)))
+		{
+			return;
+		}
+		if (indexChannel == null)
+		{
+			File indexFile = getIndexFile();
+			boolean newIndex = indexFile.length() < INDEX_MAGIC.length;
+			indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if (newIndex)
+			{
+				indexChannel.truncate(0);
+				writeFully(indexChannel, ByteBuffer.wrap(INDEX_MAGIC), 0);
+			}
+		}
+		// A partly written entry from an interrupted append is overwritten
+		long size = indexChannel.size();
+		long end = size - (size - INDEX_MAGIC.length) % INDEX_ENTRY_SIZE;
+		writeFully(indexChannel, getIndexEntry(blockHash, height, location), end);
+		putLocation(blockHash, height, location);
+	}
+
+	private static ByteBuffer getIndexEntry(String blockHash, int height, Location location)
+	{
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		entry.put(DatatypeConverter.parseHexBinary(blockHash));
+		entry.putInt(height);
+		entry.putInt(location.segment);
+		entry.putLong(location.offset);
+		entry.putInt(location.length);
+		entry.flip();
+		return entry;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/**
+	 * @param blockHash The hash of the block to find
+	 * @return Location Where the block is stored, or null if it isn't in the index
+	 */
+	public Location getLocation(String blockHash)
+	{
+		return locationsByHash.get(blockHash);
+	}
+
+	/**
+	 * @param height A block number
+	 * @return ArrayList<String> The hashes of every stored block at that height, which is more than one if there were forks
+	 */
+	public ArrayList<String> getHashesAtHeight(int height)
+	{
+		ArrayList<String> hashes = hashesByHeight.get(height);
+		return hashes == null ? new ArrayList<String>() : new ArrayList<String>(hashes);
+	}
+
+	/**
+	 * @return boolean Whether any segment is still in the format of an older version, without checksummed records
+	 */
+	public boolean hasOlderFormatSegments() throws IOException
+	{
+		for (BlockFile segment : segments)
+		{
+			if (segment.isOlderFormat())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Stores a block at the end of the last segment, starting a new segment first if the last one is full, and indexes it.
+	 *
+	 * @param rawBlock The raw text block
+	 * @param blockHash The hash of the block
+	 * @param height The block number
+	 * @return Location Where the block was stored
+	 */
+	public Location append(String rawBlock, String blockHash, int height) throws IOException
+	{
+		BlockFile segment = segments.get(segments.size() - 1);
+		if (segment.size() >= MAX_SEGMENT_SIZE)
+		{
+			segment.sync();
+			segment.close();
+			segment = new BlockFile(getSegmentFile(segments.size()));
+			segments.add(segment);
+		}
+		long offset = segment.append(rawBlock);
+		Location location = new Location(segments.size() - 1, offset, (int)(segment.size() - offset));
+		index(blockHash, height, location);
+		return location;
+	}
+
+	/**
+	 * Forces every block appended so far, and its index entry, to disk. Until then an append may be lost in a crash.
+	 */
+	public void sync() throws IOException
+	{
+		segments.get(segments.size() - 1).sync();
+		if (indexChannel != null)
+		{
+			indexChannel.force(false);
+		}
+	}
+
+	/**
+	 * Reads a block back with one positioned read.
+	 *
+	 * @param location Where the block is stored
+	 * @return String The raw text block
+	 * @throws BlockFormatException When the record can't be decoded
+	 */
+	public String read(Location location) throws IOException, BlockFormatException
+	{
+		return segments.get(location.segment).readAt(location.offset, location.length);
+	}
+
+	/**
+	 * Opens the store for reading every record, segment by segment, in the order they were written.
+	 *
+	 * @return Reader A reader positioned at the first record
+	 */
+	public Reader openReader() throws IOException
+	{
+		return new Reader();
+	}
+
+	/**
+	 * Reads every record of every segment in order, keeping track of where each record is stored.
+	 */
+	public class Reader implements Closeable
+	{
+		private int segment = 0;
+		private BlockFile.Reader segmentReader;
+
+		private Reader() throws IOException
+		{
+			segmentReader = segments.get(0).openReader();
+		}
+
+		/**
+		 * Reads the next record.
+		 *
+		 * @return String The raw text block, or null after the last record of the last segment
+		 * @throws BlockFormatException When a binary record can't be decoded
+		 */
+		public String next() throws IOException, BlockFormatException
+		{
+			while (true)
+			{
+				String rawBlock = segmentReader.next();
+				if (rawBlock != null || segment == segments.size() - 1)
+				{
+					return rawBlock;
+				}
+				segmentReader.close();
+				segment++;
+				segmentReader = segments.get(segment).openReader();
+			}
+		}
+
+		/**
+		 * @return Location Where the record most recently returned by next() is stored
+		 */
+		public Location getLocation()
+		{
+			return new Location(segment, segmentReader.getRecordOffset(), segmentReader.getRecordLength());
+		}
+
+		public void close() throws IOException
+		{
+			segmentReader.close();
+		}
+	}
+
+	/**
+	 * Starts replacing every segment and the index, with checksummed records. Nothing is replaced until Rewriter.commit(), so blocks
+	 * can still be read from the old segments until then.
+	 *
+	 * @return Rewriter The writer for the new segments
+	 */
+	public Rewriter startRewrite() throws IOException
+	{
+		return new Rewriter();
+	}
+
+	/**
+	 * Writes replacements for the segments and the index.
+	 */
+	public class Rewriter implements Closeable
+	{
+		private ArrayList<BlockFile> newSegments = new ArrayList<BlockFile>();
+		private ArrayList<BlockFile.Rewriter> rewriters = new ArrayList<BlockFile.Rewriter>();
+		private ByteBuffer newIndex = ByteBuffer.allocate(1024);
+
+		private Rewriter() throws IOException
+		{
+			startSegment();
+			putIndex(ByteBuffer.wrap(INDEX_MAGIC));
+		}
+
+		private void startSegment() throws IOException
+		{
+			int segment = newSegments.size();
+			BlockFile file = segment < segments.size() ? segments.get(segment) : new BlockFile(getSegmentFile(segment));
+			newSegments.add(file);
+			rewriters.add(file.startRewrite());
+		}
+
+		private void putIndex(ByteBuffer data)
+		{
+			if (newIndex.remaining() < data.remaining())
+			{
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(newIndex.capacity() * 2, newIndex.position() + data.remaining()));
+				newIndex.flip();
+				larger.put(newIndex);
+				newIndex = larger;
+			}
+			newIndex.put(data);
+		}
+
+		/**
+		 * @param rawBlock The raw text block to write next
+		 * @param blockHash The hash of the block
+		 * @param height The block number
+		 * @return Location Where the block will be stored once the rewrite is committed
+		 */
+		public Location write(String rawBlock, String blockHash, int height) throws IOException
+		{
+			if (rewriters.get(rewriters.size() - 1).size() >= MAX_SEGMENT_SIZE)
+			{
+				startSegment();
+			}
+			BlockFile.Rewriter rewriter = rewriters.get(rewriters.size() - 1);
+			long offset = rewriter.write(rawBlock);
+			Location location = new Location(rewriters.size() - 1, offset, rewriter.getLastRecordLength());
+			putIndex(getIndexEntry(blockHash, height, location));
+			return location;
+		}
+
+		/**
+		 * Replaces the old segments and index with the new ones. Locations from before the rewrite are no longer valid afterwards.
+		 */
+		public void commit() throws IOException
+		{
+			if (indexChannel != null)
+			{
+				indexChannel.close();
+				indexChannel = null;
+			}
+			File indexFile = getIndexFile();
+			File newIndexFile = new File(indexFile.getPath() + ".new");
+			try (FileChannel channel = FileChannel.open(newIndexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				newIndex.flip();
+				writeFully(channel, newIndex, 0);
+				channel.force(false);
+			}
+
+			for (BlockFile.Rewriter rewriter : rewriters)
+			{
+				rewriter.commit();
+			}
+			for (int i = newSegments.size(); i < segments.size(); i++)
+			{
+				segments.get(i).close();
+				segments.get(i).getFile().delete();
+			}
+			segments = newSegments;
+			Files.move(newIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			locationsByHash.clear();
+			hashesByHeight.clear();
+			readIndex();
+		}
+
+		/**
+		 * Abandons the new segments if they weren't committed.
+		 */
+		public void close() throws IOException
+		{
+			for (BlockFile.Rewriter rewriter : rewriters)
+			{
+				rewriter.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes every open file. They are opened again if the store is used afterwards.
+	 */
+	public void close() throws IOException
+	{
+		for (BlockFile segment : segments)
+		{
+			segment.close();
+		}
+		if (indexChannel != null)
+		{
+			indexChannel.close();
+			indexChannel = null;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Records the state every address had in the ledger before a block's transactions and mining reward were applied.
+ * Restoring these values undoes the block exactly, without having to re-run its transactions backwards.
+ *
+ * Only the first change to each address is recorded, as that holds the value from before the block.
+ */
+public class BlockUndo
+{
+	public final int previousLastBlockNum;
+
+	private LinkedHashMap<String, PriorState> priorStates = new LinkedHashMap<String, PriorState>();
+
+	/**
+	 * The state of one address before the block. A null balance or signature count means the address had no entry,
+	 * and an order of -1 means the address was not listed in the ledger.
+	 */
+	public static class PriorState
+	{
+		public final String address;
+		public final Long balance;
+		public final Integer signatureCount;
+		public final long order;
+
+		public PriorState(String address, Long balance, Integer signatureCount, long order)
+		{
+			this.address = address;
+			this.balance = balance;
+			this.signatureCount = signatureCount;
+			this.order = order;
+		}
+	}
+
+	/**
+	 * @param previousLastBlockNum The last block applied to the ledger before this block
+	 */
+	public BlockUndo(int previousLastBlockNum)
+	{
+		this.previousLastBlockNum = previousLastBlockNum;
+	}
+
+	/**
+	 * @param address The address to check
+	 * @return boolean Whether the prior state of address has already been recorded
+	 */
+	public boolean hasPriorState(String address)
+	{
+		return priorStates.containsKey(address);
+	}
+
+	/**
+	 * Records the state of an address before its first change in this block. Later calls for the same address are ignored.
+	 */
+	public void recordPriorState(String address, Long balance, Integer signatureCount, long order)
+	{
+		if (!priorStates.containsKey(address))
+		{
+			priorStates.put(address, new PriorState(address, balance, signatureCount, order));
+		}
+	}
+
+	/**
+	 * @return ArrayList<PriorState> The recorded states, in the order the addresses were first changed
+	 */
+	public ArrayList<PriorState> getPriorStates()
+	{
+		return new ArrayList<PriorState>(priorStates.values());
+	}
+}
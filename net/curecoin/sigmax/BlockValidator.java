@@ -0,0 +1,383 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * First stage of block validation. Everything that can be checked about a block without knowing the rest of the blockchain is
+ * checked here, on a pool of worker threads: block and transaction formatting, address formatting, the block's proof-of-work,
+ * and the signature of every transaction. Each transaction signature is verified as its own task, so a single large block is
+ * spread across all cores as well.
+ *
+ * Signatures are by far the most expensive part, so they are only verified once the cheap checks have passed. If a HeaderCheck
+ * is set, the block's header must also fit on the known chain (for example, carry the right difficulty) before any signature is
+ * verified, so a peer can't make this node do signature work for a block with no real proof-of-work behind it. A block whose
+ * parent is neither known to the HeaderCheck nor ahead of it in the queue comes back out with its signatures unverified, and
+ * they are verified only if the block ever connects; a made-up parent hash then costs no signature work.
+ *
+ * Blocks come back out in the same order they were submitted, so the second stage (adding blocks to the Blockchain, which
+ * updates the ledger and resolves forks) can run on a single thread and see blocks in the order they arrived.
+ *
+ * submit(), pollValidated() and takeValidated() must all be called from the same thread, which is also the thread the
+ * HeaderCheck is called on.
+ */
+public class BlockValidator
+{
+	private ExecutorService workers;
+
+	private HeaderCheck headerCheck = null;
+
+	/**
+	 * Checks a block's header against the blockchain, before the block's signatures are verified.
+	 */
+	public interface HeaderCheck
+	{
+		/**
+		 * @param header The header of a block which has passed its own proof-of-work
+		 * @return String Why the block should be rejected, or null if it is worth verifying further
+		 */
+		String checkHeader(BlockHeader header);
+
+		/**
+		 * @param header The header of a block which passed checkHeader()
+		 * @return boolean Whether the block's parent is known, so its signatures are worth verifying now
+		 */
+		boolean isParentKnown(BlockHeader header);
+	}
+
+	// Submitted blocks in submission order, including those still being validated
+	private ArrayDeque<PendingBlock> pendingBlocks = new ArrayDeque<PendingBlock>();
+
+	/**
+	 * A block going through validation. Once finished, it holds either the parsed block or the reason it was rejected.
+	 */
+	public static class PendingBlock
+	{
+		public final String rawBlock;
+
+		private volatile Block block = null;
+		private volatile String rejectionReason = null;
+		private volatile boolean finished = false;
+		private volatile boolean awaitingHeaderCheck = false;
+		private volatile boolean signaturesVerified = false;
+		private AtomicInteger unverifiedSignatures = new AtomicInteger();
+
+		private PendingBlock(String rawBlock)
+		{
+			this.rawBlock = rawBlock;
+		}
+
+		public boolean isFinished()
+		{
+			return finished;
+		}
+
+		/**
+		 * @return boolean Whether the block passed every check. Only meaningful once the block is finished.
+		 */
+		public boolean isValid()
+		{
+			return rejectionReason == null && block != null;
+		}
+
+		/**
+		 * @return Block The parsed block, only to be used if isValid()
+		 */
+		public Block getBlock()
+		{
+			return block;
+		}
+
+		/**
+		 * @return boolean Whether every transaction signature was verified, or was submitted as already verified. A valid
+		 *         block whose parent wasn't known comes back without, and must have its signatures verified before it is added.
+		 */
+		public boolean hasVerifiedSignatures()
+		{
+			return signaturesVerified;
+		}
+
+		/**
+		 * @return String Why the block was rejected, or null if it wasn't
+		 */
+		public String getRejectionReason()
+		{
+			return rejectionReason;
+		}
+	}
+
+	/**
+	 * Creates a BlockValidator with one worker thread per available core.
+	 */
+	public BlockValidator()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads The number of worker threads to validate with
+	 */
+	public BlockValidator(int threads)
+	{
+		workers = Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "BlockValidator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets the check every block's header must pass before its signatures are verified.
+	 *
+	 * @param headerCheck The check, called on the thread which polls for validated blocks
+	 */
+	public void setHeaderCheck(HeaderCheck headerCheck)
+	{
+		this.headerCheck = headerCheck;
+	}
+
+	/**
+	 * Queues a raw block for validation.
+	 *
+	 * @param rawBlock The String holding all of the raw block data
+	 */
+	public void submit(String rawBlock)
+	{
+		submit(rawBlock, true);
+	}
+	
+	/**
+	 * Queues a raw block for validation, optionally skipping transaction signatures. Signatures should only be skipped for
+	 * blocks which have already been fully validated by this node.
+	 *
+	 * @param rawBlock The String holding all of the raw block data
+	 * @param verifySignatures Whether to verify the signature of every transaction
+	 */
+	public void submit(String rawBlock, final boolean verifySignatures)
+	{
+		final PendingBlock pending = new PendingBlock(rawBlock);
+		pendingBlocks.add(pending);
+		workers.execute(new Runnable()
+		{
+			public void run()
+			{
+				validate(pending, verifySignatures);
+			}
+		});
+	}
+
+	/**
+	 * Returns the oldest submitted block if it has finished validation, without waiting.
+	 *
+	 * @return PendingBlock The oldest submitted block, or null if there is none or it is still being validated
+	 */
+	public PendingBlock pollValidated()
+	{
+		checkHeaders();
+		PendingBlock head = pendingBlocks.peek();
+		if (head == null || !head.isFinished())
+		{
+			return null;
+		}
+		return pendingBlocks.poll();
+	}
+
+	/**
+	 * Returns the oldest submitted block, waiting for it to finish validation if needed.
+	 *
+	 * @return PendingBlock The oldest submitted block, or null if there is none
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public PendingBlock takeValidated() throws InterruptedException
+	{
+		PendingBlock head = pendingBlocks.peek();
+		if (head == null)
+		{
+			return null;
+		}
+		synchronized (this)
+		{
+			while (!head.isFinished())
+			{
+				checkHeaders();
+				if (!head.isFinished())
+				{
+					wait();
+				}
+			}
+		}
+		return pendingBlocks.poll();
+	}
+
+	/**
+	 * @return int The number of submitted blocks which haven't been taken back out yet
+	 */
+	public int getPendingCount()
+	{
+		return pendingBlocks.size();
+	}
+
+	/**
+	 * Stops the worker threads once all queued work is done.
+	 */
+	public void shutdown()
+	{
+		workers.shutdown();
+	}
+
+	/**
+	 * Parses the block and checks its proof-of-work. The block then waits for its header to be checked, if needed, before its
+	 * signatures are verified.
+	 */
+	private void validate(final PendingBlock pending, boolean verifySignatures)
+	{
+		Block block;
+		try
+		{
+			block = new Block(pending.rawBlock, false);
+		} catch (Exception e)
+		{
+			pending.rejectionReason = "Incorrectly formatted: " + e.getMessage();
+			finish(pending);
+			return;
+		}
+
+		// A block's own target only means something if its difficulty could be valid on some chain
+		if (block.difficulty.compareTo(Utilities.MINIMUM_DIFFICULTY) < 0)
+		{
+			pending.rejectionReason = "Block #" + block.blockNum + " with the hash of " + block.blockHash + " has a difficulty below the minimum.";
+			finish(pending);
+			return;
+		}
+
+		if (!block.isMinerHashBelowTarget())
+		{
+			pending.rejectionReason = "Block #" + block.blockNum + " with the hash of " + block.blockHash + " is not below its own target.";
+			finish(pending);
+			return;
+		}
+
+		pending.block = block;
+		if (!verifySignatures || block.transactions.size() == 0)
+		{
+			pending.signaturesVerified = true;
+			finish(pending);
+		}
+		else if (headerCheck == null)
+		{
+			verifySignatures(pending);
+		}
+		else
+		{
+			pending.awaitingHeaderCheck = true;
+			synchronized (this)
+			{
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Runs the header check for every block which is waiting on it, and starts verifying the signatures of those which pass
+	 * and build on a known block or on a block ahead of them in the queue. A block which builds on neither is finished with its
+	 * signatures unverified, once every block ahead of it is parsed, so it can't be waiting on one of them. Called on the
+	 * polling thread.
+	 */
+	private void checkHeaders()
+	{
+		// The blocks ahead in the queue which haven't been rejected, and whether any ahead isn't parsed yet
+		HashSet<String> aheadHashes = new HashSet<String>();
+		boolean aheadUnparsed = false;
+		for (PendingBlock pending : pendingBlocks)
+		{
+			if (pending.awaitingHeaderCheck)
+			{
+				BlockHeader header = pending.block.getHeader();
+				String rejectionReason = headerCheck.checkHeader(header);
+				if (rejectionReason == null && aheadHashes.contains(header.blockHash))
+				{
+					rejectionReason = "Block #" + header.blockNum + " with the hash of " + header.blockHash + " is already being validated.";
+				}
+				if (rejectionReason != null)
+				{
+					pending.awaitingHeaderCheck = false;
+					pending.rejectionReason = rejectionReason;
+					finish(pending);
+				}
+				else if (headerCheck.isParentKnown(header) || aheadHashes.contains(header.previousBlockHash))
+				{
+					pending.awaitingHeaderCheck = false;
+					verifySignatures(pending);
+				}
+				else if (!aheadUnparsed)
+				{
+					pending.awaitingHeaderCheck = false;
+					finish(pending);
+				}
+				// Otherwise its parent may be ahead and not parsed yet, so it is checked again on a later call
+			}
+			Block block = pending.block;
+			if (block == null)
+			{
+				aheadUnparsed |= !pending.finished;
+			}
+			else if (pending.rejectionReason == null)
+			{
+				aheadHashes.add(block.blockHash);
+			}
+		}
+	}
+
+	/**
+	 * Hands each transaction signature of a parsed block to the workers to verify. The block is finished once all of them are.
+	 */
+	private void verifySignatures(final PendingBlock pending)
+	{
+		Block block = pending.block;
+		pending.unverifiedSignatures.set(block.transactions.size());
+		for (final Transaction transaction : block.transactions)
+		{
+			workers.execute(new Runnable()
+			{
+				public void run()
+				{
+					// Once one signature has failed, the rest don't need to be checked
+					if (pending.rejectionReason == null && !transaction.hasValidSignature())
+					{
+						pending.rejectionReason = "Transaction from " + transaction.getSourceAddress() + " is not accompanied by a valid signature!";
+					}
+					if (pending.unverifiedSignatures.decrementAndGet() == 0)
+					{
+						pending.signaturesVerified = pending.rejectionReason == null;
+						finish(pending);
+					}
+				}
+			});
+		}
+	}
+
+	private void finish(PendingBlock pending)
+	{
+		pending.finished = true;
+		synchronized (this)
+		{
+			notifyAll();
+		}
+	}
+}
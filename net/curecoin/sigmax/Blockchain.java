@@ -8,12 +8,19 @@ package net.curecoin.sigmax;
  * Supports Java 1.7+
  */
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Scanner;
+
+import net.curecoin.sigmax.exceptions.BlockFormatException;
 
 /**
  * This class facilitates blockchain organization. Addition of a block automatically
@@ -23,288 +30,1166 @@ import java.util.ArrayList;
  * object will return information pertaining to the largest chain. If two chains exist of equal length, then the one with
  * the higher PoW difficulty is the "longest."
  * 
+ * Blocks are held in a tree: every block is indexed by its hash, and points to the node of its parent. Forks share all
+ * of their blocks up to the forking point, and the longest chain is additionally indexed by block number.
+ * 
+ * Headers can be added ahead of their blocks. They are checked for proof-of-work and difficulty and held in a header tree
+ * which grows on top of the block tree, and the best header chain decides which blocks are worth downloading.
+ * 
+ * checkpoint.dta holds the number of records in the blockchain file, the hash of the last one this node validated, and
+ * which of them failed validation. On restart, the other records covered by the checkpoint skip signature verification,
+ * since the checksum each record is framed with shows it is still what this node wrote. A reindex ignores the checkpoint
+ * and verifies every block.
+ * 
+ * Blocks are written to a BlockStore, which indexes each by hash and height, and every node remembers where its block is
+ * stored. When created with a block cache size, only the most recent chainCutoff blocks of the longest chain are held in
+ * memory in full. Older blocks are read back from the store when needed, through a least-recently-used cache, and are sent
+ * to peers straight from the store without being parsed.
+ * 
+ * New blocks, the checkpoint and the ledger are committed together, as often as the CommitPolicy asks.
+ * Each commit forces the blocks to disk before writing the ledger, so the ledger on disk never runs ahead of its blocks.
+ * 
+ * The transactions of the longest chain are indexed by address in an AddressHistoryIndex and by transaction ID in a
+ * TransactionIndex. Both follow the longest chain as blocks join and leave it.
  * 
  */
 
-public class Blockchain
+public class Blockchain implements BlockValidator.HeaderCheck, ChainIndex.BlockSource
 {
 	private static final long BLOCK_MINING_REWARD = 5_000_000_000L;
 	
 	private static final int BLOCK_HISTORY_FOR_DIFFICULTY = 100;
 	
+	// The number of blocks from the blockchain file which can be validating at once while loading
+	private static final int MAX_BLOCKS_VALIDATING_ON_LOAD = 256;
+	
 	// The number of recent blocks to store
 	private int chainCutoff = 500;
 	
-	private ArrayList<ArrayList<Block>> chains = new ArrayList<ArrayList<Block>>();
-	private ArrayList<Block> blockQueue = new ArrayList<Block>();
+	// Every block in the tree, indexed by block hash
+	private HashMap<String, BlockNode> blockIndex = new HashMap<String, BlockNode>();
+	// Nodes without any children; the last block of every chain
+	private HashSet<BlockNode> tips = new HashSet<BlockNode>();
+	// The longest chain, indexed by block number
+	private ArrayList<BlockNode> mainChain = new ArrayList<BlockNode>();
+	private BlockNode bestTip;
+	// The lowest height of the longest chain whose undo record and block haven't been released yet
+	private int unreleasedHeight = 0;
+	
+	// Headers whose blocks haven't been added to the block tree yet, indexed by block hash
+	private HashMap<String, BlockNode> headerIndex = new HashMap<String, BlockNode>();
+	// The best chain of known headers, indexed by block number. Heights whose block has been added hold the block tree node.
+	private ArrayList<BlockNode> headerChain = new ArrayList<BlockNode>();
+	private BlockNode bestHeaderTip;
+	
+	// Blocks waiting for their parent block to arrive
+	private OrphanBlockPool orphanPool = new OrphanBlockPool();
+	
+	// Blocks read back from the blockchain file; null unless old blocks are released from memory
+	private BlockCache blockCache = null;
+	
+	// Number of records in the blockchain file, the hash of the last one which passed validation, and the records which failed
+	private int recordCount = 0;
+	private String lastVerifiedHash = null;
+	private ArrayList<Integer> invalidRecords = new ArrayList<Integer>();
 	
 	private LedgerManager ledgerManager;
 	
 	private String dbFolder;
 	
+	private BlockStore blockStore;
+	
+	// The transactions of the longest chain, by address and by transaction ID
+	private AddressHistoryIndex historyIndex;
+	private TransactionIndex transactionIndex;
+	
+	// When added blocks and ledger changes are committed to disk
+	private CommitPolicy commitPolicy = CommitPolicy.EVERY_BLOCK;
+	// Blocks added since the last commit, when the first of them was added, and how many of them were written to the store
+	private int uncommittedBlocks = 0;
+	private long uncommittedSince = 0;
+	private int uncommittedRecords = 0;
+	
 	public Blockchain(String dbFolder)
 	{
-		this.dbFolder = dbFolder;
-		this.ledgerManager = new LedgerManager(dbFolder + "/AccountBalances.bal");
+		this(dbFolder, false);
+	}
+	
+	/**
+	 * @param dbFolder The folder holding the blockchain and ledger files
+	 * @param mappedLedger Whether to keep the ledger's accounts in a memory-mapped table instead of on the heap. The table is
+	 *        kept between runs, so after a clean shutdown the ledger doesn't have to be read from its snapshot.
+	 */
+	public Blockchain(String dbFolder, boolean mappedLedger)
+	{
+		this.dbFolder = dbFolder;
+		this.blockStore = new BlockStore(dbFolder);
+		this.historyIndex = new AddressHistoryIndex(dbFolder + "/history.idx");
+		this.transactionIndex = new TransactionIndex(dbFolder + "/transactions.idx");
+		historyIndex.setBlockSource(this);
+		transactionIndex.setBlockSource(this);
+		AccountStore accountStore = new HeapAccountStore();
+		if (mappedLedger)
+		{
+			try
+			{
+				accountStore = new MappedAccountStore(dbFolder + "/AccountBalances.map");
+			} catch (IOException e)
+			{
+				System.out.println("ERROR: UNABLE TO OPEN THE ACCOUNT TABLE! Keeping the ledger on the heap instead.");
+				e.printStackTrace();
+			}
+		}
+		this.ledgerManager = new LedgerManager(dbFolder + "/AccountBalances.bal", accountStore);
+	}
+	
+	public Blockchain(String dbFolder, int chainCutoff)
+	{
+		this(dbFolder);
+		this.chainCutoff = chainCutoff;
+	}
+	
+	/**
+	 * Creates a Blockchain which only holds the most recent chainCutoff blocks of the longest chain in memory. Older blocks
+	 * are read from the blockchain file on demand, and the most recently used of them are kept in a cache.
+	 * 
+	 * @param dbFolder The folder holding the blockchain and ledger files
+	 * @param chainCutoff The number of recent blocks to keep in memory
+	 * @param blockCacheSize The number of older blocks to cache after reading them from the blockchain file
+	 */
+	public Blockchain(String dbFolder, int chainCutoff, int blockCacheSize)
+	{
+		this(dbFolder, chainCutoff, blockCacheSize, false);
+	}
+	
+	/**
+	 * @param dbFolder The folder holding the blockchain and ledger files
+	 * @param chainCutoff The number of recent blocks to keep in memory
+	 * @param blockCacheSize The number of older blocks to cache after reading them from the blockchain file
+	 * @param mappedLedger Whether to keep the ledger's accounts in a memory-mapped table instead of on the heap
+	 */
+	public Blockchain(String dbFolder, int chainCutoff, int blockCacheSize, boolean mappedLedger)
+	{
+		this(dbFolder, mappedLedger);
+		this.chainCutoff = chainCutoff;
+		this.blockCache = new BlockCache(blockCacheSize);
+	}
+	
+	/**
+	 * Reads every block from the blockchain file and adds it to the blockchain. Each block's position in the file
+	 * is remembered, so the block can be read back later if it is released from memory.
+	 * 
+	 * Blocks are validated in parallel by the provided validator, and added to the blockchain in file order. Unless
+	 * reindexing, records below the checkpoint which didn't fail validation were validated by this node before they were written,
+	 * so their signatures aren't verified again. Each binary record's own checksum is checked as it is read, so a damaged record
+	 * is never trusted. Records in an older format have no checksum, so they are all verified. Proof-of-work and formatting are
+	 * always checked.
+	 * 
+	 * @param validator The validator to check blocks with
+	 * @param reindex Whether to verify every block in full, ignoring the checkpoint
+	 */
+	public void loadFromFile(BlockValidator validator, boolean reindex)
+	{
+		int trustedRecords = 0;
+		HashSet<Integer> untrustedRecords = new HashSet<Integer>();
+		String checkpointHash = null;
+		if (!reindex)
+		{
+			try (Scanner scan = new Scanner(new File(dbFolder + "/checkpoint.dta")))
+			{
+				checkpointHash = scan.nextLine().trim();
+				trustedRecords = Integer.parseInt(scan.nextLine().trim());
+				while (scan.hasNextLine())
+				{
+					String line = scan.nextLine().trim();
+					if (line.length() > 0)
+					{
+						untrustedRecords.add(Integer.parseInt(line));
+					}
+				}
+				if (blockStore.getLocation(checkpointHash) == null)
+				{
+					System.err.println("[WARNING] The checkpoint block " + checkpointHash + " was not found in the blockchain file. Consider restarting with -reindex.");
+					trustedRecords = 0;
+				}
+				else if (blockStore.hasOlderFormatSegments())
+				{
+					trustedRecords = 0;
+				}
+			} catch (Exception e)
+			{
+				System.out.println("No usable checkpoint, verifying every block in the blockchain file.");
+				trustedRecords = 0;
+			}
+		}
+		
+		int records = 0;
+		invalidRecords.clear();
+		ArrayDeque<BlockStore.Location> validatingLocations = new ArrayDeque<BlockStore.Location>();
+		try (BlockStore.Reader reader = blockStore.openReader())
+		{
+			while (true)
+			{
+				String rawBlock;
+				try
+				{
+					rawBlock = reader.next();
+				} catch (BlockFormatException e)
+				{
+					// The record's length was intact, so the following records can still be read
+					System.err.println("Unable to decode a block from file: " + e.getMessage());
+					while (validator.getPendingCount() > 0)
+					{
+						addValidatedBlockFromFile(validator.takeValidated(), validatingLocations.poll(), records++);
+					}
+					invalidRecords.add(records++);
+					continue;
+				}
+				if (rawBlock == null)
+				{
+					break;
+				}
+				
+				System.out.println("Pulling a block from file...");
+				int record = records + validatingLocations.size();
+				boolean trusted = record < trustedRecords && !untrustedRecords.contains(record);
+				validator.submit(rawBlock, !trusted);
+				validatingLocations.add(reader.getLocation());
+				while (validator.getPendingCount() >= MAX_BLOCKS_VALIDATING_ON_LOAD)
+				{
+					addValidatedBlockFromFile(validator.takeValidated(), validatingLocations.poll(), records++);
+				}
+			}
+			while (validator.getPendingCount() > 0)
+			{
+				addValidatedBlockFromFile(validator.takeValidated(), validatingLocations.poll(), records++);
+			}
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		
+		// Blocks the indexes hold past the end of the loaded chain were lost before they were committed
+		disconnectIndexes(mainChain.size());
+		
+		try
+		{
+			if (blockStore.hasOlderFormatSegments() && blockIndex.size() > 0)
+			{
+				System.out.println("Converting the blockchain file to the current format...");
+				saveToFile(); // Also records the checkpoint for the converted file
+				commitWrites();
+				return;
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		
+		// Every record has now been validated, so the next start can trust all of them
+		recordCount = records;
+		writeCheckpoint();
+		commitWrites();
+	}
+	
+	/**
+	 * Adds a validated block from the blockchain file, or notes that its record failed validation.
+	 */
+	private void addValidatedBlockFromFile(BlockValidator.PendingBlock validated, BlockStore.Location location, int record)
+	{
+		if (validated.isValid())
+		{
+			Block fromDatabase = validated.getBlock();
+			System.out.println("Add block: " + fromDatabase.blockNum + "?: " + addBlockAndSave(fromDatabase, true, location, validated.hasVerifiedSignatures()));
+			lastVerifiedHash = fromDatabase.blockHash;
+			try
+			{
+				// Index entries lost to a crash between writing a block and indexing it are restored here
+				blockStore.index(fromDatabase.blockHash, fromDatabase.blockNum, location);
+			} catch (IOException e)
+			{
+				System.err.println("Unable to index block #" + fromDatabase.blockNum + ": " + e.getMessage());
+			}
+		}
+		else
+		{
+			System.err.println("Unable to load a block from file: " + validated.getRejectionReason());
+			invalidRecords.add(record);
+		}
+	}
+	
+	/**
+	 * Records that every record in the blockchain file has been validated by this node, ending at the block with lastVerifiedHash,
+	 * and which of them failed.
+	 * 
+	 * @return boolean Whether writing the checkpoint was successful
+	 */
+	private boolean writeCheckpoint()
+	{
+		if (lastVerifiedHash == null)
+		{
+			return false;
+		}
+		try (PrintWriter out = new PrintWriter(new File(dbFolder + "/checkpoint.dta")))
+		{
+			out.println(lastVerifiedHash);
+			out.println(recordCount);
+			for (int record : invalidRecords)
+			{
+				out.println(record);
+			}
+		} catch (Exception e)
+		{
+			System.out.println("ERROR: UNABLE TO WRITE CHECKPOINT FILE!");
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Attempt to add a block to the blockchain, and if successful (and the block is not from the blockchain file),
+	 * save it to the blockchain file.
+	 * 
+	 * Blocks from separate forks can be safely saved in the same blockchain file, since forks will be re-resolved
+	 * when they are loaded again.
+	 * 
+	 * Once the block is added, any orphaned blocks waiting on it are added as well, followed by any orphans waiting
+	 * on those, and so on.
+	 * 
+	 * @param block The block to add
+	 * @param fromBlockchainFile Whether this block already exists in the blockchain file
+	 * @return Whether adding the block was successful
+	 */
+	public boolean addBlockAndSave(Block block, boolean fromBlockchainFile)
+	{
+		return addBlockAndSave(block, fromBlockchainFile, null, true);
+	}
+	
+	/**
+	 * @param signaturesVerified Whether the block's signatures were verified; if not, they are verified once the block's
+	 *        parent is known, before the block is added
+	 */
+	public boolean addBlockAndSave(Block block, boolean fromBlockchainFile, boolean signaturesVerified)
+	{
+		return addBlockAndSave(block, fromBlockchainFile, null, signaturesVerified);
+	}
+	
+	/**
+	 * @param location Where the block is stored if fromBlockchainFile is set, otherwise ignored. Null if unknown.
+	 */
+	private synchronized boolean addBlockAndSave(Block block, boolean fromBlockchainFile, BlockStore.Location location, boolean signaturesVerified)
+	{
+		if (addBlock(block, fromBlockchainFile, location, signaturesVerified))
+		{
+			blockIndex.get(block.blockHash).location = fromBlockchainFile ? location : writeBlockToFile(block);
+			
+			ArrayList<String> addedHashes = new ArrayList<String>();
+			addedHashes.add(block.blockHash);
+			while (addedHashes.size() > 0)
+			{
+				String parentHash = addedHashes.remove(addedHashes.size() - 1);
+				for (OrphanBlockPool.Orphan orphan : orphanPool.takeChildrenOf(parentHash))
+				{
+					if (addBlock(orphan.block, orphan.fromBlockchainFile, orphan.location, orphan.signaturesVerified))
+					{
+						System.out.println("Added a block (#" + orphan.block.blockNum + ") from the orphan pool!");
+						blockIndex.get(orphan.block.blockHash).location = orphan.fromBlockchainFile ? orphan.location : writeBlockToFile(orphan.block);
+						addedHashes.add(orphan.block.blockHash);
+					}
+				}
+			}
+			// Readers on other threads see the ledger only once every block added here is applied
+			ledgerManager.publishView();
+			if (bestTip.isBetterThan(bestHeaderTip))
+			{
+				switchHeaderChain(bestTip);
+			}
+			if (uncommittedBlocks == 0)
+			{
+				uncommittedSince = System.currentTimeMillis();
+			}
+			uncommittedBlocks++;
+			// Blocks from the blockchain file are already on disk, so loading commits once at the end
+			if (!fromBlockchainFile)
+			{
+				commitWritesIfDue();
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @param commitPolicy When to commit added blocks and ledger changes to disk
+	 */
+	public void setCommitPolicy(CommitPolicy commitPolicy)
+	{
+		this.commitPolicy = commitPolicy;
+	}
+	
+	/**
+	 * Commits the blocks added so far if the commit policy asks for it. Called after every block, and regularly by the
+	 * main loop so a time-based policy is followed even when no more blocks arrive.
+	 * 
+	 * @return boolean Whether committing was successful, or wasn't due
+	 */
+	public synchronized boolean commitWritesIfDue()
+	{
+		if (commitPolicy.isDue(uncommittedBlocks, uncommittedSince))
+		{
+			return commitWrites();
+		}
+		return true;
+	}
+	
+	/**
+	 * Commits everything waiting to be committed, then closes the ledger and the block store. Nothing can be added after.
+	 */
+	public synchronized void close()
+	{
+		commitWrites();
+		ledgerManager.close();
+		try
+		{
+			blockStore.close();
+			historyIndex.close();
+			transactionIndex.close();
+		} catch (IOException e)
+		{
+			System.out.println("ERROR: UNABLE TO CLOSE THE BLOCK STORE!");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Commits every block added since the last commit: forces new blocks to disk, then records the checkpoint, and finally
+	 * writes the ledger. If the blocks can't be forced to disk, nothing that refers to them is
+	 * written, and the commit is tried again later.
+	 * 
+	 * @return boolean Whether committing was successful
+	 */
+	public synchronized boolean commitWrites()
+	{
+		if (uncommittedBlocks == 0)
+		{
+			return true;
+		}
+		try
+		{
+			blockStore.sync();
+		} catch (IOException e)
+		{
+			System.out.println("ERROR: UNABLE TO FORCE BLOCKS TO DISK!");
+			e.printStackTrace();
+			return false;
+		}
+		try
+		{
+			historyIndex.sync();
+			transactionIndex.sync();
+		} catch (IOException e)
+		{
+			// The indexes are rebuilt from the blockchain file if they fall behind
+			System.out.println("ERROR: UNABLE TO FORCE THE TRANSACTION INDEXES TO DISK!");
+			e.printStackTrace();
+		}
+		
+		if (uncommittedRecords > 0)
+		{
+			// The blocks were fully validated before being added, so they can be trusted on the next start
+			uncommittedRecords = 0;
+			writeCheckpoint();
+		}
+		
+		uncommittedBlocks = 0;
+		return ledgerManager.writeToFile();
+	}
+	
+	/**
+	 * Adds a block to the block tree if its parent is known. Updates the ledger as appropriate.
+	 * 
+	 * @param block The block to attempt to add
+	 * @param fromBlockchainFile Whether this block already exists in the blockchain file
+	 * @param location Where the block is stored, kept with the block if it has to wait in the orphan pool
+	 * @param signaturesVerified Whether the block's signatures were verified; if not, they are verified once its parent is known
+	 * @return Whether the block was successfully added
+	 */
+	private boolean addBlock(Block block, boolean fromBlockchainFile, BlockStore.Location location, boolean signaturesVerified)
+	{	
+		System.out.println("Attempting to add block #" + block.blockNum + " with the hash of " + block.blockHash + "...");
+		
+		if (!block.isMinerHashBelowTarget())
+		{
+			System.out.println("Block #" + block.blockNum + " with the hash of " + block.blockHash + " was rejected for being below its own target.");
+			return false;
+		}
+		
+		try
+		{
+			if (blockIndex.size() == 0) // We should be adding the genesis block.
+			{
+				BlockNode genesis = new BlockNode(block, null);
+				genesis.difficultyWindow = DifficultyWindow.startingAt(genesis);
+				blockIndex.put(block.blockHash, genesis);
+				tips.add(genesis);
+				mainChain.add(genesis);
+				connectIndexes(0, block);
+				bestTip = genesis;
+				System.out.println("Ledger hash before: " + ledgerManager.getLedgerHash());
+				if (ledgerManager.getLedgerHash().equals(block.ledgerHash))
+				{
+					ledgerManager.adjustAddressBalance(block.minerAddress, BLOCK_MINING_REWARD);
+					ledgerManager.lastBlockNum = 0;
+				}
+				System.out.println("ledger hash after: " + ledgerManager.getLedgerHash());
+				return true;
+			}
+			
+			if (block.blockNum == 0)
+			{
+				return false; // Should have been handled above, duplicate genesis blocks shouldn't work
+			}
+			
+			if (blockIndex.containsKey(block.blockHash))
+			{
+				return false; // Duplicate
+			}
+			
+			BlockNode parent = blockIndex.get(block.previousBlockHash);
+			if (parent == null)
+			{
+				if (block.blockNum + chainCutoff >= bestTip.height && orphanPool.addOrphan(block, fromBlockchainFile, location, signaturesVerified))
+				{
+					System.out.println("Added block #" + block.blockNum + " to the orphan pool for later processing.");
+				}
+				return false; // Doesn't fit on any known block yet
+			}
+			
+			if (block.blockNum != parent.height + 1)
+			{
+				return false;
+			}
+			
+			if (!signaturesVerified && !hasValidSignatures(block))
+			{
+				System.out.println("Block #" + block.blockNum + " with the hash of " + block.blockHash + " was rejected for a transaction without a valid signature.");
+				return false;
+			}
+			
+			// Remove all of the forks that are too short to be useful.
+			pruneStaleForks();
+			
+			if (parent != bestTip) // Block doesn't fit on end of longest chain
+			{
+				if (!parent.difficultyWindow.getNextDifficulty().equals(block.difficulty))
+				{
+					System.err.println("ERROR: BLOCK NOT CORRECT DIFFICULTY! Needed: " +
+									    parent.difficultyWindow.getNextDifficulty() + " provided: " + block.difficulty);
+					return false;
+				}
+				
+				boolean extendsExistingFork = parent.childCount == 0;
+				BlockNode node = connectNode(block, parent);
+				if (extendsExistingFork)
+				{
+					System.out.println("[INFO] Added a block with hash " + block.blockHash + " to a shorter chain than master.");
+				}
+				else
+				{
+					System.out.println("[INFO] Created a new fork with a block with hash " + block.blockHash + ".");
+				}
+				
+				// If this new chain is the best, reverse transactions on the older fork, and apply new fork transactions
+				if (node.isBetterThan(bestTip))
+				{
+					switchToFork(node, block);
+				}
+				return true;
+			}
+			
+			// If execution reached this point, then the block is added to the end of the longest chain, so execute transactions if not from blockchain file.
+			BlockNode node = connectNode(block, parent);
+			mainChain.add(node);
+			connectIndexes(node.height, block);
+			bestTip = node;
+			releaseDeepBlockData();
+			if (!fromBlockchainFile)
+			{
+				System.out.println("Executing...");
+				return executeTransactionsForBlock(node);
+			}
+			else
+			{
+				return true;
+			}
+			
+			
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Places a block into the block tree on top of its parent node.
+	 * 
+	 * @param block The block to place
+	 * @param parent The node holding the block's parent
+	 * @return BlockNode The new node holding block
+	 */
+	private BlockNode connectNode(Block block, BlockNode parent)
+	{
+		BlockNode node = new BlockNode(block, parent);
+		node.difficultyWindow = extendDifficultyWindow(node, mainChain);
+		
+		blockIndex.put(block.blockHash, node);
+		parent.childCount++;
+		tips.remove(parent);
+		tips.add(node);
+		
+		// The block tree node takes over from the header-only node
+		headerIndex.remove(block.blockHash);
+		if (isOnChain(node, headerChain))
+		{
+			headerChain.set(node.height, node);
+		}
+		return node;
+	}
+	
+	/**
+	 * Moves the difficulty window of a node's parent forward by one block, to get the window ending at the node.
+	 * 
+	 * @param node The node to calculate the window of
+	 * @param chain A chain indexed by block number which is used to find blocks if the parent is on it, instead of walking back through parents
+	 * @return DifficultyWindow The window ending at node
+	 */
+	private DifficultyWindow extendDifficultyWindow(BlockNode node, ArrayList<BlockNode> chain)
+	{
+		DifficultyWindow parentWindow = node.parent.difficultyWindow;
+		BlockNode newOldest = null;
+		if (parentWindow.blockCount >= BLOCK_HISTORY_FOR_DIFFICULTY)
+		{
+			int newOldestHeight = parentWindow.oldest.height + 1;
+			if (isOnChain(node.parent, chain))
+			{
+				newOldest = chain.get(newOldestHeight);
+			}
+			else
+			{
+				newOldest = node;
+				while (newOldest.height > newOldestHeight)
+				{
+					newOldest = newOldest.parent;
+				}
+			}
+		}
+		return parentWindow.extend(node, BLOCK_HISTORY_FOR_DIFFICULTY, newOldest);
+	}
+	
+	/**
+	 * Checks whether a block with the provided header is worth validating any further, using only what is already known about
+	 * its chain. A block whose parent isn't known yet passes, as it may be an orphan or its parent may still be validating, but
+	 * isParentKnown() then holds off its signatures until it connects. A block already in the blockchain or the orphan pool is
+	 * rejected, so a peer sending it again costs no more work.
+	 * 
+	 * @param header The header of the block to check
+	 * @return String Why the block would be rejected, or null if it may fit on a chain
+	 */
+	public String checkHeader(BlockHeader header)
+	{
+		if (bestTip == null)
+		{
+			return null; // Nothing to check against until the genesis block is added
+		}
+		
+		if (blockIndex.containsKey(header.blockHash))
+		{
+			return "Block #" + header.blockNum + " with the hash of " + header.blockHash + " is already in the blockchain.";
+		}
+		
+		if (orphanPool.containsOrphan(header.blockHash))
+		{
+			return "Block #" + header.blockNum + " with the hash of " + header.blockHash + " is already waiting in the orphan pool.";
+		}
+		
+		if (header.blockNum + chainCutoff < bestTip.height)
+		{
+			return "Block #" + header.blockNum + " is too far behind the longest chain to ever become part of it.";
+		}
+		
+		BlockNode parent = blockIndex.get(header.previousBlockHash);
+		boolean parentIsBlock = parent != null;
+		if (parent == null)
+		{
+			parent = headerIndex.get(header.previousBlockHash);
+		}
+		if (parent == null)
+		{
+			return null;
+		}
+		
+		if (header.blockNum != parent.height + 1)
+		{
+			return "Block #" + header.blockNum + " does not follow its parent, block #" + parent.height + ".";
+		}
+		
+		// addBlock() only holds blocks which fork off the longest chain to the difficulty expected after their parent. A block
+		// whose parent is a block other than the tip can never extend the tip, so only such a block is rejected for it here.
+		if (parentIsBlock && parent != bestTip && !parent.difficultyWindow.getNextDifficulty().equals(header.difficulty))
+		{
+			return "Block #" + header.blockNum + " has a difficulty of " + header.difficulty + " but needed " + parent.difficultyWindow.getNextDifficulty() + ".";
+		}
+		return null;
+	}
+	
+	/**
+	 * Tells the BlockValidator whether a block builds on a block or header this node already holds. Any other block has its
+	 * signatures verified only once it connects, so a block naming a made-up parent costs no signature work.
+	 * 
+	 * @param header The header of the block to check
+	 * @return boolean Whether the block's parent is a known block or header
+	 */
+	public boolean isParentKnown(BlockHeader header)
+	{
+		if (bestTip == null)
+		{
+			return true; // Nothing to check against until the genesis block is added
+		}
+		return blockIndex.containsKey(header.previousBlockHash) || headerIndex.containsKey(header.previousBlockHash);
+	}
+	
+	/**
+	 * Verifies the signature of every transaction of a block which was left unverified because its parent wasn't known
+	 * when it was validated. Such blocks are rare, so they are verified here rather than handed back to the validator.
+	 * 
+	 * @param block The block to verify
+	 * @return boolean Whether every transaction was signed by its source address
+	 */
+	private static boolean hasValidSignatures(Block block)
+	{
+		for (Transaction transaction : block.transactions)
+		{
+			if (!transaction.hasValidSignature())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Adds a block header to the header tree, ahead of its block. The header must fit on a known block or header, and
+	 * must pass its own proof-of-work and carry the correct difficulty for its chain.
+	 * 
+	 * @param header The header to add
+	 * @return boolean Whether the header was new and valid
+	 */
+	public boolean addHeader(BlockHeader header)
+	{
+		if (blockIndex.containsKey(header.blockHash) || headerIndex.containsKey(header.blockHash))
+		{
+			return false; // Duplicate
+		}
+		
+		BlockNode parent = blockIndex.get(header.previousBlockHash);
+		if (parent == null)
+		{
+			parent = headerIndex.get(header.previousBlockHash);
+		}
+		if (parent == null || header.blockNum != parent.height + 1)
+		{
+			return false;
+		}
+		
+		if (header.blockNum + chainCutoff < bestHeaderTip.height)
+		{
+			return false; // Forks this far back are never switched to
+		}
+		
+		if (!header.isMinerHashBelowTarget())
+		{
+			System.out.println("Header #" + header.blockNum + " with the hash of " + header.blockHash + " was rejected for being below its own target.");
+			return false;
+		}
+		
+		if (!parent.difficultyWindow.getNextDifficulty().equals(header.difficulty))
+		{
+			System.err.println("ERROR: HEADER NOT CORRECT DIFFICULTY! Needed: " +
+							    parent.difficultyWindow.getNextDifficulty() + " provided: " + header.difficulty);
+			return false;
+		}
+		
+		BlockNode node = new BlockNode(header, parent);
+		node.difficultyWindow = extendDifficultyWindow(node, headerChain);
+		headerIndex.put(header.blockHash, node);
+		if (node.isBetterThan(bestHeaderTip))
+		{
+			switchHeaderChain(node);
+		}
+		return true;
+	}
+	
+	/**
+	 * Makes the chain ending at newTip the best header chain.
+	 * 
+	 * @param newTip The last node of the header chain which is now the best
+	 */
+	private void switchHeaderChain(BlockNode newTip)
+	{
+		ArrayList<BlockNode> newBranch = new ArrayList<BlockNode>();
+		BlockNode forkingPoint = newTip;
+		while (forkingPoint != null && !isOnChain(forkingPoint, headerChain))
+		{
+			newBranch.add(forkingPoint);
+			forkingPoint = forkingPoint.parent;
+		}
+		
+		int newSize = forkingPoint == null ? 0 : forkingPoint.height + 1;
+		while (headerChain.size() > newSize)
+		{
+			headerChain.remove(headerChain.size() - 1);
+		}
+		for (int i = newBranch.size() - 1; i >= 0; i--)
+		{
+			headerChain.add(newBranch.get(i));
+		}
+		bestHeaderTip = newTip;
+	}
+	
+	/**
+	 * Returns the headers of the longest chain which follow the first of the provided hashes found on it. If none of the
+	 * hashes are on the longest chain, the headers following the genesis block are returned.
+	 * 
+	 * @param locatorHashes Block hashes from the requester's best header chain, newest first
+	 * @param maxHeaders The maximum number of headers to return
+	 * @return ArrayList<BlockHeader> Consecutive headers from the longest chain, oldest first
+	 */
+	public ArrayList<BlockHeader> getHeadersAfter(String[] locatorHashes, int maxHeaders)
+	{
+		int start = 1;
+		for (String hash : locatorHashes)
+		{
+			BlockNode node = blockIndex.get(hash);
+			if (node != null && isOnMainChain(node))
+			{
+				start = node.height + 1;
+				break;
+			}
+		}
+		
+		ArrayList<BlockHeader> headers = new ArrayList<BlockHeader>();
+		for (int height = start; height < mainChain.size() && headers.size() < maxHeaders; height++)
+		{
+			headers.add(mainChain.get(height).header);
+		}
+		return headers;
+	}
+	
+	/**
+	 * Returns block hashes from the best header chain, for a peer to find where its own chain forks off. The ten newest
+	 * blocks are included, then the gap between included blocks doubles each time, and the genesis block is always last.
+	 * 
+	 * @return ArrayList<String> Block hashes from the best header chain, newest first
+	 */
+	public ArrayList<String> getHeaderLocator()
+	{
+		ArrayList<String> locator = new ArrayList<String>();
+		int step = 1;
+		for (int height = headerChain.size() - 1; height > 0; height -= step)
+		{
+			locator.add(headerChain.get(height).blockHash);
+			if (locator.size() >= 10)
+			{
+				step *= 2;
+			}
+		}
+		locator.add(headerChain.get(0).blockHash);
+		return locator;
+	}
+	
+	/**
+	 * Returns the hashes of blocks on the best header chain which haven't been received yet, in chain order. Blocks waiting
+	 * in the orphan pool count as received.
+	 * 
+	 * @param maxBlocks The maximum number of hashes to return
+	 * @return ArrayList<String> Hashes of the missing blocks, oldest first
+	 */
+	public ArrayList<String> getMissingBlockHashes(int maxBlocks)
+	{
+		// Everything up to the point where the best header chain leaves the longest chain is already held
+		int height = Math.min(mainChain.size(), headerChain.size()) - 1;
+		while (height > 0 && !isOnChain(mainChain.get(height), headerChain))
+		{
+			height--;
+		}
+		
+		ArrayList<String> missingHashes = new ArrayList<String>();
+		for (height++; height < headerChain.size() && missingHashes.size() < maxBlocks; height++)
+		{
+			String hash = headerChain.get(height).blockHash;
+			if (!blockIndex.containsKey(hash) && !orphanPool.containsOrphan(hash))
+			{
+				missingHashes.add(hash);
+			}
+		}
+		return missingHashes;
+	}
+	
+	/**
+	 * Returns the block number of the last header on the best header chain. This is never lower than the block number of
+	 * the last block on the longest chain.
+	 * 
+	 * @return int The block number of the last header on the best header chain
+	 */
+	public int getBlockNumOfBestHeader()
+	{
+		return bestHeaderTip.height;
+	}
+	
+	/**
+	 * Makes the chain ending at newTip the longest chain. Transactions of the previously-longest chain are reversed back to the
+	 * forking point, and then the new fork's ledger adjustments are applied.
+	 * 
+	 * @param newTip The last node of the chain which is now the best
+	 * @param block The block which caused the switch, used for logging
+	 */
+	private void switchToFork(BlockNode newTip, Block block)
+	{
+		ArrayList<BlockNode> newBranch = new ArrayList<BlockNode>();
+		BlockNode forkingPoint = newTip;
+		while (!isOnMainChain(forkingPoint))
+		{
+			newBranch.add(forkingPoint);
+			forkingPoint = forkingPoint.parent;
+		}
+		
+		for (int pointer = mainChain.size() - 1; pointer > forkingPoint.height; pointer--)
+		{
+			BlockNode nodeToReverse = mainChain.get(pointer);
+			mainChain.remove(pointer);
+			disconnectIndexes(pointer);
+			if (nodeToReverse.undo != null)
+			{
+				ledgerManager.applyUndo(nodeToReverse.undo);
+				nodeToReverse.undo = null;
+				continue;
+			}
+			
+			// No undo record for this block (it was loaded from the blockchain file, or is too old), so reverse its transactions one by one
+			Block toReverse = loadBlock(nodeToReverse);
+			ArrayList<Transaction> transactionsToReverse = new ArrayList<Transaction>(toReverse.transactions);
+			boolean reversedTransaction = true;
+			while (transactionsToReverse.size() > 0 && reversedTransaction)
+			{
+				reversedTransaction = false;
+
+				for (int j = transactionsToReverse.size() - 1; j >= 0; j--)
+				{
+					if (ledgerManager.reverseTransaction(transactionsToReverse.get(j)))
+					{
+						transactionsToReverse.remove(j);
+						reversedTransaction = true;
+						j++;
+					}
+				}
+			}
+			
+			ledgerManager.adjustAddressBalance(toReverse.minerAddress, -1 * BLOCK_MINING_REWARD);
+
+			ledgerManager.setLastBlockNum(toReverse.blockNum - 1);
+			if (transactionsToReverse.size() > 0)
+			{
+				System.err.println("[CRITICAL ERROR] UNABLE TO REVERSE TRANSACTIONS ON BLOCK " + pointer + " with hash " + toReverse.blockHash + " TO HANDLE FORK CAUSED BY BLOCK #" + block.blockNum + " with hash " + block.blockHash + "!");
+			}
+		}
+		
+		for (int i = newBranch.size() - 1; i >= 0; i--)
+		{
+			BlockNode node = newBranch.get(i);
+			mainChain.add(node);
+			connectIndexes(node.height, loadBlock(node));
+			if (!executeTransactionsForBlock(node))
+			{
+				System.err.println("[CRITICAL ERROR] UNEXECUTABLE TRANSACTIONS FOUND WHILE SWITCHING FORKS!");
+			}
+		}
+		bestTip = newTip;
+		// Blocks of the new branch which are already deep enough are released along with those the tip passed
+		unreleasedHeight = Math.min(unreleasedHeight, forkingPoint.height + 1);
+		releaseDeepBlockData();
+	}
+	
+	/**
+	 * Adds a block which joined the longest chain to the transaction indexes.
+	 * 
+	 * @param height The block's height
+	 * @param block The block
+	 */
+	private void connectIndexes(int height, Block block)
+	{
+		historyIndex.connect(height, block.blockHash, block.transactions);
+		transactionIndex.connect(height, block.blockHash, block.transactions);
 	}
 	
-	public Blockchain(String dbFolder, int chainCutoff)
+	/**
+	 * Drops every block from a height up from the transaction indexes, as they leave the longest chain.
+	 * 
+	 * @param height The lowest height to drop
+	 */
+	private void disconnectIndexes(int height)
 	{
-		this(dbFolder);
-		this.chainCutoff = chainCutoff;
+		historyIndex.disconnect(height);
+		transactionIndex.disconnect(height);
 	}
 	
 	/**
-	 * Attempt to add a block to the blockchain, and if successful (and the block is not from the blockchain file),
-	 * save it to the blockchain file.
-	 * 
-	 * Blocks from separate forks can be safely saved in the same blockchain file, since forks will be re-resolved
-	 * when they are loaded again.
+	 * Finds a block's transactions for the transaction indexes, which build a dropped block's entries again from them.
 	 * 
-	 * @param block The block to add
-	 * @param fromBlockchainFile Whether this block already exists in the blockchain file
-	 * @return Whether adding the block was successful
+	 * @param blockHash The hash of the block
+	 * @return ArrayList<Transaction> The block's transactions, or null if the block isn't in the block tree or can't be read
 	 */
-	public boolean addBlockAndSave(Block block, boolean fromBlockchainFile)
+	public ArrayList<Transaction> getBlockTransactions(String blockHash)
+	{
+		BlockNode node = blockIndex.get(blockHash);
+		Block block = node == null ? null : loadBlock(node);
+		return block == null ? null : block.transactions;
+	}
+	
+	/**
+	 * Drops the undo records of the blocks of the longest chain from unreleasedHeight up to chainCutoff blocks below its end,
+	 * so none are skipped when the tip moves more than one block at once, as in a switch to another fork. Forks branching off
+	 * that far back are pruned, so the records won't be needed again. If old blocks are released from memory, the blocks
+	 * themselves are released too, as long as they can be read back from the blockchain file.
+	 */
+	private void releaseDeepBlockData()
 	{
-		if (blockQueue.size() > 0)
+		for (; unreleasedHeight <= bestTip.height - chainCutoff; unreleasedHeight++)
 		{
-			boolean addedABlock = true;
-			while (addedABlock)
+			BlockNode node = mainChain.get(unreleasedHeight);
+			node.undo = null;
+			if (blockCache != null && node.location != null)
 			{
-				addedABlock = false;
-				for (int i = 0; i < blockQueue.size(); i++)
-				{
-					if (addBlock(blockQueue.get(i), false))
-					{
-						addedABlock = true;
-						System.out.println("Added a block (#" + blockQueue.get(i).blockNum + ") from the queue!");
-						blockQueue.remove(i);
-						i--;
-					}
-				}
+				node.block = null;
 			}
 		}
-		
-		if (addBlock(block, fromBlockchainFile))
+	}
+	
+	/**
+	 * Returns the raw text of a node's block. A block released from memory is read straight from the block store, without
+	 * being parsed or cached.
+	 * 
+	 * @param node The node to get the raw block of
+	 * @return String The raw block, or null if it could not be read
+	 */
+	private String getRawBlock(BlockNode node)
+	{
+		Block block = node.block;
+		if (block == null && blockCache != null)
 		{
-			if (!fromBlockchainFile)
-			{
-				writeBlockToFile(block);
-			}
-			ledgerManager.writeToFile();
-			return true;
+			block = blockCache.get(node.blockHash);
+		}
+		if (block != null)
+		{
+			return block.rawBlock;
+		}
+		try
+		{
+			return blockStore.read(node.location);
+		} catch (Exception e)
+		{
+			System.err.println("[CRITICAL ERROR] UNABLE TO READ BLOCK #" + node.height + " WITH HASH " + node.blockHash + " FROM THE BLOCKCHAIN FILE!");
+			e.printStackTrace();
+			return null;
 		}
-		return false;
 	}
 	
 	/**
-	 * Adds a block to any of the existing chains if it fits. Updates the ledger as appropriate.
+	 * Returns the full block held by a node, reading it back from the blockchain file if it was released from memory.
 	 * 
-	 * @param block The block to attempt to add
-	 * @return Whether the block was successfully added
+	 * @param node The node to get the block of
+	 * @return Block The block, or null if it could not be read
 	 */
-	private boolean addBlock(Block block, boolean fromBlockchainFile)
-	{	
-		System.out.println("Attempting to add block #" + block.blockNum + " with the hash of " + block.blockHash + "...");
-		
-		if (!block.isMinerHashBelowTarget())
+	private Block loadBlock(BlockNode node)
+	{
+		Block block = node.block;
+		if (block != null)
 		{
-			System.out.println("Block #" + block.blockNum + " with the hash of " + block.blockHash + " was rejected for being below its own target.");
-			return false;
+			return block;
 		}
-		
-		try
+		block = blockCache.get(node.blockHash);
+		if (block == null)
 		{
-			if (chains.size() == 0) // We should be adding the genesis block.
-			{
-				chains.add(new ArrayList<Block>());
-				chains.get(0).add(block);
-				System.out.println("Ledger hash before: " + ledgerManager.getLedgerHash());
-				if (ledgerManager.getLedgerHash().equals(block.ledgerHash))
-				{
-					ledgerManager.adjustAddressBalance(block.minerAddress, BLOCK_MINING_REWARD);
-					ledgerManager.lastBlockNum = 0;
-				}
-				System.out.println("ledger hash after: " + ledgerManager.getLedgerHash());
-				return true;
-			}
-			
-			if (block.blockNum == 0)
-			{
-				return false; // Should have been handled above, duplicate genesis blocks shouldn't work
-			}
-			
-			// Check for duplicates
-			for (ArrayList<Block> chain : chains)
-			{
-				if (chain.size() > block.blockNum)
-				{
-					if (chain.get(block.blockNum).blockHash.equals(block.blockHash))
-					{
-						return false; // Duplicate   
-					}
-				}
-			}
-
-			ArrayList<Block> largestChain = getLongestChain();
-			
-			if (block.blockNum > largestChain.size())
-			{
-				blockQueue.add(block);
-				System.out.println("Added block #" + block.blockNum + " to the blockQueue for later processing.");
-				return false;
-			}
-			
-			
-			// Remove all of the chains that are too short to be useful.
-			for (int i = 0; i < chains.size(); i++)
+			try
 			{
-				if (chains.get(i).size() + chainCutoff < largestChain.size())
-				{
-					chains.remove(i);
-					i--; // Account for chain removal
-				}
-			}
-			
-			if (!block.previousBlockHash.equals(largestChain.get(largestChain.size() - 1).blockHash)) // Block doesn't fit on end of longest chain
+				// Signatures were verified when the block was first added
+				block = new Block(blockStore.read(node.location), false);
+				blockCache.put(node.blockHash, block);
+			} catch (Exception e)
 			{
-				for (int i = 0; i < chains.size(); i++)
-				{
-					ArrayList<Block> potentialChain = chains.get(i);
-					if (block.blockNum > potentialChain.size())
-					{
-						continue;
-					}
-					if (block.previousBlockHash.equals(potentialChain.get(block.blockNum - 1).blockHash))
-					{
-						if (block.blockNum == potentialChain.size()) // Add on to an existing fork
-						{
-							if (!Utilities.calculateNextDifficulty(getLastNBlocks(potentialChain, BLOCK_HISTORY_FOR_DIFFICULTY)).equals(block.difficulty))
-							{
-								System.err.println("ERROR: BLOCK NOT CORRECT DIFFICULTY! Needed: " +
-												    Utilities.calculateNextDifficulty(getLastNBlocks(potentialChain, BLOCK_HISTORY_FOR_DIFFICULTY)) + " provided: " + block.difficulty);
-								return false;
-							}
-							potentialChain.add(block);
-							System.out.println("[INFO] Added a block with hash " + block.blockHash + " to a shorter chain than master.");
-							
-							// If this new chain is the best, reverse transactions on the older fork, and apply new fork transactions
-							boolean switchForks = false;
-							if (potentialChain.size() > largestChain.size())
-							{
-								switchForks = true;
-							}
-							else if (potentialChain.size() == largestChain.size())
-							{
-								if (potentialChain.get(potentialChain.size() - 1).difficulty.compareTo(largestChain.get(largestChain.size() - 1).difficulty) > 0)
-								{
-									switchForks = true;
-								}
-							}
-							if (switchForks) // Reverse transactions of previously-largest-chain back to the forking point, apply new fork's ledger adjustments
-							{
-								boolean foundForkingPoint = false;
-								int pointer = largestChain.size() - 1;
-								while (!foundForkingPoint)
-								{
-									if (largestChain.get(pointer).blockHash.equals(potentialChain.get(pointer).blockHash))
-									{
-										foundForkingPoint = true;
-										break;
-									}
-									
-									// Haven't found forking point yet, continue reversing transactions
-									ArrayList<Transaction> transactionsToReverse = new ArrayList<Transaction>(largestChain.get(pointer).transactions);
-									boolean reversedTransaction = true;
-									while (transactionsToReverse.size() > 0 && reversedTransaction)
-									{
-										reversedTransaction = false;
-
-										for (int j = transactionsToReverse.size() - 1; j >= 0; j--)
-										{
-											if (ledgerManager.reverseTransaction(transactionsToReverse.get(j)))
-											{
-												transactionsToReverse.remove(j);
-												reversedTransaction = true;
-												j++;
-											}
-										}
-									}
-									
-									ledgerManager.adjustAddressBalance(largestChain.get(pointer).minerAddress, -1 * BLOCK_MINING_REWARD);
-
-									ledgerManager.setLastBlockNum(largestChain.get(pointer).blockNum - 1);
-									if (transactionsToReverse.size() > 0)
-									{
-										System.err.println("[CRITICAL ERROR] UNABLE TO REVERSE TRANSACTIONS ON BLOCK " + pointer + " with hash " + largestChain.get(pointer).blockHash + " TO HANDLE FORK CAUSED BY BLOCK #" + block.blockNum + " with hash " + block.blockHash + "!");
-									}
-									pointer--;
-								}
-								while (pointer < potentialChain.size())
-								{
-									if (executeTransactionsForBlock(potentialChain.get(pointer)))
-									{
-										pointer++;
-									}
-									else
-									{
-										System.err.println("[CRITICAL ERROR] UNEXECUTABLE TRANSACTIONS FOUND WHILE SWITCHING FORKS!");
-									}
-								}
-							}
-							return true;
-						}
-						
-						else // Need to make a new fork
-						{
-							ArrayList<Block> newFork = new ArrayList<Block>(potentialChain);
-							while (newFork.get(newFork.size() - 1).blockNum >= block.blockNum)
-							{
-								newFork.remove(newFork.size() - 1);
-							}
-							
-							if (!Utilities.calculateNextDifficulty(getLastNBlocks(newFork, BLOCK_HISTORY_FOR_DIFFICULTY)).equals(block.difficulty))
-							{
-								System.err.println("ERROR: BLOCK NOT CORRECT DIFFICULTY! Needed: " +
-												    Utilities.calculateNextDifficulty(getLastNBlocks(newFork, BLOCK_HISTORY_FOR_DIFFICULTY)) + " provided: " + block.difficulty);
-								return false;
-							}
-							
-							newFork.add(block.blockNum, block);
-
-							System.out.println("[INFO] Created a new fork with a block with hash " + block.blockHash + ".");
-							chains.add(newFork);
-							// No need to test for switching forks, because this can't possibly be the best if it's at most as long as an inferior chain
-						}
-						return true;
-					}
-				}
-				return false;
+				System.err.println("[CRITICAL ERROR] UNABLE TO READ BLOCK #" + node.height + " WITH HASH " + node.blockHash + " FROM THE BLOCKCHAIN FILE!");
+				e.printStackTrace();
+				return null;
 			}
-			
-			// If execution reached this point, then the block is added to the end of the longest chain, so execute transactions if not from blockchain file.
-			largestChain.add(block);
-			if (!fromBlockchainFile)
+		}
+		return block;
+	}
+	
+	/**
+	 * Removes forks whose tips are more than chainCutoff blocks behind the longest chain. Blocks shared with the longest chain
+	 * or with another fork are kept.
+	 */
+	private void pruneStaleForks()
+	{
+		ArrayList<BlockNode> staleTips = new ArrayList<BlockNode>();
+		for (BlockNode tip : tips)
+		{
+			if (tip.height + chainCutoff < bestTip.height)
 			{
-				System.out.println("Executing...");
-				return executeTransactionsForBlock(block);
+				staleTips.add(tip);
 			}
-			else
+		}
+		
+		for (BlockNode tip : staleTips)
+		{
+			tips.remove(tip);
+			BlockNode node = tip;
+			while (node != null && node.childCount == 0 && !isOnMainChain(node))
 			{
-				return true;
+				blockIndex.remove(node.blockHash);
+				node = node.parent;
+				node.childCount--;
 			}
-			
-			
-		} catch (Exception e)
-		{
-			e.printStackTrace();
-			return false;
 		}
 	}
+	
+	/**
+	 * Determines whether a node is part of the longest chain.
+	 * 
+	 * @param node The node to check
+	 * @return boolean Whether the node is part of the longest chain
+	 */
+	private boolean isOnMainChain(BlockNode node)
+	{
+		return node.height < mainChain.size() && mainChain.get(node.height) == node;
+	}
+	
+	/**
+	 * Determines whether a node's block is part of a chain. Blocks are compared by hash, as a header-only node and the block
+	 * tree node for the same block are different objects.
+	 * 
+	 * @param node The node to check
+	 * @param chain The chain, indexed by block number
+	 * @return boolean Whether the node's block is part of the chain
+	 */
+	private static boolean isOnChain(BlockNode node, ArrayList<BlockNode> chain)
+	{
+		return node.height < chain.size() && chain.get(node.height).blockHash.equals(node.blockHash);
+	}
     
     /**
-     * Saves the entire blockchain to the file. The blockchain will be saved to "blockchain.dta" inside of the db folder.
+     * Saves the entire blockchain to the file, in the current format. The blockchain will be saved to "blockchain.dta" inside of the db folder.
      * 
      * @return boolean Whether saving the blockchain was successful
      */
@@ -312,15 +1197,40 @@ public class Blockchain
     {
     	try
     	{
-            PrintWriter out = new PrintWriter(new File(dbFolder + "/blockchain.dta"));
-            for (int i = 0; i < chains.size(); i++)
+            // Parents have to be written before their children, so they can be placed when the file is loaded again
+            ArrayList<BlockNode> allNodes = new ArrayList<BlockNode>(blockIndex.values());
+            Collections.sort(allNodes, new Comparator<BlockNode>()
+            {
+                public int compare(BlockNode a, BlockNode b)
+                {
+                    return Integer.compare(a.height, b.height);
+                }
+            });
+            
+            // Released blocks are still read from the old segments while the new ones are written
+            BlockStore.Location[] newLocations = new BlockStore.Location[allNodes.size()];
+            try (BlockStore.Rewriter rewriter = blockStore.startRewrite())
             {
-                for (int j = 0; j < chains.get(i).size(); j++)
+                for (int i = 0; i < allNodes.size(); i++)
                 {
-                    out.println(chains.get(i).get(j).rawBlock);
+                    BlockNode node = allNodes.get(i);
+                    String rawBlock = getRawBlock(node);
+                    newLocations[i] = rewriter.write(rawBlock, node.blockHash, node.height);
                 }
+                rewriter.commit();
+            }
+            for (int i = 0; i < allNodes.size(); i++)
+            {
+                allNodes.get(i).location = newLocations[i];
             }
-            out.close();
+            recordCount = allNodes.size();
+            invalidRecords.clear(); // Only blocks in the tree are rewritten
+            uncommittedRecords = 0; // The whole checkpoint is rewritten below
+            if (allNodes.size() > 0)
+            {
+                lastVerifiedHash = allNodes.get(allNodes.size() - 1).blockHash;
+            }
+            writeCheckpoint();
     	} catch (Exception e)
     	{
             System.out.println("[CRITICAL ERROR] UNABLE TO WRITE BLOCKCHAIN FILE \"" + dbFolder + "/blockchain.dta!");
@@ -337,33 +1247,131 @@ public class Blockchain
 	 * @return ArrayList<Transaction> Containing all transactions in the longest chain involving the provided address.
 	 */
 	public ArrayList<Transaction> getAllTransactionsInvolvingAddress(String addressToCheck)
+	{
+		return getTransactionsInvolvingAddress(addressToCheck, 0, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Returns a page of the transactions from the longest chain involving the provided address, oldest first. Only the blocks
+	 * holding those transactions are read.
+	 * 
+	 * @param addressToCheck The address to search for
+	 * @param start The number of transactions to skip
+	 * @param count The most transactions to return
+	 * @return ArrayList<Transaction> The transactions in the page
+	 */
+	public synchronized ArrayList<Transaction> getTransactionsInvolvingAddress(String addressToCheck, int start, int count)
 	{
 		ArrayList<Transaction> transactions = new ArrayList<Transaction>();
-		ArrayList<Block> longestChain = getLongestChain();
-		for (int i = 0; i < longestChain.size(); i++)
+		int loadedHeight = -1;
+		Block b = null;
+		for (long position : historyIndex.getPositions(addressToCheck, start, count))
 		{
-			Block b = longestChain.get(i);
-			for (Transaction t : b.transactions)
+			int height = (int)(position >>> 32);
+			if (height != loadedHeight)
 			{
-				if (t.involvesAddress(addressToCheck))
-				{
-					transactions.add(t);
-				}
+				b = height < mainChain.size() ? loadBlock(mainChain.get(height)) : null;
+				loadedHeight = height;
+			}
+			if (b != null && (int)position < b.transactions.size())
+			{
+				transactions.add(b.transactions.get((int)position));
 			}
 		}
 		return transactions;
 	}
 	
 	/**
-	 * Passthrough method to LedgerManager's getAddressBalance(String address) method, returns the balance of
-	 * a given address, according to the ledger updated to the state of the largest chain.
+	 * @param address The address to search for
+	 * @return int The number of transactions in the longest chain involving the provided address
+	 */
+	public synchronized int getTransactionCountInvolvingAddress(String address)
+	{
+		return historyIndex.getCount(address);
+	}
+	
+	/**
+	 * Where a transaction sits on the longest chain.
+	 */
+	public static class TransactionLocation
+	{
+		public final Transaction transaction;
+		public final String blockHash;
+		public final int blockNum;
+		public final int index;
+		public final int confirmations;
+		
+		public TransactionLocation(Transaction transaction, String blockHash, int blockNum, int index, int confirmations)
+		{
+			this.transaction = transaction;
+			this.blockHash = blockHash;
+			this.blockNum = blockNum;
+			this.index = index;
+			this.confirmations = confirmations;
+		}
+	}
+	
+	/**
+	 * Finds a transaction on the longest chain by its ID. Only the block holding the transaction is read.
+	 * 
+	 * @param transactionId The ID of the transaction
+	 * @return TransactionLocation The transaction and where it is, or null if it isn't on the longest chain
+	 */
+	public synchronized TransactionLocation getTransactionById(String transactionId)
+	{
+		long position = transactionIndex.getPosition(transactionId);
+		if (position < 0)
+		{
+			return null;
+		}
+		int height = (int)(position >>> 32);
+		int index = (int)position;
+		Block block = height < mainChain.size() ? loadBlock(mainChain.get(height)) : null;
+		if (block == null || index >= block.transactions.size())
+		{
+			return null;
+		}
+		return new TransactionLocation(block.transactions.get(index), block.blockHash, height, index, mainChain.size() - height);
+	}
+	
+	/**
+	 * Returns the number of confirmations of a transaction: 1 in the last block of the longest chain, and one more for every
+	 * block after it. Doesn't read any block.
+	 * 
+	 * @param transactionId The ID of the transaction
+	 * @return int The number of confirmations, or 0 if the transaction isn't on the longest chain
+	 */
+	public synchronized int getConfirmations(String transactionId)
+	{
+		long position = transactionIndex.getPosition(transactionId);
+		if (position < 0)
+		{
+			return 0;
+		}
+		return mainChain.size() - (int)(position >>> 32);
+	}
+	
+	/**
+	 * Returns the balance of a given address, according to the ledger as of the last block added to the largest chain.
+	 * Reads the last published LedgerView, so it is safe to call from any thread and never sees a block half applied.
 	 * 
 	 * @param address Address to get the balance of
 	 * @return long The balance of the provided address; 0 if never seen on the blockchain
 	 */
 	public long getAddressBalance(String address)
 	{
-		return ledgerManager.getAddressBalance(address);
+		return ledgerManager.getView().getBalance(address);
+	}
+	
+	/**
+	 * Returns the ledger as of the last block added to the largest chain, for reading several balances from the same block.
+	 * Safe to call from any thread.
+	 * 
+	 * @return LedgerView The last published view of the ledger
+	 */
+	public LedgerView getLedgerView()
+	{
+		return ledgerManager.getView();
 	}
 	
 	/**
@@ -377,6 +1385,26 @@ public class Blockchain
 		return ledgerManager.getLedgerHash();
 	}
 	
+	/**
+	 * Starts keeping a Merkle commitment to the ledger, so balances can be proven with getBalanceProof().
+	 */
+	public synchronized void enableLedgerCommitment()
+	{
+		ledgerManager.enableCommitment();
+	}
+	
+	/**
+	 * Passthrough method to LedgerManager's getBalanceProof() method.
+	 * 
+	 * @param address The address to prove
+	 * @return LedgerCommitment.Proof The proof of the address's balance against the ledger commitment, or null if the
+	 *         commitment isn't kept
+	 */
+	public synchronized LedgerCommitment.Proof getBalanceProof(String address)
+	{
+		return ledgerManager.getBalanceProof(address);
+	}
+	
 	/**
 	 * Calculates the target difficulty for the next block added to the current largest chain
 	 * 
@@ -384,7 +1412,7 @@ public class Blockchain
 	 */
 	public BigInteger getNextDifficultyForLongestChain()
 	{
-		return Utilities.calculateNextDifficulty(getLastNBlocks(getLongestChain(), BLOCK_HISTORY_FOR_DIFFICULTY));
+		return bestTip.difficultyWindow.getNextDifficulty();
 	}
 	
 	/**
@@ -394,8 +1422,7 @@ public class Blockchain
 	 */
 	public String getHashOfLastBlockOnLongestChain()
 	{
-		ArrayList<Block> longestChain = getLongestChain();
-		return longestChain.get(longestChain.size() - 1).blockHash;
+		return bestTip.blockHash;
 	}
 	
 	/**
@@ -405,49 +1432,79 @@ public class Blockchain
 	 */
 	public int getBlockNumOfLastBlockOnLongestChain()
 	{
-		ArrayList<Block> longestChain = getLongestChain();
-		return longestChain.get(longestChain.size() - 1).blockNum;
+		return bestTip.height;
 	}
 	
 	/**
-     * Writes a block to the blockchain file
+     * Writes a block to the block store. The checkpoint is moved past it at the next commit.
      * 
-     * @return boolean Whether write was successful
+     * @return BlockStore.Location Where the block was stored, or null if the write was unsuccessful
      */
-    private boolean writeBlockToFile(Block block)
+    private BlockStore.Location writeBlockToFile(Block block)
     {
         System.out.println("Writing a block to file: " + block.rawBlock);
-        try (FileWriter fileWriter = new FileWriter(dbFolder + "/blockchain.dta", true);
-        BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-        PrintWriter out = new PrintWriter(bufferedWriter))
+        BlockStore.Location location;
+        try
         {
-            out.println(block.rawBlock);
-            out.close();
+            location = blockStore.append(block.rawBlock, block.blockHash, block.blockNum);
         } catch (Exception e)
         {
             System.out.println("ERROR: UNABLE TO SAVE BLOCK TO DATABASE!");
             e.printStackTrace();
-            return false;
+            return null;
         }
-        return true;
+        
+        uncommittedRecords++;
+        recordCount++;
+        lastVerifiedHash = block.blockHash;
+        return location;
     }
 	
     /**
-     * Execute all of the transactions in a given block on the internal ledger.
+     * Execute all of the transactions in a given block on the internal ledger. The prior state of every address the block
+     * changes is kept on the block's node, so the block can be undone exactly if its chain is later abandoned.
      * 
-     * @param block Block from which to execute transactions
+     * @param node Node of the block from which to execute transactions
      * @return boolean Whether executing the transactions was successful
      */
-	private boolean executeTransactionsForBlock(Block block)
+	private boolean executeTransactionsForBlock(BlockNode node)
 	{
+		Block block = loadBlock(node);
 		System.out.println("Executing transactions for block #" + block.blockNum);
 		if (ledgerManager.lastBlockNum >= block.blockNum)
 		{
 			return true; // Transaction has already been applied
 		}
 		
+		BlockUndo undo = ledgerManager.beginUndoRecord();
+		boolean applied;
+		try
+		{
+			applied = applyTransactionsForBlock(block);
+		} finally
+		{
+			ledgerManager.endUndoRecord();
+		}
+		if (!applied)
+		{
+			ledgerManager.applyUndo(undo); // Leave the ledger exactly as it was before the block
+			return false;
+		}
+		node.undo = undo;
+
+		ledgerManager.setLastBlockNum(block.blockNum); // Written with the next commit
+		return true;
+	}
+	
+	/**
+	 * Applies a block's transactions and mining reward to the ledger.
+	 * 
+	 * @param block Block from which to execute transactions
+	 * @return boolean Whether every transaction could be executed
+	 */
+	private boolean applyTransactionsForBlock(Block block)
+	{
 		ArrayList<Transaction> transactionsToApply = new ArrayList<Transaction>(block.transactions);
-		ArrayList<Transaction> appliedTransactions = new ArrayList<Transaction>();
 		
 		boolean appliedTransaction = true;
 		while (transactionsToApply.size() > 0 && appliedTransaction)
@@ -457,7 +1514,6 @@ public class Blockchain
 			{
 				if (ledgerManager.executeTransaction(transactionsToApply.get(i)))
 				{
-					appliedTransactions.add(transactionsToApply.get(i));
 					transactionsToApply.remove(i);
 					appliedTransaction = true;
 					i--;
@@ -469,16 +1525,9 @@ public class Blockchain
 		
 		if (transactionsToApply.size() != 0) // At least one transaction was unable to be processed!
 		{
-			for (int i = appliedTransactions.size() - 1; i >= 0; i--)
-			{
-				ledgerManager.reverseTransaction(appliedTransactions.get(i));
-			}
 			System.err.println("[ERROR] A block with unexecutable transactions exists! Block #" + block.blockNum + " with hash " + block.blockHash);
 			return false;
 		}
-
-		ledgerManager.setLastBlockNum(block.blockNum);
-		ledgerManager.writeToFile();
 		return true;
 	}
 	
@@ -490,90 +1539,80 @@ public class Blockchain
 	 */
 	public Block getBlock(int index)
 	{
-		ArrayList<Block> longest = getLongestChain();
-		if (longest.size() - 1 >= index)
+		if (index >= 0 && mainChain.size() - 1 >= index)
 		{
-			return longest.get(index);
+			return loadBlock(mainChain.get(index));
 		}
 		return null;
 	}
 	
 	/**
-	 * Passthrough to LedgerManager's getAddressSignatureCount() method
+	 * Get the raw block at the provided block number on the longest chain, for sending to a peer. A block which isn't in
+	 * memory is read from the block store as is.
+	 * 
+	 * @param index Block num to lookup
+	 * @return String The raw block, or null if there is no such block
 	 */
-	public int getAddressNextIndex(String address)
+	public String getRawBlock(int index)
 	{
-		return ledgerManager.getAddressSignatureCount(address);
+		if (index >= 0 && mainChain.size() - 1 >= index)
+		{
+			return getRawBlock(mainChain.get(index));
+		}
+		return null;
 	}
 	
 	/**
-	 * Get a pointer to the longest chain in this blockchain.
-	 * @return ArrayList<Block> The longest chain
+	 * Get the raw block with the provided hash, for sending to a peer. Blocks of forks which have since been pruned from the
+	 * block tree are still found through the block store's index.
+	 * 
+	 * @param blockHash Hash of the block to lookup
+	 * @return String The raw block, or null if this node doesn't have it
 	 */
-	private ArrayList<Block> getLongestChain()
+	public String getRawBlockByHash(String blockHash)
 	{
-
-		boolean tiedBlockchains = false;
-		int largestChainIndex = -1;
-		int largestChainSize = -1;
-		for (int i = 0; i < chains.size(); i++)
+		BlockNode node = blockIndex.get(blockHash);
+		if (node != null)
 		{
-			if (chains.get(i).size() > largestChainSize)
-			{
-				tiedBlockchains = false;
-				largestChainIndex = i;
-				largestChainSize = chains.get(i).size();
-			}
-			else if (chains.get(i).size() == largestChainSize)
-			{
-				tiedBlockchains = true;
-			}
+			return getRawBlock(node);
 		}
-		
-		ArrayList<Block> largestChain = chains.get(0);
-		
-		// Set largestChain to the correct chain
-		if (!tiedBlockchains)
+		BlockStore.Location location = blockStore.getLocation(blockHash);
+		if (location == null)
 		{
-			largestChain = chains.get(largestChainIndex);
+			return null;
 		}
-		else // There were at least two chains of the same length, pick a winner by difficulty (otherwise precedence)
+		try
 		{
-			ArrayList<ArrayList<Block>> tiedChains = new ArrayList<ArrayList<Block>>();
-			for (int i = 0; i < chains.size(); i++)
-			{
-				if (chains.get(i).size() == largestChainSize)
-				{
-					tiedChains.add(chains.get(i));
-				}
-			}
-			
-			for (ArrayList<Block> potentialChain : tiedChains)
-			{
-				if (potentialChain.get(potentialChain.size() - 1).difficulty.compareTo(largestChain.get(largestChain.size() - 1).difficulty) > 0)
-				{
-					largestChain = potentialChain;
-				}
-			}
+			return blockStore.read(location);
+		} catch (Exception e)
+		{
+			e.printStackTrace();
+			return null;
 		}
-		
-		return largestChain;
 	}
 	
 	/**
-	 * Returns an ArrayList<Block> containing the most recent n blocks from the provided chain.
-	 * @param chain Chain to draw blocks from
-	 * @param n Number of recent blocks to pull
-	 * @return ArrayList<Block> containing the most recent n blocks from the provided chain
+	 * Get the block with the provided hash from any chain in the block tree.
+	 * 
+	 * @param blockHash Hash of the block to lookup
+	 * @return The block with the provided hash, or null if it isn't in the block tree
 	 */
-	private ArrayList<Block> getLastNBlocks(ArrayList<Block> chain, int n)
+	public Block getBlockByHash(String blockHash)
 	{
-		ArrayList<Block> previousBlocks = new ArrayList<>();
-		
-		for (int i = chain.size() - 1; (i >= 0 && i > chain.size() - (n + 1)); i--)
+		BlockNode node = blockIndex.get(blockHash);
+		if (node == null)
 		{
-			previousBlocks.add(chain.get(i));
+			return null;
 		}
-		return previousBlocks;
+		return loadBlock(node);
+	}
+	
+	/**
+	 * Returns the next signature index of an address, as LedgerManager's getAddressSignatureCount() method does, from the last
+	 * published view of the ledger.
+	 */
+	public int getAddressNextIndex(String address)
+	{
+		return ledgerManager.getView().getNextSignatureIndex(address);
 	}
 }
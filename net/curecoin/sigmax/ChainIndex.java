@@ -0,0 +1,409 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An index over the transactions of the longest chain. Blocks are indexed as they join the longest chain and dropped as they
+ * leave it; subclasses decide what each block contributes to the index.
+ *
+ * The index is kept in a file of records, each framed by RecordFrame like a ledger log record. A connect record
+ * holds a block's height, hash and index entries; a disconnect record drops every block from a height up. The file is
+ * replayed on startup, and rewritten without the disconnected blocks if there were any. A damaged tail is cut off.
+ *
+ * Only each block's hash and where its record starts are kept in memory, not its entries. When a block is dropped, its
+ * entries are built again from its transactions, found through the BlockSource; a block which is no longer known (for
+ * example, lost to a crash before it was committed) has its entries read back from its record instead.
+ *
+ * Every block on the longest chain is connected again while the blockchain file is loaded. Blocks the index already holds
+ * are recognised by their hash and skipped, and blocks missing from the index (for example, lost to a crash before the index
+ * was forced to disk) are indexed then, so the index always ends up matching the chain.
+ *
+ * @param <E> What one block contributes to the index
+ */
+public abstract class ChainIndex<E> implements Closeable
+{
+	private static final int CONNECT = 1;
+	private static final int DISCONNECT = 2;
+
+	private File indexFile;
+	private String name;
+	private FileChannel channel = null;
+
+	// The hash of the block indexed at each height, and where its connect record starts in the index file
+	private ArrayList<String> blockHashes = new ArrayList<String>();
+	private long[] recordOffsets = new long[1024];
+
+	private BlockSource blockSource = null;
+
+	/**
+	 * Finds the transactions of the blocks being dropped from an index.
+	 */
+	public interface BlockSource
+	{
+		/**
+		 * @param blockHash The hash of the block
+		 * @return ArrayList<Transaction> The block's transactions, or null if the block isn't known
+		 */
+		ArrayList<Transaction> getBlockTransactions(String blockHash);
+	}
+
+	/**
+	 * @param indexFile The path of the index file
+	 * @param name What the index holds, for messages
+	 */
+	protected ChainIndex(String indexFile, String name)
+	{
+		this.indexFile = new File(indexFile);
+		this.name = name;
+	}
+
+	/**
+	 * @param transactions A block's transactions
+	 * @return E The block's index entries
+	 */
+	protected abstract E buildEntries(ArrayList<Transaction> transactions);
+
+	protected abstract void writeEntries(DataOutputStream out, E entries) throws IOException;
+
+	protected abstract E readEntries(DataInputStream in) throws IOException;
+
+	/**
+	 * Adds a block's entries to the index. Blocks are added in height order.
+	 */
+	protected abstract void addEntries(int height, E entries);
+
+	/**
+	 * Removes a block's entries from the index. Blocks are removed from the highest down, and each block's entries are built
+	 * again for its removal, so they are equal to but not the same objects as the ones it was added with.
+	 */
+	protected abstract void removeEntries(int height, E entries);
+
+	/**
+	 * Removes every entry from the index.
+	 */
+	protected abstract void clearEntries();
+
+	/**
+	 * Reads everything the index file holds. Called once by the subclass's constructor, after its own fields are set up. An
+	 * index which can't be read is started over, and is rebuilt as the blockchain file is loaded.
+	 */
+	protected void open()
+	{
+		try
+		{
+			if (indexFile.exists())
+			{
+				load(recover());
+			}
+			channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException e)
+		{
+			System.err.println("[WARNING] Unable to read the " + name + " index; it will be rebuilt from the blockchain.");
+			e.printStackTrace();
+			blockHashes.clear();
+			clearEntries();
+			indexFile.delete();
+		}
+	}
+
+	/**
+	 * @param blockSource Where the transactions of dropped blocks are found
+	 */
+	public void setBlockSource(BlockSource blockSource)
+	{
+		this.blockSource = blockSource;
+	}
+
+	/**
+	 * Replays the index file's records to find which blocks are still indexed and where their connect records are, without
+	 * reading any entries.
+	 *
+	 * @return boolean Whether the file should be rewritten, because it holds disconnected blocks or a damaged tail
+	 */
+	private boolean recover() throws IOException
+	{
+		boolean rewrite = false;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(indexFile)))
+		{
+			long offset = 0;
+			byte[] payload;
+			while ((payload = RecordFrame.read(in, name + " index")) != null)
+			{
+				DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+				int type = data.readUnsignedByte();
+				int height = data.readInt();
+				if (type == CONNECT)
+				{
+					String blockHash = data.readUTF();
+					if (height != blockHashes.size())
+					{
+						throw new IOException("Expected a block at height " + blockHashes.size() + " but found one at " + height);
+					}
+					setRecordOffset(height, offset);
+					blockHashes.add(blockHash);
+				}
+				else if (type == DISCONNECT)
+				{
+					while (blockHashes.size() > height)
+					{
+						blockHashes.remove(blockHashes.size() - 1);
+					}
+					rewrite = true;
+				}
+				else
+				{
+					throw new IOException("Unknown " + name + " record type " + type);
+				}
+				offset += RecordFrame.HEADER_SIZE + payload.length;
+			}
+		} catch (IOException e)
+		{
+			System.err.println("[WARNING] The " + name + " index is damaged after block " + (blockHashes.size() - 1) + "; the rest will be rebuilt from the blockchain.");
+			rewrite = true;
+		}
+		return rewrite;
+	}
+
+	/**
+	 * Adds the entries of every block found by recover(). If the file is to be rewritten, the blocks' records are copied to a
+	 * new file, which is forced to disk before it replaces the old one.
+	 *
+	 * @param rewrite Whether to rewrite the file with only these blocks
+	 */
+	private void load(boolean rewrite) throws IOException
+	{
+		File newFile = new File(indexFile.getPath() + ".new");
+		try (FileChannel in = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+			 FileChannel out = rewrite ? FileChannel.open(newFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE) : null)
+		{
+			for (int height = 0; height < blockHashes.size(); height++)
+			{
+				byte[] payload = RecordFrame.read(in, recordOffsets[height], name + " index");
+				addEntries(height, decodeEntries(payload));
+				if (out != null)
+				{
+					setRecordOffset(height, RecordFrame.append(out, payload));
+				}
+			}
+			if (out != null)
+			{
+				out.force(true);
+			}
+		}
+		if (rewrite)
+		{
+			Files.move(newFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Indexes a block which joined the longest chain. A block the index already holds at that height is skipped, and any
+	 * different blocks held from that height up are dropped first.
+	 *
+	 * @param height The block's height
+	 * @param blockHash The block's hash
+	 * @param transactions The block's transactions
+	 */
+	public void connect(int height, String blockHash, ArrayList<Transaction> transactions)
+	{
+		if (height < blockHashes.size())
+		{
+			if (blockHashes.get(height).equals(blockHash))
+			{
+				return; // Already indexed
+			}
+			disconnect(height);
+		}
+		if (height != blockHashes.size())
+		{
+			System.err.println("[WARNING] Unable to index block #" + height + " in the " + name + "; blocks below it are missing.");
+			return;
+		}
+
+		E entries = buildEntries(transactions);
+		blockHashes.add(blockHash);
+		addEntries(height, entries);
+		try
+		{
+			setRecordOffset(height, append(encodeConnect(height, blockHash, entries)));
+		} catch (IOException e)
+		{
+			setRecordOffset(height, -1);
+			System.err.println("Unable to write block #" + height + " to the " + name + " index: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Drops every block from a height up, as they leave the longest chain.
+	 *
+	 * @param height The lowest height to drop
+	 */
+	public void disconnect(int height)
+	{
+		if (height >= blockHashes.size())
+		{
+			return;
+		}
+		truncate(height);
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(DISCONNECT);
+			out.writeInt(height);
+			out.close();
+			append(bytes.toByteArray());
+		} catch (IOException e)
+		{
+			System.err.println("Unable to write a disconnect of block #" + height + " to the " + name + " index: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param height A block height
+	 * @return String The hash of the block indexed at that height, or null if there is none
+	 */
+	public String getBlockHash(int height)
+	{
+		return height >= 0 && height < blockHashes.size() ? blockHashes.get(height) : null;
+	}
+
+	/**
+	 * Forces everything written so far to disk.
+	 */
+	public void sync() throws IOException
+	{
+		if (channel != null)
+		{
+			channel.force(false);
+		}
+	}
+
+	public void close() throws IOException
+	{
+		if (channel != null)
+		{
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private void setRecordOffset(int height, long offset)
+	{
+		if (height == recordOffsets.length)
+		{
+			recordOffsets = Arrays.copyOf(recordOffsets, recordOffsets.length * 2);
+		}
+		recordOffsets[height] = offset;
+	}
+
+	/**
+	 * Drops every block from a height up from memory, highest first. If a block's entries can't be built again, every entry
+	 * is dropped and the file emptied, so the whole index is rebuilt the next time the blockchain file is loaded.
+	 */
+	private void truncate(int height)
+	{
+		for (int h = blockHashes.size() - 1; h >= height; h--)
+		{
+			try
+			{
+				removeEntries(h, getEntries(h));
+			} catch (IOException e)
+			{
+				System.err.println("[WARNING] Unable to drop block #" + h + " from the " + name + " index; it will be rebuilt from the blockchain on the next start.");
+				e.printStackTrace();
+				blockHashes.clear();
+				clearEntries();
+				try
+				{
+					if (channel != null)
+					{
+						channel.truncate(0);
+					}
+				} catch (IOException truncateError)
+				{
+					indexFile.delete();
+				}
+				return;
+			}
+			blockHashes.remove(h);
+		}
+	}
+
+	/**
+	 * @return E The entries the block at a height was indexed with, built again from its transactions if it is still known
+	 */
+	private E getEntries(int height) throws IOException
+	{
+		ArrayList<Transaction> transactions = blockSource == null ? null : blockSource.getBlockTransactions(blockHashes.get(height));
+		if (transactions != null)
+		{
+			return buildEntries(transactions);
+		}
+		if (channel == null || recordOffsets[height] < 0)
+		{
+			throw new IOException("The record of block #" + height + " was never written");
+		}
+		return decodeEntries(RecordFrame.read(channel, recordOffsets[height], name + " index"));
+	}
+
+	/**
+	 * @return long Where the record starts in the index file
+	 */
+	private long append(byte[] payload) throws IOException
+	{
+		if (channel == null)
+		{
+			throw new IOException("The " + name + " index is not open");
+		}
+		return RecordFrame.append(channel, payload);
+	}
+
+	private byte[] encodeConnect(int height, String blockHash, E entries) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(CONNECT);
+		out.writeInt(height);
+		out.writeUTF(blockHash);
+		writeEntries(out, entries);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param payload A connect record's payload
+	 * @return E The entries it holds
+	 */
+	private E decodeEntries(byte[] payload) throws IOException
+	{
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		data.readUnsignedByte();
+		data.readInt();
+		data.readUTF();
+		return readEntries(data);
+	}
+}
@@ -0,0 +1,94 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+/**
+ * Decides when Blockchain commits the blocks and ledger changes it has built up. A commit forces every new block to disk
+ * before the ledger is written, so the ledger file never reflects a block that could be lost in a crash; whatever wasn't
+ * committed yet is simply downloaded and applied again on the next start.
+ *
+ * Policies are written as:
+ *   block      - commit after every block (the default)
+ *   blocks:N   - commit once N blocks are waiting
+ *   ms:N       - commit once the oldest waiting block has waited N milliseconds
+ *   shutdown   - only commit when the node shuts down
+ */
+public class CommitPolicy
+{
+	public static final CommitPolicy EVERY_BLOCK = new CommitPolicy(1, -1);
+	public static final CommitPolicy ON_SHUTDOWN = new CommitPolicy(-1, -1);
+
+	private int maxBlocks;
+	private long maxDelay;
+
+	/**
+	 * @param maxBlocks The number of waiting blocks which triggers a commit, or -1 for no limit
+	 * @param maxDelay How long in milliseconds the oldest block can wait before a commit, or -1 for no limit
+	 */
+	public CommitPolicy(int maxBlocks, long maxDelay)
+	{
+		this.maxBlocks = maxBlocks;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * @param policy A policy as written on the command line
+	 * @return CommitPolicy The policy
+	 * @throws IllegalArgumentException If the policy isn't in one of the forms above
+	 */
+	public static CommitPolicy parse(String policy)
+	{
+		policy = policy.trim().toLowerCase();
+		if (policy.equals("block"))
+		{
+			return EVERY_BLOCK;
+		}
+		if (policy.equals("shutdown"))
+		{
+			return ON_SHUTDOWN;
+		}
+		try
+		{
+			if (policy.startsWith("blocks:"))
+			{
+				int maxBlocks = Integer.parseInt(policy.substring(7));
+				if (maxBlocks > 0)
+				{
+					return new CommitPolicy(maxBlocks, -1);
+				}
+			}
+			else if (policy.startsWith("ms:"))
+			{
+				long maxDelay = Long.parseLong(policy.substring(3));
+				if (maxDelay >= 0)
+				{
+					return new CommitPolicy(-1, maxDelay);
+				}
+			}
+		} catch (NumberFormatException e)
+		{
+			// Reported below
+		}
+		throw new IllegalArgumentException("Unknown commit policy \"" + policy + "\"; expected block, blocks:N, ms:N or shutdown");
+	}
+
+	/**
+	 * @param waitingBlocks The number of blocks waiting to be committed
+	 * @param waitingSince When the oldest of them was added, from System.currentTimeMillis()
+	 * @return boolean Whether to commit now
+	 */
+	public boolean isDue(int waitingBlocks, long waitingSince)
+	{
+		if (waitingBlocks == 0)
+		{
+			return false;
+		}
+		return (maxBlocks > 0 && waitingBlocks >= maxBlocks) || (maxDelay >= 0 && System.currentTimeMillis() - waitingSince >= maxDelay);
+	}
+}
@@ -0,0 +1,98 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.math.BigInteger;
+
+/**
+ * Running totals over the most recent blocks of a chain, used to calculate the difficulty of the next block on that chain.
+ * Every BlockNode holds the window ending at its own block. A child's window is derived from its parent's in constant time
+ * by adding the new block and, once the window is full, dropping the oldest one. Disconnecting a block needs no work, as
+ * the parent's window is still held by the parent.
+ *
+ * The next difficulty is calculated once per window and then cached, so repeated queries for the same chain tip are free.
+ */
+public class DifficultyWindow
+{
+	public final int blockCount;
+	public final BigInteger difficultySum;
+	// Sum of the gaps between consecutive blocks in the window
+	public final long gapSum;
+	// Sum of the gaps, where the newest gap is weighted blockCount - 1 and the oldest is weighted 1
+	public final long weightedGapSum;
+	// Oldest block in the window, and the newest
+	public final BlockNode oldest;
+	public final BlockNode newest;
+
+	private BigInteger nextDifficulty = null;
+
+	private DifficultyWindow(int blockCount, BigInteger difficultySum, long gapSum, long weightedGapSum, BlockNode oldest, BlockNode newest)
+	{
+		this.blockCount = blockCount;
+		this.difficultySum = difficultySum;
+		this.gapSum = gapSum;
+		this.weightedGapSum = weightedGapSum;
+		this.oldest = oldest;
+		this.newest = newest;
+	}
+
+	/**
+	 * Creates the window for a chain made up of only the provided block.
+	 *
+	 * @param node Node of the first block
+	 * @return DifficultyWindow The window holding only that block
+	 */
+	public static DifficultyWindow startingAt(BlockNode node)
+	{
+		return new DifficultyWindow(1, node.difficulty, 0, 0, node, node);
+	}
+
+	/**
+	 * Creates the window ending at a new block, from the window ending at its parent.
+	 *
+	 * @param node Node of the new block; its parent must be the newest block of this window
+	 * @param maxBlocks The maximum number of blocks in a window
+	 * @param newOldest When this window is already full, the block after this window's oldest block on the new block's chain. Ignored otherwise.
+	 * @return DifficultyWindow The window ending at the new block
+	 */
+	public DifficultyWindow extend(BlockNode node, int maxBlocks, BlockNode newOldest)
+	{
+		long gap = node.timestamp - newest.timestamp;
+		if (blockCount < maxBlocks)
+		{
+			// The new gap is weighted one higher than the previous newest gap; all other weights stay the same
+			return new DifficultyWindow(blockCount + 1, difficultySum.add(node.difficulty), gapSum + gap, weightedGapSum + (long)blockCount * gap, oldest, node);
+		}
+
+		// Dropping the oldest gap lowers the weight of every remaining gap by one, and the new gap takes the top weight
+		long oldestGap = newOldest.timestamp - oldest.timestamp;
+		long newWeightedGapSum = weightedGapSum - gapSum + (long)(blockCount - 1) * gap;
+		BigInteger newDifficultySum = difficultySum.subtract(oldest.difficulty).add(node.difficulty);
+		return new DifficultyWindow(blockCount, newDifficultySum, gapSum - oldestGap + gap, newWeightedGapSum, newOldest, node);
+	}
+
+	/**
+	 * @return BigInteger The target difficulty for the block after the newest block in this window
+	 */
+	public BigInteger getNextDifficulty()
+	{
+		if (nextDifficulty == null)
+		{
+			if (blockCount == 1)
+			{
+				nextDifficulty = newest.difficulty;
+			}
+			else
+			{
+				nextDifficulty = Utilities.calculateNextDifficulty(difficultySum, blockCount, weightedGapSum);
+			}
+		}
+		return nextDifficulty;
+	}
+}
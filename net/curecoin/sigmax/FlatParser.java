@@ -0,0 +1,151 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+/**
+ * Helpers for parsing flat blocks and transactions in place. Instead of copying every chunk of a block into its own String
+ * and then splitting those again, a chunk is described by its start and end offsets into the original String, and only the
+ * individual fields are ever copied out.
+ *
+ * Splitting follows the same rules as String.split() with a single-character separator: a range without the separator is
+ * one piece (even if it is empty), and empty pieces at the end are dropped. This keeps parsing identical to the old
+ * split()-based code for every input, including malformed ones.
+ */
+public class FlatParser
+{
+	/**
+	 * Splits part of a String on a separator, without copying any of it.
+	 *
+	 * @param text The String holding the range
+	 * @param start Start of the range (inclusive)
+	 * @param end End of the range (exclusive)
+	 * @param separator The separator character
+	 * @return int[] The start and end offsets of each piece in turn: {start0, end0, start1, end1, ...}
+	 */
+	public static int[] split(String text, int start, int end, char separator)
+	{
+		int count = 1;
+		for (int i = start; i < end; i++)
+		{
+			if (text.charAt(i) == separator)
+			{
+				count++;
+			}
+		}
+
+		int[] pieces = new int[count * 2];
+		int pieceStart = start;
+		int piece = 0;
+		for (int i = start; i < end; i++)
+		{
+			if (text.charAt(i) == separator)
+			{
+				pieces[piece * 2] = pieceStart;
+				pieces[piece * 2 + 1] = i;
+				piece++;
+				pieceStart = i + 1;
+			}
+		}
+		pieces[piece * 2] = pieceStart;
+		pieces[piece * 2 + 1] = end;
+
+		if (count == 1)
+		{
+			return pieces;
+		}
+
+		// Like String.split(), drop empty pieces from the end
+		int kept = count;
+		while (kept > 0 && pieces[kept * 2 - 2] == pieces[kept * 2 - 1])
+		{
+			kept--;
+		}
+		if (kept == count)
+		{
+			return pieces;
+		}
+		int[] trimmed = new int[kept * 2];
+		System.arraycopy(pieces, 0, trimmed, 0, trimmed.length);
+		return trimmed;
+	}
+
+	/**
+	 * Splits part of a String on a separator, copying out each piece. Meant for short ranges whose pieces are all needed.
+	 *
+	 * @param text The String holding the range
+	 * @param start Start of the range (inclusive)
+	 * @param end End of the range (exclusive)
+	 * @param separator The separator character
+	 * @return String[] The pieces, the same as text.substring(start, end).split(separator) would give
+	 */
+	public static String[] splitToStrings(String text, int start, int end, char separator)
+	{
+		int[] pieces = split(text, start, end, separator);
+		String[] strings = new String[pieces.length / 2];
+		for (int i = 0; i < strings.length; i++)
+		{
+			strings[i] = text.substring(pieces[i * 2], pieces[i * 2 + 1]);
+		}
+		return strings;
+	}
+
+	/**
+	 * @param text The String holding the range
+	 * @param start Start of the range (inclusive)
+	 * @param end End of the range (exclusive)
+	 * @return String The range with every { and } removed
+	 */
+	public static String removeBraces(String text, int start, int end)
+	{
+		StringBuilder result = new StringBuilder(end - start);
+		for (int i = start; i < end; i++)
+		{
+			char c = text.charAt(i);
+			if (c != '{' && c != '}')
+			{
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Narrows a range to exclude the braces wrapping it, so its content can be parsed in place.
+	 *
+	 * @param text The String holding the range
+	 * @param start Start of the range (inclusive)
+	 * @param end End of the range (exclusive)
+	 * @return int[] The start and end of the content, or null if there are braces inside it, in which case the caller has to fall
+	 *         back to removeBraces()
+	 */
+	public static int[] trimBraces(String text, int start, int end)
+	{
+		while (start < end && isBrace(text.charAt(start)))
+		{
+			start++;
+		}
+		while (end > start && isBrace(text.charAt(end - 1)))
+		{
+			end--;
+		}
+		for (int i = start; i < end; i++)
+		{
+			if (isBrace(text.charAt(i)))
+			{
+				return null;
+			}
+		}
+		return new int[] {start, end};
+	}
+
+	private static boolean isBrace(char c)
+	{
+		return c == '{' || c == '}';
+	}
+}
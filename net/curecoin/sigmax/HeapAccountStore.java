@@ -0,0 +1,193 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps every address's state on the heap, in parallel primitive arrays indexed by the address's ID in an AddressTable, so an
+ * account costs a few array slots rather than a map entry and boxed values. The listed IDs are also kept sorted by order in a
+ * ListedAddressIndex. A removed address gives its ID back to the table for the next new address, so the arrays are only as
+ * long as the most accounts held at once. Nothing is kept between runs, so the ledger is read from its snapshot and log on
+ * every start.
+ *
+ * The store is changed only by the thread applying blocks. A read from another thread could see the arrays part way through
+ * a change, so LedgerManager holds a lock around each change which such reads wait on.
+ */
+public class HeapAccountStore implements AccountStore
+{
+	// The order of an ID which has no entry, as opposed to -1 for an entry which isn't listed
+	private static final long NO_ENTRY = Long.MIN_VALUE;
+
+	private static final int INITIAL_CAPACITY = 16384;
+
+	private AddressTable addressTable = new AddressTable();
+	private long[] balances = new long[INITIAL_CAPACITY];
+	private int[] signatureCounts = new int[INITIAL_CAPACITY];
+	private long[] orders = newOrders(INITIAL_CAPACITY);
+	private int count = 0;
+	private ListedAddressIndex listed = new ListedAddressIndex();
+
+	/**
+	 * @return int The ID of the address if it has an entry, or -1
+	 */
+	private int findId(String address)
+	{
+		int id = addressTable.getId(address);
+		return id >= 0 && orders[id] != NO_ENTRY ? id : -1;
+	}
+
+	public boolean contains(String address)
+	{
+		return findId(address) >= 0;
+	}
+
+	public long getBalance(String address)
+	{
+		int id = findId(address);
+		return id < 0 ? 0L : balances[id];
+	}
+
+	public int getSignatureCount(String address)
+	{
+		int id = findId(address);
+		return id < 0 ? -1 : signatureCounts[id];
+	}
+
+	public long getOrder(String address)
+	{
+		int id = findId(address);
+		return id < 0 ? -1 : orders[id];
+	}
+
+	public void put(String address, long balance, int signatureCount, long order)
+	{
+		int id = addressTable.intern(address);
+		if (id >= orders.length)
+		{
+			int capacity = Math.max(orders.length * 2, id + 1);
+			balances = Arrays.copyOf(balances, capacity);
+			signatureCounts = Arrays.copyOf(signatureCounts, capacity);
+			long[] grown = newOrders(capacity);
+			System.arraycopy(orders, 0, grown, 0, orders.length);
+			orders = grown;
+		}
+		if (orders[id] == NO_ENTRY)
+		{
+			count++; // A new ID, or one released by a removed address
+		}
+		long newOrder = order < 0 ? -1 : order;
+		if (orders[id] != newOrder)
+		{
+			if (orders[id] >= 0)
+			{
+				listed.remove(orders[id]);
+			}
+			if (newOrder >= 0)
+			{
+				listed.add(newOrder, id);
+			}
+		}
+		balances[id] = balance;
+		signatureCounts[id] = signatureCount;
+		orders[id] = newOrder;
+	}
+
+	public void remove(String address)
+	{
+		int id = findId(address);
+		if (id >= 0)
+		{
+			removeId(id);
+		}
+	}
+
+	private void removeId(int id)
+	{
+		if (orders[id] >= 0)
+		{
+			listed.remove(orders[id]);
+		}
+		orders[id] = NO_ENTRY;
+		balances[id] = 0;
+		signatureCounts[id] = 0;
+		count--;
+		addressTable.release(id);
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	public ArrayList<String> getListedAddresses()
+	{
+		int[] ids = listed.getLocations();
+		ArrayList<String> addresses = new ArrayList<String>(ids.length);
+		for (int id : ids)
+		{
+			addresses.add(addressTable.getAddress(id));
+		}
+		return addresses;
+	}
+
+	public long removeUnlisted()
+	{
+		long nextOrder = 0;
+		for (int id = 0; id < addressTable.getIdLimit(); id++)
+		{
+			if (orders[id] == -1)
+			{
+				removeId(id);
+			}
+			else if (orders[id] >= 0)
+			{
+				nextOrder = Math.max(nextOrder, orders[id] + 1);
+			}
+		}
+		return nextOrder;
+	}
+
+	public void clear()
+	{
+		addressTable.clear();
+		balances = new long[INITIAL_CAPACITY];
+		signatureCounts = new int[INITIAL_CAPACITY];
+		orders = newOrders(INITIAL_CAPACITY);
+		count = 0;
+		listed.clear();
+	}
+
+	private static long[] newOrders(int capacity)
+	{
+		long[] orders = new long[capacity];
+		Arrays.fill(orders, NO_ENTRY);
+		return orders;
+	}
+
+	public void save(int lastBlockNum, long logSequence)
+	{
+		// Nothing is kept between runs
+	}
+
+	public long getSavedSequence()
+	{
+		return -1;
+	}
+
+	public int getSavedLastBlockNum()
+	{
+		return -1;
+	}
+
+	public void close()
+	{
+	}
+}
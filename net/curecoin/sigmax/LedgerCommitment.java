@@ -0,0 +1,377 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A sparse Merkle tree over the listed addresses of the ledger, so that one address's balance can be proven against the
+ * root without the rest of the ledger. It is kept alongside the ledger hash, which blocks still commit to; the root isn't
+ * part of any block.
+ *
+ * Each address sits under the 256-bit path SHA-256(address), where a 0 bit goes left. A subtree holding one address is
+ * replaced by that address's leaf, so an address sits at the shallowest depth where no other address shares its path, and
+ * updating one address costs a hash per level above it, O(log n) for n addresses.
+ *
+ * Hashes, all SHA-256:
+ *   value    = H(UTF-8 of "address:balance:signatureCount"), the address's line of the ledger hash without the newline
+ *   leaf     = H(0x00 || path || value)
+ *   internal = H(0x01 || left || right)
+ *   empty    = 32 zero bytes, also the root of an empty tree
+ *
+ * A proof lists the siblings of every node from the one reached by following the path, up to the root. Hashing the reached
+ * node with each sibling in turn, on the side given by the path's bit at that depth, must give the root. The reached node is
+ * either the address's own leaf, or shows the address isn't listed: an empty subtree, or another address's leaf.
+ */
+public class LedgerCommitment
+{
+	public static final int HASH_SIZE = 32;
+
+	private static final byte[] EMPTY = new byte[HASH_SIZE];
+	private static final byte LEAF_PREFIX = 0;
+	private static final byte INTERNAL_PREFIX = 1;
+
+	private Node root = null;
+	private int size = 0;
+	private MessageDigest md;
+
+	private static abstract class Node
+	{
+		byte[] hash;
+	}
+
+	private static class Leaf extends Node
+	{
+		final byte[] path;
+		final byte[] value;
+
+		Leaf(byte[] path, byte[] value, byte[] hash)
+		{
+			this.path = path;
+			this.value = value;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Never has two empty children, or one empty child and one leaf; those collapse into the leaf or into nothing.
+	 */
+	private static class Internal extends Node
+	{
+		Node left;
+		Node right;
+	}
+
+	/**
+	 * A proof of an address's place in the tree, as of the root it was made for.
+	 */
+	public static class Proof
+	{
+		public final String address;
+		// The address's line as the ledger holds it, address:balance:signatureCount, or null if it isn't listed
+		public final String line;
+		public final byte[] path;
+		public final byte[] root;
+		// Closest to the reached node first, up to the root's children
+		public final byte[][] siblings;
+		// Whether the path reaches the address's own leaf
+		public final boolean included;
+		// When the path reaches another address's leaf, its path and value; otherwise null
+		public final byte[] otherPath;
+		public final byte[] otherValue;
+
+		Proof(String address, String line, byte[] path, byte[] root, byte[][] siblings, boolean included, byte[] otherPath, byte[] otherValue)
+		{
+			this.address = address;
+			this.line = line;
+			this.path = path;
+			this.root = root;
+			this.siblings = siblings;
+			this.included = included;
+			this.otherPath = otherPath;
+			this.otherValue = otherValue;
+		}
+	}
+
+	public LedgerCommitment()
+	{
+		md = newDigest();
+	}
+
+	/**
+	 * Adds an address, or replaces its leaf.
+	 *
+	 * @param address The address
+	 * @param line The address's line of the ledger hash, address:balance:signatureCount
+	 */
+	public void put(String address, String line)
+	{
+		byte[] path = hash(address.getBytes(StandardCharsets.UTF_8));
+		byte[] value = hash(line.getBytes(StandardCharsets.UTF_8));
+		root = insert(root, 0, new Leaf(path, value, hashLeaf(md, path, value)));
+	}
+
+	/**
+	 * Removes an address, if it is in the tree.
+	 *
+	 * @param address The address
+	 */
+	public void remove(String address)
+	{
+		root = delete(root, 0, hash(address.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * @return int The number of addresses in the tree
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return byte[] The root hash
+	 */
+	public byte[] getRoot()
+	{
+		return hashOf(root).clone();
+	}
+
+	/**
+	 * @param address The address to prove
+	 * @param line The address's line as the ledger holds it, or null if it isn't listed, to return with the proof
+	 * @return Proof The siblings along the address's path, and what the path reaches
+	 */
+	public Proof getProof(String address, String line)
+	{
+		byte[] path = hash(address.getBytes(StandardCharsets.UTF_8));
+		ArrayList<byte[]> siblings = new ArrayList<byte[]>();
+		Node node = root;
+		int depth = 0;
+		while (node instanceof Internal)
+		{
+			Internal internal = (Internal)node;
+			boolean right = bit(path, depth);
+			siblings.add(hashOf(right ? internal.left : internal.right).clone());
+			node = right ? internal.right : internal.left;
+			depth++;
+		}
+		byte[][] bottomUp = new byte[siblings.size()][];
+		for (int i = 0; i < bottomUp.length; i++)
+		{
+			bottomUp[i] = siblings.get(siblings.size() - 1 - i);
+		}
+		if (node == null)
+		{
+			return new Proof(address, line, path, getRoot(), bottomUp, false, null, null);
+		}
+		Leaf leaf = (Leaf)node;
+		if (Arrays.equals(leaf.path, path))
+		{
+			return new Proof(address, line, path, getRoot(), bottomUp, true, null, null);
+		}
+		return new Proof(address, line, path, getRoot(), bottomUp, false, leaf.path.clone(), leaf.value.clone());
+	}
+
+	/**
+	 * Checks a proof the way a client holding only the root would.
+	 *
+	 * @param root The root to check against
+	 * @param address The address proven
+	 * @param line The address's claimed line, address:balance:signatureCount, or null to check that it isn't listed
+	 * @param siblings The proof's siblings, closest to the reached node first
+	 * @param otherPath When proving an address isn't listed and its path reaches another address's leaf, that leaf's path
+	 * @param otherValue And that leaf's value
+	 * @return boolean Whether the proof holds
+	 */
+	public static boolean verify(byte[] root, String address, String line, byte[][] siblings, byte[] otherPath, byte[] otherValue)
+	{
+		MessageDigest md = newDigest();
+		byte[] path = hash(md, address.getBytes(StandardCharsets.UTF_8));
+		if (siblings.length > path.length * 8)
+		{
+			return false;
+		}
+		byte[] node;
+		if (line != null)
+		{
+			node = hashLeaf(md, path, hash(md, line.getBytes(StandardCharsets.UTF_8)));
+		}
+		else if (otherPath != null)
+		{
+			// The other leaf must share the path down to where it sits, and be a different address
+			for (int depth = 0; depth < siblings.length; depth++)
+			{
+				if (bit(otherPath, depth) != bit(path, depth))
+				{
+					return false;
+				}
+			}
+			if (Arrays.equals(otherPath, path))
+			{
+				return false;
+			}
+			node = hashLeaf(md, otherPath, otherValue);
+		}
+		else
+		{
+			node = EMPTY;
+		}
+		for (int i = 0; i < siblings.length; i++)
+		{
+			int depth = siblings.length - 1 - i;
+			node = bit(path, depth) ? hashInternal(md, siblings[i], node) : hashInternal(md, node, siblings[i]);
+		}
+		return Arrays.equals(node, root);
+	}
+
+	private Node insert(Node node, int depth, Leaf leaf)
+	{
+		if (node == null)
+		{
+			size++;
+			return leaf;
+		}
+		if (node instanceof Leaf)
+		{
+			Leaf existing = (Leaf)node;
+			if (Arrays.equals(existing.path, leaf.path))
+			{
+				return leaf;
+			}
+			size++;
+			return split(existing, leaf, depth);
+		}
+		Internal internal = (Internal)node;
+		if (bit(leaf.path, depth))
+		{
+			internal.right = insert(internal.right, depth + 1, leaf);
+		}
+		else
+		{
+			internal.left = insert(internal.left, depth + 1, leaf);
+		}
+		internal.hash = hashInternal(md, hashOf(internal.left), hashOf(internal.right));
+		return internal;
+	}
+
+	/**
+	 * Builds the internal nodes above two leaves down to the depth where their paths part.
+	 */
+	private Node split(Leaf a, Leaf b, int depth)
+	{
+		Internal internal = new Internal();
+		boolean aRight = bit(a.path, depth);
+		if (aRight == bit(b.path, depth))
+		{
+			Node child = split(a, b, depth + 1);
+			internal.left = aRight ? null : child;
+			internal.right = aRight ? child : null;
+		}
+		else
+		{
+			internal.left = aRight ? b : a;
+			internal.right = aRight ? a : b;
+		}
+		internal.hash = hashInternal(md, hashOf(internal.left), hashOf(internal.right));
+		return internal;
+	}
+
+	private Node delete(Node node, int depth, byte[] path)
+	{
+		if (node == null)
+		{
+			return null;
+		}
+		if (node instanceof Leaf)
+		{
+			if (Arrays.equals(((Leaf)node).path, path))
+			{
+				size--;
+				return null;
+			}
+			return node;
+		}
+		Internal internal = (Internal)node;
+		if (bit(path, depth))
+		{
+			internal.right = delete(internal.right, depth + 1, path);
+		}
+		else
+		{
+			internal.left = delete(internal.left, depth + 1, path);
+		}
+		// A subtree left with a single leaf collapses into it
+		if (internal.left == null && (internal.right == null || internal.right instanceof Leaf))
+		{
+			return internal.right;
+		}
+		if (internal.right == null && internal.left instanceof Leaf)
+		{
+			return internal.left;
+		}
+		internal.hash = hashInternal(md, hashOf(internal.left), hashOf(internal.right));
+		return internal;
+	}
+
+	private static byte[] hashOf(Node node)
+	{
+		return node == null ? EMPTY : node.hash;
+	}
+
+	/**
+	 * @return boolean Whether the path goes right at a depth
+	 */
+	private static boolean bit(byte[] path, int depth)
+	{
+		return (path[depth >>> 3] & (0x80 >>> (depth & 7))) != 0;
+	}
+
+	private byte[] hash(byte[] data)
+	{
+		return hash(md, data);
+	}
+
+	private static byte[] hash(MessageDigest md, byte[] data)
+	{
+		md.reset();
+		return md.digest(data);
+	}
+
+	private static byte[] hashLeaf(MessageDigest md, byte[] path, byte[] value)
+	{
+		md.reset();
+		md.update(LEAF_PREFIX);
+		md.update(path);
+		return md.digest(value);
+	}
+
+	private static byte[] hashInternal(MessageDigest md, byte[] left, byte[] right)
+	{
+		md.reset();
+		md.update(INTERNAL_PREFIX);
+		md.update(left);
+		return md.digest(right);
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Append-only log of ledger changes, kept next to the ledger snapshot. Each record holds the last block number and the new
+ * state of every address changed since the previous record, so writing one costs as much as the number of addresses changed
+ * rather than the size of the ledger.
+ *
+ * Records are numbered in order, and a snapshot notes the number of the last record it includes. The log is split into files
+ * named after the number of their first record (AccountBalances.bal.1.wal, AccountBalances.bal.1042.wal, ...); rotate()
+ * starts a new file, so the files a snapshot has made redundant can be deleted as a whole.
+ *
+ * Every record is framed by RecordFrame, like a block record. Reading stops at the first damaged record, which is
+ * cut off along with everything after it, so a record left partly written by a crash is dropped.
+ */
+public class LedgerLog implements Closeable
+{
+	// The first byte of every record; records written before it held address list positions instead of orders
+	private static final int RECORD_FORMAT = 1;
+
+	private String ledgerFile;
+
+	// The number of the next record
+	private long nextSequence = 1;
+
+	// The file being appended to, or null if the next record starts a new file
+	private File activeFile = null;
+	private FileChannel activeChannel = null;
+
+	/**
+	 * The state of one address after a record. An address which isn't listed is dropped from the ledger.
+	 */
+	public static class Entry
+	{
+		public final String address;
+		public final long order;
+		public final long balance;
+		public final int signatureCount;
+
+		/**
+		 * @param address The address
+		 * @param order The address's order, or -1 if it isn't listed
+		 * @param balance The address's balance
+		 * @param signatureCount The address's signature count
+		 */
+		public Entry(String address, long order, long balance, int signatureCount)
+		{
+			this.address = address;
+			this.order = order;
+			this.balance = balance;
+			this.signatureCount = signatureCount;
+		}
+	}
+
+	/**
+	 * One set of ledger changes.
+	 */
+	public static class Record
+	{
+		public final long sequence;
+		public final int lastBlockNum;
+		public final ArrayList<Entry> entries;
+
+		public Record(long sequence, int lastBlockNum, ArrayList<Entry> entries)
+		{
+			this.sequence = sequence;
+			this.lastBlockNum = lastBlockNum;
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * @param ledgerFile The path of the ledger snapshot the log belongs to
+	 */
+	public LedgerLog(String ledgerFile)
+	{
+		this.ledgerFile = ledgerFile;
+	}
+
+	/**
+	 * @return ArrayList<File> Every log file, oldest first
+	 */
+	private ArrayList<File> getLogFiles()
+	{
+		File ledger = new File(ledgerFile).getAbsoluteFile();
+		String prefix = ledger.getName() + ".";
+		ArrayList<Long> starts = new ArrayList<Long>();
+		File[] files = ledger.getParentFile().listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				String name = file.getName();
+				if (name.startsWith(prefix) && name.endsWith(".wal"))
+				{
+					try
+					{
+						starts.add(Long.parseLong(name.substring(prefix.length(), name.length() - 4)));
+					} catch (NumberFormatException e)
+					{
+						// Not a log file
+					}
+				}
+			}
+		}
+		Collections.sort(starts);
+		ArrayList<File> logFiles = new ArrayList<File>();
+		for (long start : starts)
+		{
+			logFiles.add(getLogFile(start));
+		}
+		return logFiles;
+	}
+
+	private File getLogFile(long firstSequence)
+	{
+		return new File(ledgerFile + "." + firstSequence + ".wal");
+	}
+
+	private static long getFirstSequence(File logFile)
+	{
+		String name = logFile.getName();
+		return Long.parseLong(name.substring(name.lastIndexOf('.', name.length() - 5) + 1, name.length() - 4));
+	}
+
+	/**
+	 * Reads every intact record, cutting off a damaged or partly written record along with everything after it. Appending
+	 * continues after the last intact record.
+	 *
+	 * @param snapshotSequence The number of the last record included in the snapshot
+	 * @return ArrayList<Record> The records after the snapshot, in order
+	 */
+	public ArrayList<Record> recover(long snapshotSequence) throws IOException
+	{
+		ArrayList<Record> records = new ArrayList<Record>();
+		long lastSequence = snapshotSequence;
+		ArrayList<File> logFiles = getLogFiles();
+		for (int i = 0; i < logFiles.size(); i++)
+		{
+			File logFile = logFiles.get(i);
+			long goodEnd = 0;
+			boolean damaged = false;
+			try (InputStream in = new BufferedInputStream(new FileInputStream(logFile)))
+			{
+				byte[] payload;
+				while ((payload = RecordFrame.read(in, "ledger log")) != null)
+				{
+					Record record = decode(payload);
+					if (record.sequence > snapshotSequence)
+					{
+						// A missing record can't be skipped, as the ones after it only hold what changed since
+						if (record.sequence != lastSequence + 1)
+						{
+							throw new IOException("Expected ledger log record " + (lastSequence + 1) + " but found " + record.sequence);
+						}
+						records.add(record);
+						lastSequence = record.sequence;
+					}
+					goodEnd += RecordFrame.HEADER_SIZE + payload.length;
+				}
+			} catch (IOException e)
+			{
+				damaged = true;
+			}
+
+			if (damaged)
+			{
+				System.err.println("[WARNING] The ledger log " + logFile + " is damaged after " + goodEnd + " bytes; the rest will be rebuilt from the blockchain.");
+				for (int j = i + 1; j < logFiles.size(); j++)
+				{
+					logFiles.get(j).delete();
+				}
+				if (goodEnd == 0)
+				{
+					logFile.delete();
+					break;
+				}
+				try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE))
+				{
+					channel.truncate(goodEnd);
+				}
+				activeFile = logFile;
+				break;
+			}
+			activeFile = logFile;
+		}
+		nextSequence = lastSequence + 1;
+		return records;
+	}
+
+	/**
+	 * Appends a record and forces it to disk.
+	 *
+	 * @param lastBlockNum The ledger's last block number
+	 * @param entries The new state of every address changed since the previous record
+	 * @return long The number of the record
+	 */
+	public long append(int lastBlockNum, ArrayList<Entry> entries) throws IOException
+	{
+		long sequence = nextSequence;
+		byte[] payload = encode(new Record(sequence, lastBlockNum, entries));
+
+		if (activeFile == null)
+		{
+			activeFile = getLogFile(sequence);
+		}
+		if (activeChannel == null)
+		{
+			activeChannel = FileChannel.open(activeFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
+		RecordFrame.append(activeChannel, payload);
+		activeChannel.force(false);
+		nextSequence++;
+		return sequence;
+	}
+
+	/**
+	 * Finishes the current log file; the next record starts a new one.
+	 *
+	 * @return long The number of the last record written
+	 */
+	public long rotate() throws IOException
+	{
+		close();
+		activeFile = null;
+		return nextSequence - 1;
+	}
+
+	/**
+	 * @return long The number of the last record written or recovered, or 0 if there is none
+	 */
+	public long getLastSequence()
+	{
+		return nextSequence - 1;
+	}
+
+	/**
+	 * Deletes every log file holding only records up to the provided one, once a snapshot includes them.
+	 *
+	 * @param snapshotSequence The number of the last record included in the snapshot
+	 */
+	public void deleteThrough(long snapshotSequence)
+	{
+		ArrayList<File> logFiles = getLogFiles();
+		for (int i = 0; i < logFiles.size(); i++)
+		{
+			// A file's records end where the next file's begin
+			if (i + 1 < logFiles.size() && getFirstSequence(logFiles.get(i + 1)) <= snapshotSequence + 1)
+			{
+				logFiles.get(i).delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes every log file, for a ledger starting over without a snapshot.
+	 */
+	public void clear() throws IOException
+	{
+		close();
+		for (File logFile : getLogFiles())
+		{
+			logFile.delete();
+		}
+		activeFile = null;
+		nextSequence = 1;
+	}
+
+	public void close() throws IOException
+	{
+		if (activeChannel != null)
+		{
+			activeChannel.close();
+			activeChannel = null;
+		}
+	}
+
+	private static byte[] encode(Record record) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_FORMAT);
+		out.writeLong(record.sequence);
+		out.writeInt(record.lastBlockNum);
+		out.writeInt(record.entries.size());
+		for (Entry entry : record.entries)
+		{
+			out.writeUTF(entry.address);
+			out.writeLong(entry.order);
+			out.writeLong(entry.balance);
+			out.writeInt(entry.signatureCount);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Record decode(byte[] payload) throws IOException
+	{
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		int format = data.readUnsignedByte();
+		if (format != RECORD_FORMAT)
+		{
+			throw new IOException("A ledger log record has the unknown format " + format);
+		}
+		long sequence = data.readLong();
+		int lastBlockNum = data.readInt();
+		int count = data.readInt();
+		ArrayList<Entry> entries = new ArrayList<Entry>(Math.max(0, Math.min(count, payload.length / 24)));
+		for (int i = 0; i < count; i++)
+		{
+			entries.add(new Entry(data.readUTF(), data.readLong(), data.readLong(), data.readInt()));
+		}
+		return new Record(sequence, lastBlockNum, entries);
+	}
+}
@@ -10,18 +10,62 @@ package net.curecoin.sigmax;
 
 import java.io.*;
 
+import java.nio.file.*;
 import java.util.*;
 import java.security.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 import javax.xml.bind.DatatypeConverter;
+
+/**
+ * The ledger: the balance and signature count of every address, and the order addresses were added in, which the ledger
+ * hash depends on. The state of each address is held in an AccountStore, either on the heap or in a memory-mapped table, which
+ * also keeps its listed addresses sorted by order in a ListedAddressIndex, so they are walked without sorting. Other threads read
+ * balances from a LedgerView published after each block, which reads the account store and keeps the prior state of whatever
+ * the ledger changes after it, rather than from the changing ledger.
+ * 
+ * The address database file is a snapshot of the ledger, in the binary LedgerSnapshot format. Changes made after it are
+ * appended to a LedgerLog as each block is committed, so writing the ledger costs as much as the number of addresses a block
+ * changed. Every SNAPSHOT_INTERVAL blocks a new snapshot is written in the background and the log files it covers are
+ * deleted. On startup, the snapshot is read and the log is replayed on top of it. Text snapshots from older versions are
+ * still read, and replaced by the next snapshot. An account store which kept its contents from a clean shutdown is used as it is instead
+ * of the snapshot, and only the log records after it are replayed.
+ */
 public class LedgerManager
 {
+    // The number of blocks the ledger can move away from its snapshot before a new snapshot is written
+    public static final int SNAPSHOT_INTERVAL = 1000;
+    
+
+    // Held by an address which has a balance entry but no signature count entry, which an empty transaction can leave
+    private static final int NO_SIGNATURE_COUNT = Integer.MIN_VALUE;
+
     private File addressDatabase;
     public String addressDatabaseName;
-    private ConcurrentHashMap<String, Long> addressBalances;
-    private ConcurrentHashMap<String, Integer> addressSignatureCounts;
-    private ArrayList<String> addresses;
+    private AccountStore accountStore;
+    // The order given to the next address added to the ledger
+    private long nextOrder = 0;
+    // The ledger as of the last published block, for other threads to read
+    private volatile LedgerView view = null;
+    // Held for writing around each change to the account store, and for reading by other threads reading it through a view
+    private final ReentrantReadWriteLock storeLock = new ReentrantReadWriteLock();
+    // The ledger hash as of the last change, or null if the ledger changed since it was computed
+    private String ledgerHash = null;
+    // The Merkle commitment to the ledger, or null if it isn't kept, and the addresses changed since it was last brought up to date
+    private LedgerCommitment commitment = null;
+    private LinkedHashSet<String> uncommittedAddresses = new LinkedHashSet<String>();
     public int lastBlockNum = -1;
+    // While a block is being applied, the prior state of every address it changes is recorded here
+    private BlockUndo undoRecord = null;
+    
+    // Changes since the snapshot, and the addresses changed since the last record was appended to it
+    private LedgerLog ledgerLog;
+    private LinkedHashSet<String> changedAddresses = new LinkedHashSet<String>();
+    // The last block num as of the last record, and as of the snapshot
+    private int loggedLastBlockNum = -1;
+    private int snapshotLastBlockNum = -1;
+    // Writes the latest snapshot, or null if none has been started
+    private Thread snapshotThread = null;
 
     /**
      * Constructor for LedgerManager. All that is needed is the path to the address database file.
@@ -32,43 +76,83 @@ public class LedgerManager
      * @param addressDatabase The String representation of the address database file
      */
     public LedgerManager(String addressDatabase)
+    {
+        this(addressDatabase, new HeapAccountStore());
+    }
+
+    /**
+     * @param addressDatabase The String representation of the address database file
+     * @param accountStore Where to keep the state of every address
+     */
+    public LedgerManager(String addressDatabase, AccountStore accountStore)
     {
         this.addressDatabaseName = addressDatabase;
         this.addressDatabase = new File(addressDatabase);
-        this.addresses = new ArrayList<String>();
-        addressBalances = new ConcurrentHashMap<String, Long>(16384);
-        addressSignatureCounts = new ConcurrentHashMap<String, Integer>(16384);
+        this.accountStore = accountStore;
+        this.ledgerLog = new LedgerLog(addressDatabase);
         if (this.addressDatabase.exists())
         {
             try
             {
-                Scanner readAddressDatabase = new Scanner(this.addressDatabase);
-                this.lastBlockNum = Integer.parseInt(readAddressDatabase.nextLine());
-                while (readAddressDatabase.hasNextLine())
+                // Snapshots written before the binary format are text, read line by line
+                boolean binarySnapshot = LedgerSnapshot.isSnapshot(this.addressDatabase);
+                Scanner readAddressDatabase = null;
+                long snapshotSequence = 0;
+                String firstLine = "";
+                if (binarySnapshot)
+                {
+                    LedgerSnapshot header = LedgerSnapshot.readHeader(this.addressDatabase);
+                    this.lastBlockNum = header.lastBlockNum;
+                    snapshotSequence = header.logSequence;
+                }
+                else
+                {
+                    readAddressDatabase = new Scanner(this.addressDatabase);
+                    this.lastBlockNum = Integer.parseInt(readAddressDatabase.nextLine());
+                    firstLine = readAddressDatabase.hasNextLine() ? readAddressDatabase.nextLine() : "";
+                    if (firstLine.startsWith("WAL "))
+                    {
+                        snapshotSequence = Long.parseLong(firstLine.substring(4).trim()); // The last log record included
+                        firstLine = "";
+                    }
+                }
+                this.snapshotLastBlockNum = this.lastBlockNum;
+                
+                long replayFrom;
+                long savedSequence = accountStore.getSavedSequence();
+                if (savedSequence >= 0 && savedSequence >= snapshotSequence)
+                {
+                    // The store is at least as recent as the snapshot, and the log still holds every record after it
+                    System.out.println("Using the saved account table with " + accountStore.size() + " addresses.");
+                    this.lastBlockNum = accountStore.getSavedLastBlockNum();
+                    this.nextOrder = accountStore.removeUnlisted(); // Unlisted addresses aren't kept between runs
+                    replayFrom = savedSequence;
+                }
+                else
                 {
-                    String input = readAddressDatabase.nextLine();
-                    if (input.contains(":"))
+                    accountStore.clear();
+                    if (binarySnapshot)
                     {
-                        String[] parts = input.split(":");
-                        String address = parts[0];
-                        if (MerkleAddressUtility.isAddressFormattedCorrectly(address))
+                        loadSnapshot(LedgerSnapshot.read(this.addressDatabase));
+                    }
+                    else
+                    {
+                        readSnapshotLine(firstLine);
+                        while (readAddressDatabase.hasNextLine())
                         {
-                            try
-                            {
-                                long addressBalance = Long.parseLong(parts[1]);
-                                int currentSignatureCount = Integer.parseInt(parts[2]);
-                                addressBalances.put(address, addressBalance);
-                                addressSignatureCounts.put(address, currentSignatureCount);
-                                addresses.add(address);
-                            } catch (Exception e)
-                            {
-                                System.err.println("[CRITICAL ERROR] parsing line \"" + input + "\"!");
-                                e.printStackTrace();
-                            }
+                            readSnapshotLine(readAddressDatabase.nextLine());
                         }
                     }
+                    replayFrom = snapshotSequence;
+                }
+                if (readAddressDatabase != null)
+                {
+                    readAddressDatabase.close();
+                }
+                for (LedgerLog.Record record : ledgerLog.recover(replayFrom))
+                {
+                    applyLogRecord(record);
                 }
-                readAddressDatabase.close();
             } catch (Exception e)
             {
                 System.err.println("[CRITICAL ERROR] Unable to read addressDatabase file!");
@@ -78,12 +162,11 @@ public class LedgerManager
         }
         else
         {
-            File f = new File(addressDatabase);
             try
             {
-                PrintWriter out = new PrintWriter(f);
-                out.println("-1");
-                out.close();
+                ledgerLog.clear(); // Left from a ledger which no longer exists
+                accountStore.clear();
+                LedgerSnapshot.write(this.addressDatabase, -1, 0, new String[0], new long[0], new int[0], new long[0]);
                 this.lastBlockNum = -1; //Just in case
             } catch (Exception e)
             {
@@ -93,28 +176,108 @@ public class LedgerManager
             }
             System.out.println("Address Database \"" + addressDatabase + "\" does not exist! Creating...");
         }
+        this.loggedLastBlockNum = this.lastBlockNum;
+        publishView();
+    }
+
+    /**
+     * Adds every address in a binary snapshot to the ledger. The snapshot's checksum already covers every address, so they
+     * aren't validated again.
+     * 
+     * @param snapshot The snapshot, read in full
+     */
+    private void loadSnapshot(LedgerSnapshot snapshot)
+    {
+        for (int i = 0; i < snapshot.count; i++)
+        {
+            putAccount(snapshot.addresses[i], snapshot.balances[i], snapshot.signatureCounts[i], snapshot.orders[i]);
+            nextOrder = Math.max(nextOrder, snapshot.orders[i] + 1);
+        }
     }
 
     /**
-     * Hashes the entire ledger, to compare against blocks.
+     * Adds one line of a text snapshot to the ledger. A line without an order, as written before orders were kept, is placed after
+     * every line read before it. Lines which don't hold a correctly formatted address are ignored.
+     * 
+     * @param input The line to read
+     */
+    private void readSnapshotLine(String input)
+    {
+        if (input.contains(":"))
+        {
+            String[] parts = input.split(":");
+            String address = parts[0];
+            if (MerkleAddressUtility.isAddressFormattedCorrectly(address))
+            {
+                try
+                {
+                    long addressBalance = Long.parseLong(parts[1]);
+                    int currentSignatureCount = Integer.parseInt(parts[2]);
+                    long order = parts.length > 3 ? Long.parseLong(parts[3]) : nextOrder;
+                    putAccount(address, addressBalance, currentSignatureCount, order);
+                    nextOrder = Math.max(nextOrder, order + 1);
+                } catch (Exception e)
+                {
+                    System.err.println("[CRITICAL ERROR] parsing line \"" + input + "\"!");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replays a log record: every address it holds takes on the recorded state, and an address recorded as unlisted is
+     * dropped, as it would have been had the ledger been read from a snapshot.
+     * 
+     * @param record The record to replay
+     */
+    private void applyLogRecord(LedgerLog.Record record)
+    {
+        for (LedgerLog.Entry entry : record.entries)
+        {
+            if (entry.order >= 0)
+            {
+                putAccount(entry.address, entry.balance, entry.signatureCount, entry.order);
+                nextOrder = Math.max(nextOrder, entry.order + 1);
+            }
+            else
+            {
+                removeAccount(entry.address);
+            }
+        }
+        lastBlockNum = record.lastBlockNum;
+    }
+
+    /**
+     * Hashes the entire ledger, to compare against blocks. The ledger is hashed as the UTF-8 text of one
+     * address:balance:signatureCount line per listed address, but each line is fed to the digest as it is built rather than
+     * joining them first. The hash is kept until the ledger next changes.
      * 
      * @return HEX SHA256 hash of the ledger
      */
     public String getLedgerHash()
     {
+        if (ledgerHash != null)
+        {
+            return ledgerHash;
+        }
+        ArrayList<String> addresses = accountStore.getListedAddresses();
     	if (addresses.size() == 0)
     	{
     		return "0000000000000000000000000000000000000000000000000000000000000000";
     	}
-        String ledger = "";
-        for (int i = 0; i < addresses.size(); i++)
-        {
-            ledger += addresses.get(i) + ":" + addressBalances.get(addresses.get(i)) + ":" + addressSignatureCounts.get(addresses.get(i)) + "\n";
-        }
         try
         {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            return DatatypeConverter.printHexBinary(md.digest(ledger.getBytes("UTF-8")));
+            StringBuilder line = new StringBuilder(64);
+            for (int i = 0; i < addresses.size(); i++)
+            {
+                line.setLength(0);
+                appendLedgerLine(line, addresses.get(i)).append('\n');
+                md.update(line.toString().getBytes("UTF-8"));
+            }
+            ledgerHash = DatatypeConverter.printHexBinary(md.digest());
+            return ledgerHash;
         } catch (Exception e)
         {
             e.printStackTrace();
@@ -124,6 +287,141 @@ public class LedgerManager
         return null;
     }
 
+    /**
+     * Appends an address's line of the ledger hash, address:balance:signatureCount, without the newline.
+     */
+    private StringBuilder appendLedgerLine(StringBuilder line, String address)
+    {
+        return line.append(address).append(':').append(accountStore.getBalance(address)).append(':').append(getStoredSignatureCount(address));
+    }
+
+    /**
+     * Starts keeping a LedgerCommitment to the ledger, built from every listed address. From then on, the addresses each
+     * change touches are hashed into it the next time it is read.
+     */
+    public void enableCommitment()
+    {
+        if (commitment != null)
+        {
+            return;
+        }
+        commitment = new LedgerCommitment();
+        uncommittedAddresses.addAll(accountStore.getListedAddresses());
+        updateCommitment();
+    }
+
+    /**
+     * @return String The HEX root of the ledger commitment, or null if it isn't kept
+     */
+    public String getCommitmentRoot()
+    {
+        if (commitment == null)
+        {
+            return null;
+        }
+        updateCommitment();
+        return DatatypeConverter.printHexBinary(commitment.getRoot());
+    }
+
+    /**
+     * @param address The address to prove
+     * @return LedgerCommitment.Proof The proof of the address's current state, or null if the ledger commitment isn't kept
+     */
+    public LedgerCommitment.Proof getBalanceProof(String address)
+    {
+        if (commitment == null)
+        {
+            return null;
+        }
+        updateCommitment();
+        String line = null;
+        if (accountStore.contains(address) && accountStore.getOrder(address) >= 0)
+        {
+            line = appendLedgerLine(new StringBuilder(64), address).toString();
+        }
+        return commitment.getProof(address, line);
+    }
+
+    /**
+     * Hashes every address changed since the last update into the ledger commitment. Addresses which are no longer listed
+     * leave it.
+     */
+    private void updateCommitment()
+    {
+        StringBuilder line = new StringBuilder(64);
+        for (String address : uncommittedAddresses)
+        {
+            if (accountStore.contains(address) && accountStore.getOrder(address) >= 0)
+            {
+                line.setLength(0);
+                commitment.put(address, appendLedgerLine(line, address).toString());
+            }
+            else
+            {
+                commitment.remove(address);
+            }
+        }
+        uncommittedAddresses.clear();
+    }
+
+    /**
+     * Publishes the ledger as it stands as a new LedgerView, which getView() returns from then on. Called once a block, or a
+     * switch to another fork, has been applied in full, so no view ever holds part of a block. Nothing is copied; the ledger
+     * records the prior state of each address in the new view as it first changes it.
+     */
+    public void publishView()
+    {
+        LedgerView next = new LedgerView(this, lastBlockNum);
+        if (view != null)
+        {
+            view.setNext(next);
+        }
+        view = next;
+    }
+
+    /**
+     * Reads an address's current state from the account store for a LedgerView. Safe to call from any thread: the read waits
+     * out a change to the store already under way, so it never sees one half made, and holds off the next until it is done.
+     * 
+     * @param address The address to look up
+     * @return LedgerView.State The address's state as it stands
+     */
+    LedgerView.State readState(String address)
+    {
+        storeLock.readLock().lock();
+        try
+        {
+            return getState(address);
+        } finally
+        {
+            storeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param address The address to look up
+     * @return LedgerView.State The address's state as it stands, read without regard to other threads
+     */
+    private LedgerView.State getState(String address)
+    {
+        if (!accountStore.contains(address))
+        {
+            return LedgerView.State.NONE;
+        }
+        return new LedgerView.State(true, accountStore.getBalance(address), getAddressSignatureCount(address));
+    }
+
+    /**
+     * Returns the last published view of the ledger. Safe to call from any thread; the view never changes, and the ledger
+     * goes on changing without it.
+     * 
+     * @return LedgerView The ledger as of the last published block
+     */
+    public LedgerView getView()
+    {
+        return view;
+    }
+
     /**
      * Sets the last block num.
      * 
@@ -161,14 +459,13 @@ public class LedgerManager
                 return false; //Insufficient balance
             }
             
-            ArrayList<Pair<String, Long>> outputs = transaction.getOutputs();
-            
             //Looks like everything is correct--transaction should be executed correctly
-            addressBalances.put(sourceAddress, getAddressBalance(sourceAddress) - sourceAmount);
-            for (int i = 0; i < outputs.size(); i++)
+            recordPriorState(sourceAddress);
+            setBalance(sourceAddress, getAddressBalance(sourceAddress) - sourceAmount);
+            for (int i = 0; i < transaction.getOutputCount(); i++)
             {
-            	System.out.println("Giving: " + outputs.get(i).getSecond() + " to " + outputs.get(i).getFirst());
-                adjustAddressBalance(outputs.get(i).getFirst(), outputs.get(i).getSecond());
+            	System.out.println("Giving: " + transaction.getOutputAmount(i) + " to " + transaction.getOutputAddress(i));
+                adjustAddressBalance(transaction.getOutputAddress(i), transaction.getOutputAmount(i));
             }
             adjustAddressSignatureCount(sourceAddress, 1);
             return true;
@@ -194,23 +491,24 @@ public class LedgerManager
         	String sourceAddress = transaction.getSourceAddress();
             long sourceAmount = transaction.getSourceAmount();
             
-            ArrayList<Pair<String, Long>> outputs = transaction.getOutputs();
-            
-            for (int i = 0; i < outputs.size(); i++)
+            for (int i = 0; i < transaction.getOutputCount(); i++)
             {
-                if (getAddressBalance(outputs.get(i).getFirst()) < outputs.get(i).getSecond())
+                if (getAddressBalance(transaction.getOutputAddress(i)) < transaction.getOutputAmount(i))
                 {
-                    System.err.println("[CRITICAL ERROR] ADDRESS " + outputs.get(i).getFirst() + " needs to return " + outputs.get(i).getSecond() + " but only has " + getAddressBalance(outputs.get(i).getFirst())); //BIG PROBLEM THIS SHOULD NEVER HAPPEN
+                    System.err.println("[CRITICAL ERROR] ADDRESS " + transaction.getOutputAddress(i) + " needs to return " + transaction.getOutputAmount(i) + " but only has " + getAddressBalance(transaction.getOutputAddress(i))); //BIG PROBLEM THIS SHOULD NEVER HAPPEN
                     return false; //One of the addresses has an insufficient balance to reverse!
                 }
             }
             
             //Looks like everything is correct--transaction should be reversed correctly
-            addressBalances.put(sourceAddress, getAddressBalance(sourceAddress) + sourceAmount);
-            for (int i = 0; i < outputs.size(); i++)
+            recordPriorState(sourceAddress);
+            setBalance(sourceAddress, getAddressBalance(sourceAddress) + sourceAmount);
+            for (int i = 0; i < transaction.getOutputCount(); i++)
             {
-                addressBalances.put(outputs.get(i).getFirst(), getAddressBalance(outputs.get(i).getFirst()) - outputs.get(i).getSecond());
-                adjustAddressSignatureCount(outputs.get(i).getFirst(), -1);
+                String outputAddress = transaction.getOutputAddress(i);
+                recordPriorState(outputAddress);
+                setBalance(outputAddress, getAddressBalance(outputAddress) - transaction.getOutputAmount(i));
+                adjustAddressSignatureCount(outputAddress, -1);
             }
             
             adjustAddressSignatureCount(sourceAddress, -1);
@@ -222,23 +520,100 @@ public class LedgerManager
     }
 
     /**
-     * Writes ledger to file.
+     * Writes ledger to file, by appending the state of every address changed since the last write to the ledger log. Once
+     * the ledger has moved SNAPSHOT_INTERVAL blocks away from its snapshot, a new snapshot is started as well.
      * 
      * @return boolean Whether writing the ledger to the disk was successful.
      */
     public boolean writeToFile()
     {
+        if (changedAddresses.isEmpty() && lastBlockNum == loggedLastBlockNum)
+        {
+            return true;
+        }
     	System.out.println("Writing ledger to file...");
-    	System.out.println("Addresses to write: " + addresses.size());
+    	System.out.println("Addresses to write: " + changedAddresses.size());
         try
         {
-            PrintWriter out = new PrintWriter(addressDatabase);
-            out.println(lastBlockNum);
-            for (int i = 0; i < addresses.size(); i++)
+            ArrayList<LedgerLog.Entry> entries = new ArrayList<LedgerLog.Entry>(changedAddresses.size());
+            for (String address : changedAddresses)
             {
-                out.println(addresses.get(i) + ":" + addressBalances.get(addresses.get(i)) + ":" + addressSignatureCounts.get(addresses.get(i)));
+                int signatureCount = accountStore.getSignatureCount(address);
+                entries.add(new LedgerLog.Entry(address, accountStore.getOrder(address), getAddressBalance(address), signatureCount == NO_SIGNATURE_COUNT ? -1 : signatureCount));
             }
-            out.close();
+            ledgerLog.append(lastBlockNum, entries);
+        } catch (Exception e)
+        {
+            System.out.println("[CRITICAL ERROR] UNABLE TO WRITE LEDGER LOG!");
+            e.printStackTrace();
+            return false;
+        }
+        changedAddresses.clear();
+        loggedLastBlockNum = lastBlockNum;
+        
+        if (Math.abs(lastBlockNum - snapshotLastBlockNum) >= SNAPSHOT_INTERVAL && (snapshotThread == null || !snapshotThread.isAlive()))
+        {
+            startSnapshot();
+        }
+        return true;
+    }
+
+    /**
+     * Copies the ledger and writes the copy as the new snapshot on a separate thread. Changes made from now on go to a new
+     * log file, and the older log files are deleted once the snapshot is in place.
+     */
+    private void startSnapshot()
+    {
+        final long snapshotSequence;
+        try
+        {
+            snapshotSequence = ledgerLog.rotate();
+        } catch (IOException e)
+        {
+            System.out.println("[CRITICAL ERROR] UNABLE TO START A NEW LEDGER LOG FILE!");
+            e.printStackTrace();
+            return;
+        }
+        final int snapshotBlockNum = lastBlockNum;
+        ArrayList<String> addresses = accountStore.getListedAddresses();
+        final String[] snapshotAddresses = addresses.toArray(new String[addresses.size()]);
+        final long[] snapshotBalances = new long[snapshotAddresses.length];
+        final int[] snapshotSignatureCounts = new int[snapshotAddresses.length];
+        final long[] snapshotOrders = new long[snapshotAddresses.length];
+        for (int i = 0; i < snapshotAddresses.length; i++)
+        {
+            snapshotBalances[i] = accountStore.getBalance(snapshotAddresses[i]);
+            snapshotSignatureCounts[i] = accountStore.getSignatureCount(snapshotAddresses[i]);
+            snapshotOrders[i] = accountStore.getOrder(snapshotAddresses[i]);
+        }
+        snapshotLastBlockNum = snapshotBlockNum;
+        snapshotThread = new Thread()
+        {
+            public void run()
+            {
+                if (writeSnapshot(snapshotBlockNum, snapshotSequence, snapshotAddresses, snapshotBalances, snapshotSignatureCounts, snapshotOrders))
+                {
+                    ledgerLog.deleteThrough(snapshotSequence);
+                }
+            }
+        };
+        snapshotThread.start();
+    }
+
+    /**
+     * Writes a snapshot of the ledger to the address database file. The new snapshot is written next to the old one and
+     * forced to disk before it replaces it, so a crash leaves either the old snapshot or the new one, never a mix.
+     * 
+     * Each address keeps its order, which log records written after the snapshot are placed against.
+     * 
+     * @return boolean Whether writing the snapshot was successful
+     */
+    private boolean writeSnapshot(int snapshotBlockNum, long snapshotSequence, String[] snapshotAddresses, long[] snapshotBalances, int[] snapshotSignatureCounts, long[] snapshotOrders)
+    {
+        System.out.println("Writing ledger snapshot at block " + snapshotBlockNum + " with " + snapshotAddresses.length + " addresses...");
+        try
+        {
+            LedgerSnapshot.write(addressDatabase, snapshotBlockNum, snapshotSequence, snapshotAddresses, snapshotBalances, snapshotSignatureCounts, snapshotOrders);
         } catch (Exception e)
         {
             System.out.println("[CRITICAL ERROR] UNABLE TO WRITE DB FILE!");
@@ -248,6 +623,100 @@ public class LedgerManager
         return true;
     }
 
+    /**
+     * Starts recording the prior state of every address changed from now on, so the changes can be undone later with
+     * applyUndo(). Called before a block's transactions are executed.
+     * 
+     * @return BlockUndo The record which will hold the prior states
+     */
+    public BlockUndo beginUndoRecord()
+    {
+        undoRecord = new BlockUndo(lastBlockNum);
+        return undoRecord;
+    }
+
+    /**
+     * Stops recording prior address states.
+     */
+    public void endUndoRecord()
+    {
+        undoRecord = null;
+    }
+
+    /**
+     * Notes that an address is about to change, so its new state is written with the next log record, and records its
+     * current state into the active undo record, if there is one.
+     * 
+     * @param address The address about to be changed
+     */
+    private void recordPriorState(String address)
+    {
+        changedAddresses.add(address);
+        if (undoRecord != null && !undoRecord.hasPriorState(address))
+        {
+            if (accountStore.contains(address))
+            {
+                int signatureCount = accountStore.getSignatureCount(address);
+                undoRecord.recordPriorState(address, accountStore.getBalance(address), signatureCount == NO_SIGNATURE_COUNT ? null : signatureCount, accountStore.getOrder(address));
+            }
+            else
+            {
+                undoRecord.recordPriorState(address, null, null, -1);
+            }
+        }
+    }
+
+    /**
+     * Restores every address in an undo record to the state it had before the recorded block, including its order (which
+     * the ledger hash depends on), and resets the last block num. An order is never given to two addresses, so restoring
+     * the old orders restores the old address order exactly.
+     * 
+     * @param undo The undo record of the block to undo
+     */
+    public void applyUndo(BlockUndo undo)
+    {
+        ArrayList<BlockUndo.PriorState> priorStates = undo.getPriorStates();
+        for (int i = priorStates.size() - 1; i >= 0; i--)
+        {
+            BlockUndo.PriorState priorState = priorStates.get(i);
+            changedAddresses.add(priorState.address);
+            if (priorState.balance == null)
+            {
+                removeAccount(priorState.address);
+            }
+            else
+            {
+                putAccount(priorState.address, priorState.balance, priorState.signatureCount == null ? NO_SIGNATURE_COUNT : priorState.signatureCount, priorState.order);
+            }
+        }
+        lastBlockNum = undo.previousLastBlockNum;
+    }
+
+    /**
+     * Saves the account store if it can be kept between runs and every change to it has been logged, then closes the store
+     * and the ledger log. Waits for a snapshot being written to finish first.
+     */
+    public void close()
+    {
+        try
+        {
+            if (snapshotThread != null)
+            {
+                snapshotThread.join();
+            }
+            if (changedAddresses.isEmpty() && lastBlockNum == loggedLastBlockNum)
+            {
+                accountStore.save(lastBlockNum, ledgerLog.getLastSequence());
+            }
+            accountStore.close();
+            ledgerLog.close();
+        } catch (Exception e)
+        {
+            System.out.println("[CRITICAL ERROR] UNABLE TO CLOSE THE LEDGER!");
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Returns the next-to-be-used signature index of an address.
      * 
@@ -257,9 +726,9 @@ public class LedgerManager
      */
     public int getAddressSignatureCount(String address)
     {
-        if (addressSignatureCounts.containsKey(address))
+        if (hasSignatureCount(address))
         {
-            return addressSignatureCounts.get(address) + 1;
+            return accountStore.getSignatureCount(address) + 1;
         }
         else
         {
@@ -267,6 +736,98 @@ public class LedgerManager
         }
     }
 
+    /**
+     * @param address The address to check
+     * @return boolean Whether the address has a signature count entry
+     */
+    private boolean hasSignatureCount(String address)
+    {
+        return accountStore.contains(address) && accountStore.getSignatureCount(address) != NO_SIGNATURE_COUNT;
+    }
+
+    /**
+     * @param address The address to look up
+     * @return String The address's signature count as it appears in the ledger
+     */
+    private String getStoredSignatureCount(String address)
+    {
+        int signatureCount = accountStore.getSignatureCount(address);
+        return signatureCount == NO_SIGNATURE_COUNT ? "null" : String.valueOf(signatureCount);
+    }
+
+    /**
+     * Creates or replaces the entry of an address. Every change to the ledger goes through here or removeAccount(), so the
+     * cached ledger hash is dropped, the ledger commitment told, and the address's state kept for the last view, whenever the
+     * ledger changes.
+     */
+    private void putAccount(String address, long balance, int signatureCount, long order)
+    {
+        ledgerHash = null;
+        keepStateForView(address);
+        if (commitment != null)
+        {
+            uncommittedAddresses.add(address);
+        }
+        storeLock.writeLock().lock();
+        try
+        {
+            accountStore.put(address, balance, signatureCount, order);
+        } finally
+        {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    private void removeAccount(String address)
+    {
+        ledgerHash = null;
+        keepStateForView(address);
+        if (commitment != null)
+        {
+            uncommittedAddresses.add(address);
+        }
+        storeLock.writeLock().lock();
+        try
+        {
+            accountStore.remove(address);
+        } finally
+        {
+            storeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Records an address's state in the last published view before the address first changes after it, so the view goes on
+     * reading the state it was published with.
+     */
+    private void keepStateForView(String address)
+    {
+        LedgerView last = view;
+        if (last != null && !last.hasPriorState(address))
+        {
+            last.recordPriorState(address, getState(address));
+        }
+    }
+
+    /**
+     * Sets the balance of an address, leaving its signature count and order as they are. A new address gets a balance
+     * entry only, and isn't listed.
+     * 
+     * @param address Address to set the balance of
+     * @param balance The new balance
+     */
+    private void setBalance(String address, long balance)
+    {
+        if (accountStore.contains(address))
+        {
+            putAccount(address, balance, accountStore.getSignatureCount(address), accountStore.getOrder(address));
+        }
+        else
+        {
+            putAccount(address, balance, NO_SIGNATURE_COUNT, -1);
+        }
+    }
+
     /**
      * Adjusts an address's signature count.
      * 
@@ -298,15 +859,14 @@ public class LedgerManager
     {
         try
         {
-            if (addressSignatureCounts.containsKey(address))
+            recordPriorState(address);
+            if (hasSignatureCount(address))
             {
-                addressSignatureCounts.put(address, newCount);
+                putAccount(address, accountStore.getBalance(address), newCount, accountStore.getOrder(address));
             }
             else
             {
-                addressBalances.put(address, 0L);
-                addressSignatureCounts.put(address, newCount);
-                addresses.add(address);
+                putAccount(address, 0L, newCount, nextOrder++);
             }
         } catch (Exception e)
         {
@@ -325,14 +885,7 @@ public class LedgerManager
      */
     public long getAddressBalance(String address)
     {
-        if (addressBalances.containsKey(address))
-        {
-            return addressBalances.get(address);
-        }
-        else
-        {
-            return 0L;
-        }
+        return accountStore.getBalance(address);
     }
 
     /**
@@ -365,20 +918,23 @@ public class LedgerManager
     {
         try
         {
-            if (addressBalances.containsKey(address))
+            recordPriorState(address);
+            int signatureCount = -1;
+            long order;
+            if (accountStore.contains(address))
             {
-                addressBalances.put(address, newAmount);
+                signatureCount = accountStore.getSignatureCount(address);
+                order = accountStore.getOrder(address);
             }
             else
             {
-                addressBalances.put(address, newAmount);
-                addressSignatureCounts.put(address, -1);
-                addresses.add(address);
+                order = nextOrder++;
             }
-            if (addressBalances.get(address) == 0)
+            if (newAmount == 0)
             {
-            	addresses.remove(address); // Remove to maintain correct order when reforking a chain
+            	order = -1; // Unlist to maintain correct order when reforking a chain
             }
+            putAccount(address, newAmount, signatureCount, order);
         } catch (Exception e)
         {
             e.printStackTrace();
@@ -0,0 +1,290 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A binary snapshot of the ledger. Every address takes a fixed-size record, and a CRC32 of the whole file is kept in the
+ * header, so the file can be checked in one pass and its records decoded in parallel chunks. Addresses were validated when
+ * they entered the ledger, so they aren't validated again when the snapshot is read.
+ *
+ * Layout: the magic "SGXL", the format version, the last block number, the number of the last ledger log record included,
+ * the number of records and the checksum (computed with the checksum field set to 0), followed by the records. Each record
+ * holds the address's length and ASCII characters, its balance, its signature count and its order, in order.
+ *
+ * Older snapshots are text files, starting with the last block number; isSnapshot() tells the two apart.
+ */
+public class LedgerSnapshot
+{
+	private static final byte[] MAGIC = {'S', 'G', 'X', 'L'};
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 28;
+	private static final int CHECKSUM_OFFSET = 24;
+
+	// The length byte, the address, the balance, the signature count and the order
+	private static final int RECORD_SIZE = 1 + MappedAccountStore.MAX_ADDRESS_LENGTH + 8 + 4 + 8;
+
+	// Snapshots with fewer records than this are decoded on the calling thread
+	private static final int CHUNK_RECORDS = 65536;
+
+	public final int lastBlockNum;
+	public final long logSequence;
+	public final int count;
+
+	// Null when only the header was read
+	public final String[] addresses;
+	public final long[] balances;
+	public final int[] signatureCounts;
+	public final long[] orders;
+
+	private LedgerSnapshot(int lastBlockNum, long logSequence, int count, String[] addresses, long[] balances, int[] signatureCounts, long[] orders)
+	{
+		this.lastBlockNum = lastBlockNum;
+		this.logSequence = logSequence;
+		this.count = count;
+		this.addresses = addresses;
+		this.balances = balances;
+		this.signatureCounts = signatureCounts;
+		this.orders = orders;
+	}
+
+	/**
+	 * @param file The address database file
+	 * @return boolean Whether the file is a binary snapshot, rather than a text one
+	 */
+	public static boolean isSnapshot(File file) throws IOException
+	{
+		byte[] magic = new byte[MAGIC.length];
+		try (InputStream in = new FileInputStream(file))
+		{
+			return readFully(in, magic, 0, magic.length) == magic.length && ByteBuffer.wrap(magic).equals(ByteBuffer.wrap(MAGIC));
+		}
+	}
+
+	/**
+	 * Reads only the header of a snapshot, without reading or checking the records.
+	 *
+	 * @param file The snapshot file
+	 * @return LedgerSnapshot The snapshot, without its records
+	 */
+	public static LedgerSnapshot readHeader(File file) throws IOException
+	{
+		byte[] header = new byte[HEADER_SIZE];
+		try (InputStream in = new FileInputStream(file))
+		{
+			if (readFully(in, header, 0, header.length) < header.length)
+			{
+				throw new IOException("The ledger snapshot " + file + " ends inside its header");
+			}
+		}
+		return decodeHeader(file, header, null, null, null, null);
+	}
+
+	/**
+	 * Reads a whole snapshot and checks it against its checksum.
+	 *
+	 * @param file The snapshot file
+	 * @return LedgerSnapshot The snapshot
+	 * @throws IOException If the snapshot can't be read or doesn't match its checksum
+	 */
+	public static LedgerSnapshot read(File file) throws IOException
+	{
+		long length = file.length();
+		if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+		{
+			throw new IOException("The ledger snapshot " + file + " has an impossible length of " + length);
+		}
+		final byte[] data = new byte[(int)length];
+		try (InputStream in = new FileInputStream(file))
+		{
+			if (readFully(in, data, 0, data.length) < data.length)
+			{
+				throw new IOException("The ledger snapshot " + file + " ended while it was being read");
+			}
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		long checksum = buffer.getInt(CHECKSUM_OFFSET) & 0xFFFFFFFFL;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, CHECKSUM_OFFSET);
+		crc.update(new byte[4]);
+		crc.update(data, HEADER_SIZE, data.length - HEADER_SIZE);
+		if (crc.getValue() != checksum)
+		{
+			throw new IOException("The ledger snapshot " + file + " does not match its checksum");
+		}
+
+		final int count = buffer.getInt(20);
+		if (count < 0 || (long)count * RECORD_SIZE != data.length - HEADER_SIZE)
+		{
+			throw new IOException("The ledger snapshot " + file + " holds " + count + " records but is " + length + " bytes long");
+		}
+		final String[] addresses = new String[count];
+		final long[] balances = new long[count];
+		final int[] signatureCounts = new int[count];
+		final long[] orders = new long[count];
+
+		int chunks = Math.min(Runtime.getRuntime().availableProcessors(), (count + CHUNK_RECORDS - 1) / CHUNK_RECORDS);
+		if (chunks <= 1)
+		{
+			decodeRecords(data, 0, count, addresses, balances, signatureCounts, orders);
+		}
+		else
+		{
+			Thread[] decoders = new Thread[chunks];
+			for (int i = 0; i < chunks; i++)
+			{
+				final int start = (int)((long)count * i / chunks);
+				final int end = (int)((long)count * (i + 1) / chunks);
+				decoders[i] = new Thread("LedgerSnapshot")
+				{
+					public void run()
+					{
+						decodeRecords(data, start, end, addresses, balances, signatureCounts, orders);
+					}
+				};
+				decoders[i].start();
+			}
+			try
+			{
+				for (Thread decoder : decoders)
+				{
+					decoder.join();
+				}
+			} catch (InterruptedException e)
+			{
+				throw new IOException("Interrupted while reading the ledger snapshot " + file, e);
+			}
+		}
+		return decodeHeader(file, data, addresses, balances, signatureCounts, orders);
+	}
+
+	private static LedgerSnapshot decodeHeader(File file, byte[] header, String[] addresses, long[] balances, int[] signatureCounts, long[] orders) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		if (!ByteBuffer.wrap(magic).equals(ByteBuffer.wrap(MAGIC)))
+		{
+			throw new IOException(file + " is not a ledger snapshot");
+		}
+		int version = buffer.getInt();
+		if (version != VERSION)
+		{
+			throw new IOException("The ledger snapshot " + file + " has the unknown version " + version);
+		}
+		int lastBlockNum = buffer.getInt();
+		long logSequence = buffer.getLong();
+		int count = buffer.getInt();
+		return new LedgerSnapshot(lastBlockNum, logSequence, count, addresses, balances, signatureCounts, orders);
+	}
+
+	/**
+	 * Decodes the records from start up to end into the provided arrays. Each call touches only its own range, so calls for
+	 * different ranges can run at the same time.
+	 */
+	private static void decodeRecords(byte[] data, int start, int end, String[] addresses, long[] balances, int[] signatureCounts, long[] orders)
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		for (int i = start; i < end; i++)
+		{
+			int position = HEADER_SIZE + i * RECORD_SIZE;
+			int addressLength = Math.min(data[position] & 0xFF, MappedAccountStore.MAX_ADDRESS_LENGTH);
+			addresses[i] = new String(data, position + 1, addressLength, StandardCharsets.US_ASCII);
+			position += 1 + MappedAccountStore.MAX_ADDRESS_LENGTH;
+			balances[i] = buffer.getLong(position);
+			signatureCounts[i] = buffer.getInt(position + 8);
+			orders[i] = buffer.getLong(position + 12);
+		}
+	}
+
+	/**
+	 * Writes a snapshot next to the file, forces it to disk and then moves it into place, so a crash leaves either the old
+	 * file or the new one.
+	 *
+	 * @param file The snapshot file
+	 * @param lastBlockNum The ledger's last block number
+	 * @param logSequence The number of the last ledger log record the snapshot includes
+	 * @param addresses Every listed address, in order
+	 * @param balances The balance of each address
+	 * @param signatureCounts The signature count of each address
+	 * @param orders The order of each address
+	 * @throws IOException If the snapshot can't be written, or an address doesn't fit in a record
+	 */
+	public static void write(File file, int lastBlockNum, long logSequence, String[] addresses, long[] balances, int[] signatureCounts, long[] orders) throws IOException
+	{
+		File newFile = new File(file.getPath() + ".new");
+		FileOutputStream fileOut = new FileOutputStream(newFile);
+		CRC32 crc = new CRC32();
+		try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), crc)))
+		{
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(lastBlockNum);
+			out.writeLong(logSequence);
+			out.writeInt(addresses.length);
+			out.writeInt(0); // The checksum, filled in below
+			byte[] addressBytes = new byte[MappedAccountStore.MAX_ADDRESS_LENGTH];
+			for (int i = 0; i < addresses.length; i++)
+			{
+				String address = addresses[i];
+				if (address.length() > addressBytes.length)
+				{
+					throw new IOException("The address " + address + " is too long for a ledger snapshot");
+				}
+				Arrays.fill(addressBytes, (byte)0);
+				for (int j = 0; j < address.length(); j++)
+				{
+					addressBytes[j] = (byte)address.charAt(j);
+				}
+				out.writeByte(address.length());
+				out.write(addressBytes);
+				out.writeLong(balances[i]);
+				out.writeInt(signatureCounts[i]);
+				out.writeLong(orders[i]);
+			}
+			out.flush();
+			ByteBuffer checksum = ByteBuffer.allocate(4);
+			checksum.putInt((int)crc.getValue());
+			checksum.flip();
+			while (checksum.hasRemaining())
+			{
+				fileOut.getChannel().write(checksum, CHECKSUM_OFFSET + checksum.position());
+			}
+			fileOut.getFD().sync();
+		}
+		Files.move(newFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException
+	{
+		int read = 0;
+		int count;
+		while (read < length && (count = in.read(buffer, offset + read, length - read)) != -1)
+		{
+			read += count;
+		}
+		return read;
+	}
+}
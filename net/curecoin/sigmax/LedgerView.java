@@ -0,0 +1,129 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An unchanging view of the ledger as of a block: the balance and next signature index of every address with an entry.
+ * LedgerManager publishes a new view after each block is added, so any thread can read balances from a view without seeing a
+ * block half applied, while the ledger itself goes on changing. A read waits at most for one account's change to the store,
+ * never for a whole block.
+ *
+ * A view holds no copy of the ledger. It reads the account store, and keeps only the state of each address the ledger has
+ * changed since the view was published, recorded just before the address's first change, while the view was the latest one.
+ * Each view links to the one published after it, so an address is looked up in this view's changes, then in each later
+ * view's, and only if none of them changed it is the store's state the view's own. Publishing a view costs nothing, and a view
+ * holds as many entries as addresses were changed while it was the latest one.
+ */
+public class LedgerView
+{
+	public final int lastBlockNum;
+
+	private final LedgerManager ledger;
+	// The state of each address as of this view, for every address changed while this view was the latest one
+	private final ConcurrentHashMap<String, State> priorStates = new ConcurrentHashMap<String, State>();
+	// The view published after this one, or null if this is the latest one
+	private volatile LedgerView next = null;
+
+	/**
+	 * The state of one address.
+	 */
+	static class State
+	{
+		static final State NONE = new State(false, 0L, 0);
+
+		final boolean exists;
+		final long balance;
+		final int nextSignatureIndex;
+
+		State(boolean exists, long balance, int nextSignatureIndex)
+		{
+			this.exists = exists;
+			this.balance = balance;
+			this.nextSignatureIndex = nextSignatureIndex;
+		}
+	}
+
+	LedgerView(LedgerManager ledger, int lastBlockNum)
+	{
+		this.ledger = ledger;
+		this.lastBlockNum = lastBlockNum;
+	}
+
+	/**
+	 * @param address The address to look up
+	 * @return long The balance of the address; 0 if it has no entry
+	 */
+	public long getBalance(String address)
+	{
+		return getState(address).balance;
+	}
+
+	/**
+	 * @param address The address to look up
+	 * @return int The next signature index the address should use, as LedgerManager.getAddressSignatureCount() returns it
+	 */
+	public int getNextSignatureIndex(String address)
+	{
+		return getState(address).nextSignatureIndex;
+	}
+
+	/**
+	 * @param address The address to look for
+	 * @return boolean Whether the address has an entry
+	 */
+	public boolean contains(String address)
+	{
+		return getState(address).exists;
+	}
+
+	/**
+	 * @param address The address to check
+	 * @return boolean Whether the address's state as of this view is already recorded
+	 */
+	boolean hasPriorState(String address)
+	{
+		return priorStates.containsKey(address);
+	}
+
+	/**
+	 * Records an address's state as of this view, before the ledger first changes it. Called only on the latest view.
+	 *
+	 * @param address The address about to change
+	 * @param state Its state as it stands
+	 */
+	void recordPriorState(String address, State state)
+	{
+		priorStates.put(address, state);
+	}
+
+	/**
+	 * @param next The view published after this one
+	 */
+	void setNext(LedgerView next)
+	{
+		this.next = next;
+	}
+
+	private State getState(String address)
+	{
+		// Read before the recorded states, so every change the read saw had its prior state recorded before the lookups below
+		State current = ledger.readState(address);
+		for (LedgerView view = this; view != null; view = view.next)
+		{
+			State prior = view.priorStates.get(address);
+			if (prior != null)
+			{
+				return prior;
+			}
+		}
+		return current;
+	}
+}
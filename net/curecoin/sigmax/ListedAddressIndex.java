@@ -0,0 +1,165 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.util.Arrays;
+
+/**
+ * The listed entries of an account store, sorted by order, so they can be walked for the ledger hash and snapshots without
+ * sorting. Each entry is an order and where the store keeps that address (an ID or a slot), held in two parallel primitive
+ * arrays, so the index holds no object per address.
+ *
+ * A new address is given the highest order yet, so adding one goes on the end. Removing an entry only marks it, and marked
+ * entries are dropped once they make up half of the arrays. An entry is found by its order with a binary search. Only an
+ * entry which takes back an older order, as when a block is undone, shifts the entries after it.
+ */
+public class ListedAddressIndex
+{
+	// The location of a removed entry
+	private static final int REMOVED = -1;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// Strictly increasing, including the orders of removed entries
+	private long[] orders = new long[INITIAL_CAPACITY];
+	private int[] locations = new int[INITIAL_CAPACITY];
+	private int length = 0;
+	private int removed = 0;
+
+	/**
+	 * Lists an entry.
+	 *
+	 * @param order The entry's order, which no other listed entry has
+	 * @param location Where the store keeps the entry
+	 */
+	public void add(long order, int location)
+	{
+		int index = find(order);
+		if (index >= 0)
+		{
+			if (locations[index] == REMOVED)
+			{
+				removed--;
+			}
+			locations[index] = location;
+			return;
+		}
+		index = -index - 1;
+		if (length == orders.length)
+		{
+			orders = Arrays.copyOf(orders, orders.length * 2);
+			locations = Arrays.copyOf(locations, locations.length * 2);
+		}
+		System.arraycopy(orders, index, orders, index + 1, length - index);
+		System.arraycopy(locations, index, locations, index + 1, length - index);
+		orders[index] = order;
+		locations[index] = location;
+		length++;
+	}
+
+	/**
+	 * @param order The order of the entry to unlist
+	 */
+	public void remove(long order)
+	{
+		int index = find(order);
+		if (index < 0 || locations[index] == REMOVED)
+		{
+			return;
+		}
+		locations[index] = REMOVED;
+		removed++;
+		if (removed > length / 2 && length > INITIAL_CAPACITY)
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Notes that the store moved a listed entry.
+	 *
+	 * @param order The entry's order
+	 * @param location Where the store keeps the entry now
+	 */
+	public void move(long order, int location)
+	{
+		int index = find(order);
+		if (index >= 0 && locations[index] != REMOVED)
+		{
+			locations[index] = location;
+		}
+	}
+
+	/**
+	 * @return int The number of listed entries
+	 */
+	public int size()
+	{
+		return length - removed;
+	}
+
+	/**
+	 * Unlists every entry.
+	 */
+	public void clear()
+	{
+		orders = new long[INITIAL_CAPACITY];
+		locations = new int[INITIAL_CAPACITY];
+		length = 0;
+		removed = 0;
+	}
+
+	/**
+	 * @return int[] Where the store keeps each listed entry, in order
+	 */
+	public int[] getLocations()
+	{
+		int[] listed = new int[size()];
+		int count = 0;
+		for (int i = 0; i < length; i++)
+		{
+			if (locations[i] != REMOVED)
+			{
+				listed[count++] = locations[i];
+			}
+		}
+		return listed;
+	}
+
+	/**
+	 * @return int The index of the entry with the order, or -(index + 1) for where it would be added
+	 */
+	private int find(long order)
+	{
+		if (length > 0 && orders[length - 1] < order)
+		{
+			return -(length + 1); // A new address, the most common case
+		}
+		return Arrays.binarySearch(orders, 0, length, order);
+	}
+
+	/**
+	 * Drops the removed entries.
+	 */
+	private void compact()
+	{
+		int count = 0;
+		for (int i = 0; i < length; i++)
+		{
+			if (locations[i] != REMOVED)
+			{
+				orders[count] = orders[i];
+				locations[count] = locations[i];
+				count++;
+			}
+		}
+		length = count;
+		removed = 0;
+	}
+}
@@ -5,14 +5,36 @@ import java.io.Console;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Random;
 import java.util.Scanner;
 
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.commons.codec.binary.Base64;
+
 /**
  * Main intersection of all SigmaX functionality. Heavy lifting is delegated to helper classes.
  */
 public class MainClass
 {
+	// Number of older blocks to cache after reading them from disk, when running with -blocksinmemory
+	private static final int BLOCK_CACHE_SIZE = 200;
+	
+	// Maximum number of headers sent in one HEADERS message
+	private static final int MAX_HEADERS_PER_MESSAGE = 500;
+	// Maximum number of blocks requested from peers at once while catching up
+	private static final int MAX_BLOCKS_IN_FLIGHT = 64;
+	// How long to wait for a requested block before asking the next peer for it
+	private static final long BLOCK_REQUEST_TIMEOUT = 10000;
+	// How long to wait between header requests while peers are ahead of the best header chain
+	private static final long HEADER_REQUEST_INTERVAL = 5000;
+	// How long catching up can go without progress before falling back to requesting blocks by number, for peers which don't serve headers
+	private static final long LEGACY_SYNC_DELAY = 30000;
+	
+	// Announced to peers in a CAPABILITIES message; peers announcing it are sent blocks as CBLOCK in the compact encoding
+	private static final String COMPACT_BLOCKS_CAPABILITY = "COMPACT_BLOCKS";
+	
 	public static void main(String[] args)
 	{
 		launch();
@@ -33,29 +55,86 @@ public class MainClass
 			}
 		}
 		
-		Blockchain blockchain = new Blockchain("database");
+		// -blocksinmemory <n> keeps only the most recent n blocks in memory, reading older blocks from disk when needed
+		int blocksInMemory = -1;
+		for (int i = 0; i < args.length - 1; i++)
+		{
+			if (args[i].equalsIgnoreCase("-blocksinmemory"))
+			{
+				blocksInMemory = Integer.parseInt(args[i + 1]);
+			}
+		}
 		
-		PendingTransactionContainer pendingTransactions = new PendingTransactionContainer(blockchain);
+		// -reindex verifies every block in the blockchain file in full, instead of trusting blocks this node already validated
+		boolean reindex = false;
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equalsIgnoreCase("-reindex"))
+			{
+				reindex = true;
+			}
+		}
 		
-		try
+		// -commit <policy> sets how often new blocks and the ledger are committed to disk: block, blocks:<n>, ms:<n> or shutdown
+		CommitPolicy commitPolicy = CommitPolicy.EVERY_BLOCK;
+		for (int i = 0; i < args.length - 1; i++)
 		{
-			Scanner scan = new Scanner(new File("database/blockchain.dta"));
-			while (scan.hasNextLine())
+			if (args[i].equalsIgnoreCase("-commit"))
 			{
-				try
-				{
-					System.out.println("Pulling a block from file...");
-					Block fromDatabase = new Block(scan.nextLine());
-					System.out.println("Add block: " + fromDatabase.blockNum + "?: " + blockchain.addBlockAndSave(fromDatabase, true));
-				} catch (Exception e)
-				{
-					e.printStackTrace();
-				}
+				commitPolicy = CommitPolicy.parse(args[i + 1]);
 			}
-			scan.close();
-		} catch (Exception e)
+		}
+		
+		// -ledger mapped keeps the ledger's accounts in a memory-mapped table which survives a clean shutdown
+		boolean mappedLedger = false;
+		for (int i = 0; i < args.length - 1; i++)
 		{
-			e.printStackTrace();
+			if (args[i].equalsIgnoreCase("-ledger"))
+			{
+				mappedLedger = args[i + 1].equalsIgnoreCase("mapped");
+			}
+		}
+		
+		// -ledgercommitment keeps a Merkle commitment to the ledger, so getbalanceproof can prove balances to light wallets
+		boolean ledgerCommitment = false;
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equalsIgnoreCase("-ledgercommitment"))
+			{
+				ledgerCommitment = true;
+			}
+		}
+		
+		final Blockchain blockchain;
+		if (blocksInMemory > 0)
+		{
+			blockchain = new Blockchain("database", blocksInMemory, BLOCK_CACHE_SIZE, mappedLedger);
+		}
+		else
+		{
+			blockchain = new Blockchain("database", mappedLedger);
+		}
+		blockchain.setCommitPolicy(commitPolicy);
+		
+		// Whatever the commit policy held back is committed when the node exits, and the ledger is saved
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			public void run()
+			{
+				blockchain.close();
+			}
+		});
+		
+		PendingTransactionContainer pendingTransactions = new PendingTransactionContainer(blockchain);
+		
+		// Checks blocks in parallel before they are added to the blockchain in order on this thread
+		BlockValidator blockValidator = new BlockValidator();
+		blockValidator.setHeaderCheck(blockchain);
+		
+		blockchain.loadFromFile(blockValidator, reindex);
+		if (ledgerCommitment)
+		{
+			blockchain.enableLedgerCommitment();
 		}
 		
 		PeerNetwork peerNetwork = new PeerNetwork(8025);
@@ -103,6 +182,13 @@ public class MainClass
         ArrayList<String> allBroadcastTransactions = new ArrayList<String>();
         ArrayList<String> allBroadcastBlocks = new ArrayList<String>();
         
+        // Blocks requested by hash while catching up, and when they were requested
+        HashMap<String, Long> requestedBlocks = new HashMap<String, Long>();
+        int nextBlockPeer = 0;
+        long lastHeaderRequestTime = 0;
+        long lastSyncProgressTime = System.currentTimeMillis();
+        int lastBlockNum = blockchain.getBlockNumOfLastBlockOnLongestChain();
+        
         while (true) 
         {
             //Look for new peers
@@ -131,6 +217,13 @@ public class MainClass
             //Look for new data from peers
             for (int i = 0; i < peerNetwork.peerThreads.size(); i++)
             {
+                PeerThread peerThread = peerNetwork.peerThreads.get(i);
+                if (!peerThread.sentCapabilities && peerThread.outputThread != null)
+                {
+                    //Tell the peer which optional message formats this node accepts
+                    peerThread.outputThread.write("CAPABILITIES " + COMPACT_BLOCKS_CAPABILITY);
+                    peerThread.sentCapabilities = true;
+                }
                 ArrayList<String> input = peerNetwork.peerThreads.get(i).inputThread.readData();
                 if (input == null)
                 {
@@ -154,9 +247,31 @@ public class MainClass
                         System.out.println("got data: " + data);
                     }
                     String[] parts = data.split(" ");
+                    if (parts.length > 1 && parts[0].equalsIgnoreCase("CBLOCK"))
+                    {
+                        //A block in the compact encoding is handled exactly like the text block it decodes to
+                        try
+                        {
+                            parts = new String[] {"BLOCK", BlockCodec.decode(Base64.decodeBase64(parts[1]))};
+                        } catch (Exception e)
+                        {
+                            System.err.println("A peer has sent an undecodable compact block.");
+                            continue;
+                        }
+                    }
                     if (parts.length > 0)
                     {
-                        if (parts[0].equalsIgnoreCase("NETWORK_STATE"))
+                        if (parts[0].equalsIgnoreCase("CAPABILITIES"))
+                        {
+                            for (int k = 1; k < parts.length; k++)
+                            {
+                                if (parts[k].equalsIgnoreCase(COMPACT_BLOCKS_CAPABILITY))
+                                {
+                                    peerThread.compactBlocks = true;
+                                }
+                            }
+                        }
+                        else if (parts[0].equalsIgnoreCase("NETWORK_STATE"))
                         {
                             topBlock = Integer.parseInt(parts[1]);
                         }
@@ -190,26 +305,12 @@ public class MainClass
                             }
                             if (!hasSeenBefore)
                             {
-                                //Block has not been previously received, so it will be added to the blockchain (hopefully)
+                                //Block has not been previously received, so it will be validated and added to the blockchain (hopefully)
                                 System.out.println("Adding new block from network!");
                                 System.out.println("Block: ");
                                 System.out.println(parts[1].substring(0, 30) + "...");
                                 allBroadcastBlocks.add(parts[1]);
-                                try
-                                {
-	                                Block blockToAdd = new Block(parts[1]);
-	                                if (blockchain.addBlockAndSave(blockToAdd, false))
-	                                {
-	                                    //If block is new to client and appears valid, rebroadcast
-	                                    System.out.println("Added block " + blockToAdd.blockNum + " with hash: [" + blockToAdd.blockHash.substring(0, 30) + "..." + blockToAdd.blockHash.substring(blockToAdd.blockHash.length() - 30, blockToAdd.blockHash.length() - 1) + "]");
-	                                    peerNetwork.broadcast("BLOCK " + parts[1]);
-	                                }
-	                                //Remove all transactions from the pendingTransactionPool that appear in the block
-	                                pendingTransactions.removeTransactionsInBlock(blockToAdd);
-                                } catch (Exception e)
-                                {
-                                	System.err.println("A peer has sent an invalid block: " + parts[1]);
-                                }
+                                blockValidator.submit(parts[1]);
                             }
                         }
                         //TRANSACTION TRANSACTIONDATA
@@ -297,15 +398,76 @@ public class MainClass
                             Random random = new Random();
                             peerNetwork.peerThreads.get(i).outputThread.write("PEER " + peers.get(random.nextInt(peers.size())));
                         }
+                        else if (parts[0].equalsIgnoreCase("GET_HEADERS"))
+                        {
+                            /*
+                             * The peer sends hashes from its best header chain, newest first. Headers from our longest chain are returned, starting after the first hash we share.
+                             */
+                            if (parts.length > 1)
+                            {
+                                ArrayList<BlockHeader> headers = blockchain.getHeadersAfter(parts[1].split(","), MAX_HEADERS_PER_MESSAGE);
+                                if (headers.size() > 0)
+                                {
+                                    StringBuilder message = new StringBuilder("HEADERS");
+                                    for (BlockHeader header : headers)
+                                    {
+                                        message.append(" ").append(header.getFlatHeader());
+                                    }
+                                    System.out.println("Sending " + headers.size() + " headers to peer...");
+                                    peerNetwork.peerThreads.get(i).outputThread.write(message.toString());
+                                }
+                            }
+                        }
+                        //HEADERS HEADER1 HEADER2 ...
+                        else if (parts[0].equalsIgnoreCase("HEADERS"))
+                        {
+                            /*
+                             * Headers are checked for proof-of-work and difficulty before any block data is requested. Only blocks on the best header chain are then downloaded.
+                             */
+                            int acceptedHeaders = 0;
+                            for (int k = 1; k < parts.length; k++)
+                            {
+                                try
+                                {
+                                    if (blockchain.addHeader(new BlockHeader(parts[k])))
+                                    {
+                                        acceptedHeaders++;
+                                    }
+                                } catch (Exception e)
+                                {
+                                    System.err.println("A peer has sent an invalid header: " + parts[k]);
+                                    break;
+                                }
+                            }
+                            System.out.println("Accepted " + acceptedHeaders + " of " + (parts.length - 1) + " headers from peer.");
+                            if (acceptedHeaders > 0)
+                            {
+                                lastSyncProgressTime = System.currentTimeMillis();
+                            }
+                            if (acceptedHeaders > 0 && parts.length - 1 >= MAX_HEADERS_PER_MESSAGE)
+                            {
+                                // A full message means the peer likely has more headers to send
+                                peerNetwork.peerThreads.get(i).outputThread.write("GET_HEADERS " + joinHashes(blockchain.getHeaderLocator()));
+                            }
+                        }
+                        else if (parts[0].equalsIgnoreCase("GET_BLOCK_HASH"))
+                        {
+                            String rawBlock = parts.length > 1 ? blockchain.getRawBlockByHash(parts[1]) : null;
+                            if (rawBlock != null)
+                            {
+                                System.out.println("Sending block " + parts[1] + " to peer...");
+                                peerThread.sendBlock(rawBlock);
+                            }
+                        }
                         else if (parts[0].equalsIgnoreCase("GET_BLOCK"))
                         {
                             try
                             {
-                                Block block = blockchain.getBlock(Integer.parseInt(parts[1]));
-                                if (block != null)
+                                String rawBlock = blockchain.getRawBlock(Integer.parseInt(parts[1]));
+                                if (rawBlock != null)
                                 {
                                     System.out.println("Sending block " + parts[1] + " to peer...");
-                                    peerNetwork.peerThreads.get(i).outputThread.write("BLOCK " + block.rawBlock);
+                                    peerThread.sendBlock(rawBlock);
                                 }
                             } catch (Exception e)
                             {
@@ -314,11 +476,66 @@ public class MainClass
                     }
                 }
             }
+            /*
+             * Blocks which have passed validation are added to the blockchain in the order they arrived.
+             */
+            BlockValidator.PendingBlock validatedBlock;
+            while ((validatedBlock = blockValidator.pollValidated()) != null)
+            {
+                if (!validatedBlock.isValid())
+                {
+                    System.err.println("A peer has sent an invalid block: " + validatedBlock.rawBlock);
+                    System.err.println("Reason: " + validatedBlock.getRejectionReason());
+                    continue;
+                }
+                Block blockToAdd = validatedBlock.getBlock();
+                if (blockchain.addBlockAndSave(blockToAdd, false, validatedBlock.hasVerifiedSignatures()))
+                {
+                    //If block is new to client and appears valid, rebroadcast. Blocks we requested while catching up aren't news to peers.
+                    System.out.println("Added block " + blockToAdd.blockNum + " with hash: [" + blockToAdd.blockHash.substring(0, 30) + "..." + blockToAdd.blockHash.substring(blockToAdd.blockHash.length() - 30, blockToAdd.blockHash.length() - 1) + "]");
+                    if (requestedBlocks.remove(blockToAdd.blockHash) == null)
+                    {
+                        peerNetwork.broadcastBlock(validatedBlock.rawBlock);
+                    }
+                }
+                //Remove all transactions from the pendingTransactionPool that appear in the block
+                pendingTransactions.removeTransactionsInBlock(blockToAdd);
+            }
+            blockchain.commitWritesIfDue();
+            
             int currentChainHeight = blockchain.getBlockNumOfLastBlockOnLongestChain();
+            long now = System.currentTimeMillis();
+            if (currentChainHeight > lastBlockNum && blockchain.getBlockNumOfBestHeader() > currentChainHeight)
+            {
+                lastSyncProgressTime = now; // Still downloading blocks for headers we were sent
+            }
+            lastBlockNum = currentChainHeight;
             /*
-             * Current chain is shorter than peer chains. Chain starts counting at 0, so a chain height of 15, for example, means there are 15 blocks, and the top block's index is 14.
+             * Headers-first sync: while peers are ahead of our best header chain, ask for headers. Blocks are then requested by hash, only for the best header chain,
+             * each from one peer at a time. A block which doesn't arrive in time is asked for from the next peer.
              */
-            if (topBlock > currentChainHeight)
+            if (topBlock > blockchain.getBlockNumOfBestHeader() && now - lastHeaderRequestTime > HEADER_REQUEST_INTERVAL)
+            {
+                peerNetwork.broadcast("GET_HEADERS " + joinHashes(blockchain.getHeaderLocator()));
+                lastHeaderRequestTime = now;
+            }
+            ArrayList<String> missingBlocks = blockchain.getMissingBlockHashes(MAX_BLOCKS_IN_FLIGHT);
+            requestedBlocks.keySet().retainAll(missingBlocks);
+            for (String hash : missingBlocks)
+            {
+                Long requestedTime = requestedBlocks.get(hash);
+                if (peerNetwork.peerThreads.size() > 0 && (requestedTime == null || now - requestedTime > BLOCK_REQUEST_TIMEOUT))
+                {
+                    nextBlockPeer = (nextBlockPeer + 1) % peerNetwork.peerThreads.size();
+                    peerNetwork.peerThreads.get(nextBlockPeer).outputThread.write("GET_BLOCK_HASH " + hash);
+                    requestedBlocks.put(hash, now);
+                }
+            }
+            /*
+             * Current chain is shorter than peer chains, and headers-first sync isn't making progress (peers may not serve headers), so request blocks by number from everyone.
+             * Chain starts counting at 0, so a chain height of 15, for example, means there are 15 blocks, and the top block's index is 14.
+             */
+            if (topBlock > currentChainHeight && now - lastSyncProgressTime > LEGACY_SYNC_DELAY)
             {
                 System.out.println("currentChainHeight: " + currentChainHeight);
                 System.out.println("topBlock: " + topBlock);
@@ -368,7 +585,9 @@ public class MainClass
                         response += "\nLast block hash: " + blockchain.getBlock(blockchain.getBlockNumOfLastBlockOnLongestChain() - 1).blockHash;
                         response += "\nDifficulty: " + blockchain.getNextDifficultyForLongestChain();
                         response += "\nMain address: " + addressManager.getDefaultAddress();
-                        response += "\nMain address balance: " + blockchain.getAddressBalance(addressManager.getDefaultAddress());
+                        LedgerView ledgerView = blockchain.getLedgerView();
+                        response += "\nLedger block: " + ledgerView.lastBlockNum;
+                        response += "\nMain address balance: " + ledgerView.getBalance(addressManager.getDefaultAddress());
                         rpcAgent.rpcThreads.get(i).response = response;
                     }
                     else if (parts[0].equals("send"))
@@ -410,32 +629,125 @@ public class MainClass
                     {
                         rpcAgent.rpcThreads.get(i).request = null;
                         
-                        try
+                        // Validated like any block from the network, and broadcast once it has been added
+                        blockValidator.submit(parts[1]);
+                        rpcAgent.rpcThreads.get(i).response = "Successfully submitted block!";
+                    }
+                    else if (parts[0].equals("gethistory"))
+                    {
+                        if (parts.length > 1)
                         {
-                        	Block block = new Block(parts[1]);
-                        	blockchain.addBlockAndSave(block, false);
-                        	peerNetwork.broadcast("BLOCK " + parts[1]);
-                            rpcAgent.rpcThreads.get(i).response = "Successfully submitted block!";
-                        } catch (Exception e)
+                            // gethistory <address> [start] [count] returns one page of the history, oldest first
+                            int start = 0;
+                            int count = Integer.MAX_VALUE;
+                            try
+                            {
+                                if (parts.length > 2)
+                                {
+                                    start = Integer.parseInt(parts[2]);
+                                }
+                                if (parts.length > 3)
+                                {
+                                    count = Integer.parseInt(parts[3]);
+                                }
+                            } catch (NumberFormatException e)
+                            {
+                                start = -1;
+                            }
+                            if (start < 0 || count < 0)
+                            {
+                                rpcAgent.rpcThreads.get(i).response = "gethistory <address> [start] [count]";
+                            }
+                            else
+                            {
+                                ArrayList<Transaction> pageTransactions = blockchain.getTransactionsInvolvingAddress(parts[1], start, count);
+                                StringBuilder allTransactionsFlat = new StringBuilder();
+                                for (int j = 0; j < pageTransactions.size(); j++)
+                                {
+                                    allTransactionsFlat.append(pageTransactions.get(j).getTransactionSummary().trim()).append("\n");
+                                }
+                                rpcAgent.rpcThreads.get(i).response = allTransactionsFlat.toString();
+                            }
+                        }
+                        else
                         {
-                        	System.err.println("A block was submitted but invalid: " + parts[1]);
+                            rpcAgent.rpcThreads.get(i).response = "gethistory <address> [start] [count]";
                         }
                     }
-                    else if (parts[0].equals("gethistory"))
+                    else if (parts[0].equals("gettransaction"))
+                    {
+                        if (parts.length > 1)
+                        {
+                            Blockchain.TransactionLocation location = blockchain.getTransactionById(parts[1].toUpperCase());
+                            if (location == null)
+                            {
+                                rpcAgent.rpcThreads.get(i).response = "Transaction not found.";
+                            }
+                            else
+                            {
+                                String response = "Transaction: " + location.transaction.getFlatTransaction();
+                                response += "\nSummary: " + location.transaction.getTransactionSummary().trim();
+                                response += "\nBlock hash: " + location.blockHash;
+                                response += "\nBlock: " + location.blockNum;
+                                response += "\nIndex: " + location.index;
+                                response += "\nConfirmations: " + location.confirmations;
+                                rpcAgent.rpcThreads.get(i).response = response;
+                            }
+                        }
+                        else
+                        {
+                            rpcAgent.rpcThreads.get(i).response = "gettransaction <txid>";
+                        }
+                    }
+                    else if (parts[0].equals("getconfirmations"))
+                    {
+                        if (parts.length > 1)
+                        {
+                            rpcAgent.rpcThreads.get(i).response = "" + blockchain.getConfirmations(parts[1].toUpperCase());
+                        }
+                        else
+                        {
+                            rpcAgent.rpcThreads.get(i).response = "getconfirmations <txid>";
+                        }
+                    }
+                    else if (parts[0].equals("getbalanceproof"))
                     {
                         if (parts.length > 1)
                         {
-                            ArrayList<Transaction> allTransactions = blockchain.getAllTransactionsInvolvingAddress(parts[1]);
-                            String allTransactionsFlat = "";
-                            for (int j = 0; j < allTransactions.size(); j++)
+                            LedgerCommitment.Proof proof = blockchain.getBalanceProof(parts[1]);
+                            if (proof == null)
                             {
-                                allTransactionsFlat += allTransactions.get(j).getTransactionSummary().trim() + "\n";
+                                rpcAgent.rpcThreads.get(i).response = "The ledger commitment is not kept; start the node with -ledgercommitment.";
+                            }
+                            else
+                            {
+                                StringBuilder response = new StringBuilder();
+                                response.append("Root: ").append(DatatypeConverter.printHexBinary(proof.root));
+                                response.append("\nAddress: ").append(proof.address);
+                                response.append("\nBalance: ").append(blockchain.getAddressBalance(proof.address));
+                                if (proof.included)
+                                {
+                                    response.append("\nLeaf: ").append(proof.line);
+                                }
+                                else if (proof.otherPath != null)
+                                {
+                                    response.append("\nNot listed; the path ends at another leaf: ").append(DatatypeConverter.printHexBinary(proof.otherPath)).append(' ').append(DatatypeConverter.printHexBinary(proof.otherValue));
+                                }
+                                else
+                                {
+                                    response.append("\nNot listed; the path ends at an empty subtree");
+                                }
+                                response.append("\nSiblings:");
+                                for (byte[] sibling : proof.siblings)
+                                {
+                                    response.append(' ').append(DatatypeConverter.printHexBinary(sibling));
+                                }
+                                rpcAgent.rpcThreads.get(i).response = response.toString();
                             }
-                            rpcAgent.rpcThreads.get(i).response = allTransactionsFlat;
                         }
                         else
                         {
-                            rpcAgent.rpcThreads.get(i).response = "gethistory <address>";
+                            rpcAgent.rpcThreads.get(i).response = "getbalanceproof <address>";
                         }
                     }
                     else if (parts[0].equals("getpending"))
@@ -480,6 +792,26 @@ public class MainClass
         }
 	}
 	
+    /**
+     * Joins block hashes with commas, for sending as a single message part.
+     * 
+     * @param hashes The hashes to join
+     * @return String The comma-separated hashes
+     */
+    private static String joinHashes(ArrayList<String> hashes)
+    {
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < hashes.size(); i++)
+        {
+            if (i > 0)
+            {
+                joined.append(",");
+            }
+            joined.append(hashes.get(i));
+        }
+        return joined.toString();
+    }
+    
     public static void launch()
     {
         Console console = System.console(); //Get a system console object
@@ -0,0 +1,567 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps every address's state in an open-addressing hash table inside a memory-mapped file, so the ledger takes almost no
+ * heap however many addresses it holds. Each address has a fixed-width slot holding the address's bytes, its balance, its
+ * order and its signature count; collisions are resolved by linear probing, and removal shifts later slots back instead of
+ * leaving markers. Once the table is MAX_LOAD full, a table twice the size is built after it in the same file and then moved
+ * to the front, so the table always starts right after the header, and the file is cut back to the end of the table.
+ * Systems which can't cut a file while it is mapped have it cut the next time it is opened.
+ *
+ * The listed slots are also kept sorted by order in a ListedAddressIndex, built from the table the first time it is needed
+ * and kept up to date as entries change and move between slots.
+ *
+ * The file survives between runs. save() forces the table to disk and records the ledger log record it matches in the
+ * header; the first change afterwards clears that record again (and forces the header) before touching any slot, so a
+ * table changed by a run which then crashed is never trusted.
+ */
+public class MappedAccountStore implements AccountStore
+{
+	public static final int MAX_ADDRESS_LENGTH = 38;
+
+	// Written at the start of the file
+	private static final byte[] MAGIC = {'S', 'G', 'X', 'A'};
+	private static final int VERSION = 1;
+
+	// Header: magic, version, capacity, count, table offset, saved log sequence and saved last block number
+	private static final int HEADER_SIZE = 64;
+	private static final int VERSION_FIELD = 4;
+	private static final int CAPACITY_FIELD = 8;
+	private static final int COUNT_FIELD = 12;
+	private static final int TABLE_OFFSET_FIELD = 16;
+	private static final int SAVED_SEQUENCE_FIELD = 24;
+	private static final int SAVED_BLOCK_NUM_FIELD = 32;
+
+	// Slot: used flag, address length, address, balance, order, signature count and the address's hash
+	private static final int SLOT_SIZE = 64;
+	private static final int USED_FIELD = 0;
+	private static final int LENGTH_FIELD = 1;
+	private static final int ADDRESS_FIELD = 2;
+	private static final int BALANCE_FIELD = 40;
+	private static final int ORDER_FIELD = 48;
+	private static final int SIGNATURE_COUNT_FIELD = 56;
+	private static final int HASH_FIELD = 60;
+
+	private static final int INITIAL_CAPACITY = 1024;
+	// The largest table which fits in one mapping
+	private static final int SLOT_BITS = 24;
+	private static final int MAX_CAPACITY = 1 << SLOT_BITS;
+	// The fraction of slots in use at which the table is doubled
+	private static final double MAX_LOAD = 0.7;
+
+	private File file;
+	private FileChannel channel;
+	private MappedByteBuffer header;
+	private MappedByteBuffer table;
+	private int capacity;
+	private int count;
+	private long tableOffset;
+
+	// Whether the header currently marks the contents as saved
+	private boolean saved;
+
+	// The listed slots in order, or null until first needed
+	private ListedAddressIndex listed = null;
+
+	/**
+	 * Opens the table in the provided file, creating it if the file doesn't exist or isn't a table.
+	 *
+	 * @param path The table file
+	 */
+	public MappedAccountStore(String path) throws IOException
+	{
+		this.file = new File(path);
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size();
+
+		// The header is read before anything is mapped, so the file can still be cut
+		ByteBuffer fields = ByteBuffer.allocate(HEADER_SIZE);
+		int read = 0;
+		while (fields.hasRemaining() && read >= 0)
+		{
+			read = channel.read(fields, fields.position());
+		}
+		byte[] magic = new byte[MAGIC.length];
+		fields.position(0);
+		fields.get(magic);
+		capacity = fields.getInt(CAPACITY_FIELD);
+		count = fields.getInt(COUNT_FIELD);
+		tableOffset = fields.getLong(TABLE_OFFSET_FIELD);
+		boolean valid = size >= HEADER_SIZE && Arrays.equals(magic, MAGIC) && fields.getInt(VERSION_FIELD) == VERSION
+				&& capacity >= INITIAL_CAPACITY && capacity <= MAX_CAPACITY && Integer.bitCount(capacity) == 1 && count >= 0 && count < capacity
+				&& tableOffset >= HEADER_SIZE && tableOffset + (long)capacity * SLOT_SIZE <= size;
+		if (valid && size > tableOffset + (long)capacity * SLOT_SIZE)
+		{
+			// Left behind by a table which grew or was cleared
+			channel.truncate(tableOffset + (long)capacity * SLOT_SIZE);
+		}
+		else if (!valid)
+		{
+			channel.truncate(0);
+		}
+		this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+
+		if (valid)
+		{
+			table = channel.map(FileChannel.MapMode.READ_WRITE, tableOffset, (long)capacity * SLOT_SIZE);
+			saved = header.getLong(SAVED_SEQUENCE_FIELD) >= 0;
+		}
+		else
+		{
+			if (size > 0)
+			{
+				System.err.println("The account table " + file + " is not in a known format, and will be rebuilt.");
+			}
+			header.position(0);
+			header.put(MAGIC);
+			header.putInt(VERSION_FIELD, VERSION);
+			saved = true; // Cleared by clear() below
+			clear();
+		}
+	}
+
+	private static int getHash(String address)
+	{
+		int hash = address.hashCode();
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+
+	/**
+	 * @return int The slot holding the address, or -(slot + 1) for the empty slot where it would be added
+	 */
+	private int findSlot(String address, int hash)
+	{
+		int mask = capacity - 1;
+		int slot = hash & mask;
+		while (true)
+		{
+			int base = slot * SLOT_SIZE;
+			if (table.get(base + USED_FIELD) == 0)
+			{
+				return -(slot + 1);
+			}
+			if (table.getInt(base + HASH_FIELD) == hash && matches(base, address))
+			{
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean matches(int base, String address)
+	{
+		int length = table.get(base + LENGTH_FIELD);
+		if (length != address.length())
+		{
+			return false;
+		}
+		for (int i = 0; i < length; i++)
+		{
+			if (table.get(base + ADDRESS_FIELD + i) != (byte)address.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String readAddress(int base)
+	{
+		char[] address = new char[table.get(base + LENGTH_FIELD)];
+		for (int i = 0; i < address.length; i++)
+		{
+			address[i] = (char)table.get(base + ADDRESS_FIELD + i);
+		}
+		return new String(address);
+	}
+
+	/**
+	 * @return int The offset of the address's slot in the table, or -1 if it has no entry
+	 */
+	private int findBase(String address)
+	{
+		if (address.length() > MAX_ADDRESS_LENGTH)
+		{
+			return -1;
+		}
+		int slot = findSlot(address, getHash(address));
+		return slot < 0 ? -1 : slot * SLOT_SIZE;
+	}
+
+	public boolean contains(String address)
+	{
+		return findBase(address) >= 0;
+	}
+
+	public long getBalance(String address)
+	{
+		int base = findBase(address);
+		return base < 0 ? 0L : table.getLong(base + BALANCE_FIELD);
+	}
+
+	public int getSignatureCount(String address)
+	{
+		int base = findBase(address);
+		return base < 0 ? -1 : table.getInt(base + SIGNATURE_COUNT_FIELD);
+	}
+
+	public long getOrder(String address)
+	{
+		int base = findBase(address);
+		return base < 0 ? -1 : table.getLong(base + ORDER_FIELD);
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the address is longer than MAX_ADDRESS_LENGTH or isn't ASCII
+	 * @throws IllegalStateException If the table can't grow any further
+	 */
+	public void put(String address, long balance, int signatureCount, long order)
+	{
+		if (address.length() > MAX_ADDRESS_LENGTH)
+		{
+			throw new IllegalArgumentException("Address " + address + " is too long for the account table");
+		}
+		markChanged();
+		int hash = getHash(address);
+		int slot = findSlot(address, hash);
+		long oldOrder = slot < 0 ? -1 : table.getLong(slot * SLOT_SIZE + ORDER_FIELD);
+		if (slot < 0)
+		{
+			for (int i = 0; i < address.length(); i++)
+			{
+				if (address.charAt(i) > 127)
+				{
+					throw new IllegalArgumentException("Address " + address + " can't be stored in the account table");
+				}
+			}
+			if (count + 1 > capacity * MAX_LOAD)
+			{
+				grow();
+				slot = findSlot(address, hash);
+			}
+			slot = -slot - 1;
+			int base = slot * SLOT_SIZE;
+			table.put(base + USED_FIELD, (byte)1);
+			table.put(base + LENGTH_FIELD, (byte)address.length());
+			for (int i = 0; i < address.length(); i++)
+			{
+				table.put(base + ADDRESS_FIELD + i, (byte)address.charAt(i));
+			}
+			table.putInt(base + HASH_FIELD, hash);
+			count++;
+			header.putInt(COUNT_FIELD, count);
+		}
+		int base = slot * SLOT_SIZE;
+		table.putLong(base + BALANCE_FIELD, balance);
+		table.putLong(base + ORDER_FIELD, order);
+		table.putInt(base + SIGNATURE_COUNT_FIELD, signatureCount);
+		if (listed != null && oldOrder != order)
+		{
+			if (oldOrder >= 0)
+			{
+				listed.remove(oldOrder);
+			}
+			if (order >= 0)
+			{
+				listed.add(order, slot);
+			}
+		}
+	}
+
+	public void remove(String address)
+	{
+		int base = findBase(address);
+		if (base >= 0)
+		{
+			markChanged();
+			removeSlot(base / SLOT_SIZE);
+		}
+	}
+
+	/**
+	 * Empties a slot, moving back any later slot of the same probe run which could no longer be found past the gap.
+	 */
+	private void removeSlot(int hole)
+	{
+		if (listed != null)
+		{
+			listed.remove(table.getLong(hole * SLOT_SIZE + ORDER_FIELD));
+		}
+		int mask = capacity - 1;
+		int next = (hole + 1) & mask;
+		while (table.get(next * SLOT_SIZE + USED_FIELD) != 0)
+		{
+			int home = table.getInt(next * SLOT_SIZE + HASH_FIELD) & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask))
+			{
+				copySlot(table, next * SLOT_SIZE, table, hole * SLOT_SIZE);
+				moved(hole);
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		for (int i = 0; i < SLOT_SIZE; i += 8)
+		{
+			table.putLong(hole * SLOT_SIZE + i, 0L);
+		}
+		count--;
+		header.putInt(COUNT_FIELD, count);
+	}
+
+	/**
+	 * Tells the listed index that the entry now in a slot moved there.
+	 */
+	private void moved(int slot)
+	{
+		long order = table.getLong(slot * SLOT_SIZE + ORDER_FIELD);
+		if (listed != null && order >= 0)
+		{
+			listed.move(order, slot);
+		}
+	}
+
+	private static void copySlot(MappedByteBuffer from, int fromBase, MappedByteBuffer to, int toBase)
+	{
+		for (int i = 0; i < SLOT_SIZE; i += 8)
+		{
+			to.putLong(toBase + i, from.getLong(fromBase + i));
+		}
+	}
+
+	/**
+	 * Builds a table twice the size right after the current one and moves every entry into it, then moves the new table to
+	 * the front of the file and cuts off the space the tables took past its end.
+	 */
+	private void grow()
+	{
+		if (capacity >= MAX_CAPACITY)
+		{
+			throw new IllegalStateException("The account table " + file + " is full");
+		}
+		int newCapacity = capacity * 2;
+		long newOffset = tableOffset + (long)capacity * SLOT_SIZE;
+		MappedByteBuffer newTable;
+		MappedByteBuffer movedTable;
+		try
+		{
+			newTable = channel.map(FileChannel.MapMode.READ_WRITE, newOffset, (long)newCapacity * SLOT_SIZE);
+			movedTable = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, (long)newCapacity * SLOT_SIZE);
+		} catch (IOException e)
+		{
+			throw new IllegalStateException("Unable to grow the account table " + file, e);
+		}
+		zero(newTable);
+
+		int mask = newCapacity - 1;
+		for (int slot = 0; slot < capacity; slot++)
+		{
+			int base = slot * SLOT_SIZE;
+			if (table.get(base + USED_FIELD) != 0)
+			{
+				int newSlot = table.getInt(base + HASH_FIELD) & mask;
+				while (newTable.get(newSlot * SLOT_SIZE + USED_FIELD) != 0)
+				{
+					newSlot = (newSlot + 1) & mask;
+				}
+				copySlot(table, base, newTable, newSlot * SLOT_SIZE);
+			}
+		}
+
+		// The front of the file is never ahead of the new table, so copying forwards never overwrites what is still to be copied
+		for (int i = 0; i < movedTable.capacity(); i += 8)
+		{
+			movedTable.putLong(i, newTable.getLong(i));
+		}
+		table = movedTable;
+		capacity = newCapacity;
+		tableOffset = HEADER_SIZE;
+		header.putInt(CAPACITY_FIELD, capacity);
+		header.putLong(TABLE_OFFSET_FIELD, tableOffset);
+		trimFile();
+		for (int slot = 0; slot < capacity; slot++)
+		{
+			if (table.get(slot * SLOT_SIZE + USED_FIELD) != 0)
+			{
+				moved(slot);
+			}
+		}
+	}
+
+	/**
+	 * Cuts the file back to the end of the table. Some systems won't cut a file while older tables are still mapped; it is
+	 * then cut the next time it is opened.
+	 */
+	private void trimFile()
+	{
+		try
+		{
+			channel.truncate(tableOffset + (long)capacity * SLOT_SIZE);
+		} catch (IOException e)
+		{
+			System.err.println("Unable to shrink the account table " + file + " until it is next opened: " + e.getMessage());
+		}
+	}
+
+	private static void zero(MappedByteBuffer buffer)
+	{
+		for (int i = 0; i < buffer.capacity(); i += 8)
+		{
+			buffer.putLong(i, 0L);
+		}
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	public ArrayList<String> getListedAddresses()
+	{
+		if (listed == null)
+		{
+			buildListedIndex();
+		}
+		int[] slots = listed.getLocations();
+		ArrayList<String> addresses = new ArrayList<String>(slots.length);
+		for (int slot : slots)
+		{
+			addresses.add(readAddress(slot * SLOT_SIZE));
+		}
+		return addresses;
+	}
+
+	/**
+	 * Builds the listed index from the table, with one pass over the table and one sort.
+	 */
+	private void buildListedIndex()
+	{
+		// Each listed slot is sorted as its order above its slot number in a single long
+		long[] keys = new long[count];
+		int listedCount = 0;
+		for (int slot = 0; slot < capacity; slot++)
+		{
+			int base = slot * SLOT_SIZE;
+			if (table.get(base + USED_FIELD) != 0)
+			{
+				long order = table.getLong(base + ORDER_FIELD);
+				if (order >= 0)
+				{
+					keys[listedCount++] = (order << SLOT_BITS) | slot;
+				}
+			}
+		}
+		Arrays.sort(keys, 0, listedCount);
+		listed = new ListedAddressIndex();
+		for (int i = 0; i < listedCount; i++)
+		{
+			listed.add(keys[i] >>> SLOT_BITS, (int)(keys[i] & (MAX_CAPACITY - 1)));
+		}
+	}
+
+	public long removeUnlisted()
+	{
+		long nextOrder = 0;
+		int slot = 0;
+		while (slot < capacity)
+		{
+			int base = slot * SLOT_SIZE;
+			if (table.get(base + USED_FIELD) != 0)
+			{
+				long order = table.getLong(base + ORDER_FIELD);
+				if (order < 0)
+				{
+					markChanged();
+					removeSlot(slot);
+					continue; // A later entry may have moved into this slot
+				}
+				nextOrder = Math.max(nextOrder, order + 1);
+			}
+			slot++;
+		}
+		return nextOrder;
+	}
+
+	public void clear()
+	{
+		markChanged();
+		capacity = INITIAL_CAPACITY;
+		count = 0;
+		tableOffset = HEADER_SIZE;
+		try
+		{
+			table = channel.map(FileChannel.MapMode.READ_WRITE, tableOffset, (long)capacity * SLOT_SIZE);
+		} catch (IOException e)
+		{
+			throw new IllegalStateException("Unable to map the account table " + file, e);
+		}
+		zero(table);
+		header.putInt(CAPACITY_FIELD, capacity);
+		header.putInt(COUNT_FIELD, count);
+		header.putLong(TABLE_OFFSET_FIELD, tableOffset);
+		trimFile();
+		listed = new ListedAddressIndex();
+	}
+
+	/**
+	 * Clears the saved log record before the first change after a save, and makes sure that reaches the disk first.
+	 */
+	private void markChanged()
+	{
+		if (saved)
+		{
+			header.putLong(SAVED_SEQUENCE_FIELD, -1L);
+			header.force();
+			saved = false;
+		}
+	}
+
+	public void save(int lastBlockNum, long logSequence)
+	{
+		table.force();
+		header.putInt(CAPACITY_FIELD, capacity);
+		header.putInt(COUNT_FIELD, count);
+		header.putLong(TABLE_OFFSET_FIELD, tableOffset);
+		header.putInt(SAVED_BLOCK_NUM_FIELD, lastBlockNum);
+		header.putLong(SAVED_SEQUENCE_FIELD, logSequence);
+		header.force();
+		saved = true;
+	}
+
+	public long getSavedSequence()
+	{
+		return saved ? header.getLong(SAVED_SEQUENCE_FIELD) : -1;
+	}
+
+	public int getSavedLastBlockNum()
+	{
+		return header.getInt(SAVED_BLOCK_NUM_FIELD);
+	}
+
+	/**
+	 * Closes the file. The table stays mapped until it is no longer referenced.
+	 */
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
@@ -21,8 +21,9 @@ public class MerkleAddressUtility
     private static final String CS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789"; //Character set used in Lamport Private Key Parts
     private static org.apache.commons.codec.binary.Base32 base32 = new org.apache.commons.codec.binary.Base32();
     private static org.apache.commons.codec.binary.Base64 base64 = new org.apache.commons.codec.binary.Base64();
-    private static MessageDigest md;
-    private static MessageDigest md512;
+    // Signatures are verified on several threads at once, so each thread gets its own MessageDigests
+    private static ThreadLocal<MessageDigest> md = Utilities.threadLocalDigest("SHA-256");
+    private static ThreadLocal<MessageDigest> md512 = Utilities.threadLocalDigest("SHA-512");
     
     private static final String ADDRESS_FIRST_LETTER = "S";
     
@@ -35,16 +36,8 @@ public class MerkleAddressUtility
         {
             System.out.println("CRITICAL ERROR: NO SHA1PRNG SUPPORT! EXITING APPLICATION");
         }
-        try
-        {
-            md = MessageDigest.getInstance("SHA-256");
-            md512 = MessageDigest.getInstance("SHA-512");
-        } catch (Exception e)
-        {
-            System.out.println("CRITICAL ERROR: NO SHA-256 SUPPORT! EXITING APPLICATION");
-            e.printStackTrace();
-            System.exit(-1);
-        }
+        md.get();
+        md512.get();
     }
     private static final boolean verboseMode = false;
     
@@ -464,7 +457,7 @@ public class MerkleAddressUtility
     {
         try
         {
-            return base64.encodeAsString(md512.digest(toHash.getBytes("UTF-8")));
+            return base64.encodeAsString(md512.get().digest(toHash.getBytes("UTF-8")));
         } catch (Exception e)
         {
             e.printStackTrace();
@@ -483,7 +476,7 @@ public class MerkleAddressUtility
     {
         try
         {
-            return base64.encodeAsString(md.digest(toHash.getBytes("UTF-8"))).substring(0, 16);
+            return base64.encodeAsString(md.get().digest(toHash.getBytes("UTF-8"))).substring(0, 16);
         } catch (Exception e)
         {
             e.printStackTrace();
@@ -503,7 +496,7 @@ public class MerkleAddressUtility
     {
         try
         {
-            byte[] messageHash = md.digest(toHash.getBytes("UTF-8"));
+            byte[] messageHash = md.get().digest(toHash.getBytes("UTF-8"));
             return new BigInteger(1, messageHash).toString(2);
         } catch (Exception e)
         {
@@ -524,7 +517,7 @@ public class MerkleAddressUtility
     {
         try
         {
-            return base64.encodeAsString(md.digest(toHash.getBytes("UTF-8")));
+            return base64.encodeAsString(md.get().digest(toHash.getBytes("UTF-8")));
         } catch (Exception e)
         {
             e.printStackTrace();
@@ -544,7 +537,7 @@ public class MerkleAddressUtility
     {
         try
         {
-            return base32.encodeAsString(md.digest(toHash.getBytes("UTF-8"))).substring(0, 32);
+            return base32.encodeAsString(md.get().digest(toHash.getBytes("UTF-8"))).substring(0, 32);
         } catch (Exception e)
         {
             e.printStackTrace();
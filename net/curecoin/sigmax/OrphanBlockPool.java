@@ -0,0 +1,182 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Holds blocks whose parent block is not known yet. This happens regularly when catching up with the network, as
+ * blocks requested from several peers arrive out of order.
+ *
+ * Orphans are indexed by the hash of the parent block they are waiting for, so when a block is added to the blockchain
+ * only its direct children have to be looked at. The pool is limited both in size and in the age of the blocks it holds,
+ * so a peer can't fill the heap by sending blocks that will never connect.
+ */
+public class OrphanBlockPool
+{
+	private static final int DEFAULT_MAX_ORPHANS = 1000;
+	private static final long DEFAULT_MAX_ORPHAN_AGE_MS = 1000 * 60 * 20; // 20 minutes
+
+	private int maxOrphans;
+	private long maxOrphanAge;
+
+	// All orphans indexed by their own hash, oldest first
+	private LinkedHashMap<String, Orphan> orphansByHash = new LinkedHashMap<String, Orphan>();
+	// All orphans indexed by the hash of the parent block they are waiting for
+	private HashMap<String, ArrayList<Orphan>> orphansByParent = new HashMap<String, ArrayList<Orphan>>();
+
+	/**
+	 * An orphaned block, along with when it arrived, whether (and where) it was read from the blockchain file, and whether its
+	 * signatures were verified before it arrived.
+	 */
+	public static class Orphan
+	{
+		public final Block block;
+		public final boolean fromBlockchainFile;
+		public final BlockStore.Location location;
+		public final boolean signaturesVerified;
+		public final long receivedTime;
+
+		public Orphan(Block block, boolean fromBlockchainFile, BlockStore.Location location, boolean signaturesVerified, long receivedTime)
+		{
+			this.block = block;
+			this.fromBlockchainFile = fromBlockchainFile;
+			this.location = location;
+			this.signaturesVerified = signaturesVerified;
+			this.receivedTime = receivedTime;
+		}
+	}
+
+	public OrphanBlockPool()
+	{
+		this(DEFAULT_MAX_ORPHANS, DEFAULT_MAX_ORPHAN_AGE_MS);
+	}
+
+	/**
+	 * @param maxOrphans The maximum number of orphans held at once
+	 * @param maxOrphanAge The number of milliseconds an orphan is held before it is discarded
+	 */
+	public OrphanBlockPool(int maxOrphans, long maxOrphanAge)
+	{
+		this.maxOrphans = maxOrphans;
+		this.maxOrphanAge = maxOrphanAge;
+	}
+
+	/**
+	 * Adds a block to the pool. If the pool is full, the oldest orphan is discarded to make room.
+	 *
+	 * @param block The block whose parent is not known
+	 * @param fromBlockchainFile Whether this block already exists in the blockchain file
+	 * @param location Where the block is kept in the block store, or null if unknown
+	 * @param signaturesVerified Whether the block's signatures were verified; if not, they are verified once it connects
+	 * @return boolean Whether the block was added; false if it was already in the pool
+	 */
+	public boolean addOrphan(Block block, boolean fromBlockchainFile, BlockStore.Location location, boolean signaturesVerified)
+	{
+		if (orphansByHash.containsKey(block.blockHash))
+		{
+			return false;
+		}
+
+		long now = System.currentTimeMillis();
+		removeExpiredOrphans(now);
+		while (orphansByHash.size() >= maxOrphans)
+		{
+			removeOrphan(orphansByHash.values().iterator().next());
+		}
+
+		Orphan orphan = new Orphan(block, fromBlockchainFile, location, signaturesVerified, now);
+		orphansByHash.put(block.blockHash, orphan);
+		ArrayList<Orphan> siblings = orphansByParent.get(block.previousBlockHash);
+		if (siblings == null)
+		{
+			siblings = new ArrayList<Orphan>();
+			orphansByParent.put(block.previousBlockHash, siblings);
+		}
+		siblings.add(orphan);
+		return true;
+	}
+
+	/**
+	 * Removes and returns all orphans which are waiting for the block with the provided hash.
+	 *
+	 * @param parentHash Hash of the block which was just added to the blockchain
+	 * @return ArrayList<Orphan> The orphans which are children of the block, empty if there are none
+	 */
+	public ArrayList<Orphan> takeChildrenOf(String parentHash)
+	{
+		ArrayList<Orphan> children = orphansByParent.remove(parentHash);
+		if (children == null)
+		{
+			return new ArrayList<Orphan>();
+		}
+		for (Orphan child : children)
+		{
+			orphansByHash.remove(child.block.blockHash);
+		}
+		return children;
+	}
+
+	/**
+	 * @param blockHash Hash of the block to look for
+	 * @return boolean Whether a block with the provided hash is waiting in the pool
+	 */
+	public boolean containsOrphan(String blockHash)
+	{
+		return orphansByHash.containsKey(blockHash);
+	}
+
+	public int size()
+	{
+		return orphansByHash.size();
+	}
+
+	/**
+	 * Discards all orphans older than the maximum orphan age. Orphans are held oldest first, so this stops at the
+	 * first orphan which is young enough.
+	 *
+	 * @param now The current time
+	 */
+	private void removeExpiredOrphans(long now)
+	{
+		Iterator<Orphan> iterator = orphansByHash.values().iterator();
+		while (iterator.hasNext())
+		{
+			Orphan orphan = iterator.next();
+			if (now - orphan.receivedTime <= maxOrphanAge)
+			{
+				break;
+			}
+			iterator.remove();
+			removeFromParentIndex(orphan);
+		}
+	}
+
+	private void removeOrphan(Orphan orphan)
+	{
+		orphansByHash.remove(orphan.block.blockHash);
+		removeFromParentIndex(orphan);
+	}
+
+	private void removeFromParentIndex(Orphan orphan)
+	{
+		ArrayList<Orphan> siblings = orphansByParent.get(orphan.block.previousBlockHash);
+		if (siblings != null)
+		{
+			siblings.remove(orphan);
+			if (siblings.size() == 0)
+			{
+				orphansByParent.remove(orphan.block.previousBlockHash);
+			}
+		}
+	}
+}
@@ -24,7 +24,7 @@ public class OutputThread extends Thread
 
     //Private to mirror InputThread's structure. For OOP model, it makes more sense for a method to simulate 'writing' data (even though it is delayed until the thread writes the data). 
 
-    private ArrayList<String> outputBuffer;
+    private ArrayList<String> outputBuffer = new ArrayList<String>();
     private boolean shouldContinue = true;
 
     /**
@@ -42,7 +42,6 @@ public class OutputThread extends Thread
     {
         try
         {
-            outputBuffer = new ArrayList<String>();
             PrintWriter out = new PrintWriter(socket.getOutputStream(),true);
             while (shouldContinue)
             {
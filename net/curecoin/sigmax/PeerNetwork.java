@@ -93,6 +93,19 @@ public class PeerNetwork extends Thread
         }
     }
     
+    /**
+     * Announces a block to all peers, each in the best format it supports.
+     * 
+     * @param rawBlock The raw text block to broadcast
+     */
+    public void broadcastBlock(String rawBlock)
+    {
+        for (int i = 0; i < peerThreads.size(); i++)
+        {
+            peerThreads.get(i).sendBlock(rawBlock);
+        }
+    }
+    
     /**
      * Announces the same message to all peers except the ignored one simultaneously. Useful when re-broadcasting messages. 
      * Peer ignored as it's the peer that sent you info. 
@@ -10,6 +10,8 @@ package net.curecoin.sigmax;
 
 import java.net.*;
 
+import org.apache.commons.codec.binary.Base64;
+
 /**
  * Class handles all networking after a socket is accepted. Delegates work into two separate threads,
  * one for incoming data, and one for outgoing data, so data in one direction doesn't block data in
@@ -20,6 +22,13 @@ public class PeerThread extends Thread
     private Socket socket;
     public InputThread inputThread;
     public OutputThread outputThread;
+    
+    //Set once the peer announces that it accepts blocks in the compact encoding (CBLOCK messages)
+    public volatile boolean compactBlocks = false;
+    //Whether this node's own capabilities have been announced to the peer
+    public boolean sentCapabilities = false;
+    
+    private static Base64 base64 = new Base64();
     /**
      * Constructor sets socket
      * 
@@ -59,4 +68,21 @@ public class PeerThread extends Thread
             outputThread.write(data);
         }
     }
+    
+    /**
+     * Sends a block to the peer, in the compact encoding if the peer supports it, and as text otherwise.
+     * 
+     * @param rawBlock The raw text block to send
+     */
+    public void sendBlock(String rawBlock)
+    {
+        if (compactBlocks)
+        {
+            send("CBLOCK " + base64.encodeAsString(BlockCodec.encode(rawBlock)));
+        }
+        else
+        {
+            send("BLOCK " + rawBlock);
+        }
+    }
 }
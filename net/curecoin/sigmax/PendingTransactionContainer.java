@@ -20,8 +20,12 @@ public class PendingTransactionContainer
     public ArrayList<Transaction> pendingTransactions;
     public Blockchain blockchain;
 
-    //ArrayList holding objects that pair addresses with their pending transaction amounts, so transactions above an account's spendable balance are rejected.
-    public ArrayList<Pair<String, Long>> accountBalanceDeltaTables;
+    //The same transactions as pendingTransactions, for finding duplicates without comparing against every pending transaction
+    private HashSet<Transaction> pendingTransactionSet;
+
+    //The amount each address is sending in pending transactions, indexed by the address's ID, so transactions above an account's spendable balance are rejected.
+    private AddressTable pendingAddresses;
+    private long[] pendingOutgoingAmounts;
     /**
      * Constructor for PendingTransactionContainer sets up required ArrayList for holding transactions. The database manager object is passed in, for checking balances
      * when a transaction is being added.
@@ -30,7 +34,9 @@ public class PendingTransactionContainer
     {
     	this.blockchain = blockchain;
         this.pendingTransactions = new ArrayList<>();
-        this.accountBalanceDeltaTables = new ArrayList<>();
+        this.pendingTransactionSet = new HashSet<>();
+        this.pendingAddresses = new AddressTable();
+        this.pendingOutgoingAmounts = new long[64];
     }
 
     /**
@@ -47,43 +53,33 @@ public class PendingTransactionContainer
     {
         try
         {
-            for (int i = 0; i < pendingTransactions.size(); i++)
+            if (pendingTransactionSet.contains(transaction))
             {
-                if (pendingTransactions.get(i).equals(transaction))
-                {
-                    return false;
-                }
+                return false;
             }
             
             //We need to check to make sure the input address isn't sending coins they don't own.
             String inputAddress = transaction.getSourceAddress();
             long inputAmount = transaction.getSourceAmount();
             //Check for the outstanding outgoing amount for this address
-            long outstandingOutgoingAmount = 0L;
-            int indexOfDelta = -1;
-            for (int i = 0; i < accountBalanceDeltaTables.size(); i++)
-            {
-                if (accountBalanceDeltaTables.get(i).getFirst().equals(inputAddress))
-                {
-                    outstandingOutgoingAmount = accountBalanceDeltaTables.get(i).getSecond();
-                    indexOfDelta = i;
-                    break;
-                }
-            }
+            int pendingId = pendingAddresses.getId(inputAddress);
+            long outstandingOutgoingAmount = pendingId >= 0 ? pendingOutgoingAmounts[pendingId] : 0L;
             long previousBalance = blockchain.getAddressBalance(inputAddress);
             if (previousBalance < inputAmount + outstandingOutgoingAmount)
             {
                 System.out.println("Account " + inputAddress + " tried to spend " + inputAmount + " but only had " + (previousBalance - outstandingOutgoingAmount) + " coins.");
                 return false; //Account does not have the coins to spend!
             }
-            if (indexOfDelta >= 0)
+            if (pendingId < 0)
             {
-                accountBalanceDeltaTables.get(indexOfDelta).setSecond(accountBalanceDeltaTables.get(indexOfDelta).getSecond() + inputAmount);
-            }
-            else
-            {
-                accountBalanceDeltaTables.add(new Pair<String, Long>(inputAddress, inputAmount)); //No existing entry in the pending delta tables, so we create an ew one
+                pendingId = pendingAddresses.intern(inputAddress); //No pending amount for this address yet, so it gets an ID
+                if (pendingId >= pendingOutgoingAmounts.length)
+                {
+                    pendingOutgoingAmounts = Arrays.copyOf(pendingOutgoingAmounts, pendingOutgoingAmounts.length * 2);
+                }
             }
+            pendingOutgoingAmounts[pendingId] += inputAmount;
+            pendingTransactionSet.add(transaction);
             pendingTransactions.add(transaction); //Can only get to here if the transaction is valid, accounted for, and the balance checks out. 
             String flat = transaction.getFlatTransaction();
             System.out.println("Added transaction " + flat.substring(0, 20) + "..." + flat.substring(flat.length() - 20, flat.length()));
@@ -102,7 +98,9 @@ public class PendingTransactionContainer
     public void reset()
     {
         pendingTransactions = new ArrayList<>();
-        accountBalanceDeltaTables = new ArrayList<>();
+        pendingTransactionSet = new HashSet<>();
+        pendingAddresses = new AddressTable();
+        pendingOutgoingAmounts = new long[64];
     }
 
     /**
@@ -114,15 +112,12 @@ public class PendingTransactionContainer
      */
     public boolean removeTransaction(Transaction transaction)
     {
-        for (int i = 0; i < pendingTransactions.size(); i++)
+        if (!pendingTransactionSet.remove(transaction))
         {
-            if (pendingTransactions.get(i).equals(transaction))
-            {
-                pendingTransactions.remove(i);
-                return true;
-            }
+            return false; //Transaction was not found in pending transaction pool
         }
-        return false; //Transaction was not found in pending transaction pool
+        pendingTransactions.remove(transaction);
+        return true;
     }
 
     /**
@@ -180,11 +175,11 @@ public class PendingTransactionContainer
                     {
                         totalChange -= transaction.getSourceAmount();
                     }
-                    for (Pair<String, Long> output : transaction.getOutputs())
+                    for (int j = 0; j < transaction.getOutputCount(); j++)
                     {
-                        if (output.getFirst().equals(address))
+                        if (transaction.getOutputAddress(j).equals(address))
                         {
-                            totalChange += output.getSecond();
+                            totalChange += transaction.getOutputAmount(j);
                         }
                     }
                 }
@@ -54,7 +54,10 @@ public class RPCThread extends Thread
                     out.println("getbalance <address>");
                     out.println("submittx <rawtx>");
                     out.println("submitblock <block>");
-                    out.println("gethistory <address>");
+                    out.println("gethistory <address> [start] [count]");
+                    out.println("gettransaction <txid>");
+                    out.println("getconfirmations <txid>");
+                    out.println("getbalanceproof <address>");
                     out.println("");
                 }
                 else
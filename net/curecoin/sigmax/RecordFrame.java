@@ -0,0 +1,178 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The record framing shared by the blockchain files, the ledger log and the chain indexes. Each record is the length of its
+ * payload and the payload's CRC32, both as big-endian ints, followed by the payload itself. A record which was only partly
+ * written, or which was damaged afterwards, is recognized by its length or checksum.
+ */
+final class RecordFrame
+{
+	// The length and the checksum of a record
+	static final int HEADER_SIZE = 8;
+
+	// Payloads larger than this can only be the result of a damaged length
+	static final int MAX_PAYLOAD_SIZE = 256 * 1024 * 1024;
+
+	private RecordFrame()
+	{
+	}
+
+	/**
+	 * @return long The CRC32 of a payload, as held in its frame
+	 */
+	static long checksum(byte[] payload)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return crc.getValue();
+	}
+
+	/**
+	 * @return int The payload length held in a record's header
+	 */
+	static int getLength(byte[] header)
+	{
+		return ByteBuffer.wrap(header).getInt(0);
+	}
+
+	/**
+	 * @return long The payload checksum held in a record's header
+	 */
+	static long getChecksum(byte[] header)
+	{
+		return ByteBuffer.wrap(header).getInt(4) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * @return byte[] The whole record for a payload, header included
+	 */
+	static byte[] frame(byte[] payload)
+	{
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		frame.putInt(payload.length);
+		frame.putInt((int)checksum(payload));
+		frame.put(payload);
+		return frame.array();
+	}
+
+	/**
+	 * @return int The number of bytes written
+	 */
+	static int write(OutputStream out, byte[] payload) throws IOException
+	{
+		byte[] record = frame(payload);
+		out.write(record);
+		return record.length;
+	}
+
+	/**
+	 * Writes a record at the end of a file, with a single write where the channel allows it.
+	 *
+	 * @return long Where the record starts in the file
+	 */
+	static long append(FileChannel target, byte[] payload) throws IOException
+	{
+		ByteBuffer frame = ByteBuffer.wrap(frame(payload));
+		long end = target.size();
+		while (frame.hasRemaining())
+		{
+			target.write(frame, end + frame.position());
+		}
+		return end;
+	}
+
+	/**
+	 * @param what The file being read, for error messages (for example, "ledger log")
+	 * @return byte[] The next record's payload, or null at the end of the stream
+	 * @throws IOException When the stream ends inside a record, or a record is damaged
+	 */
+	static byte[] read(InputStream in, String what) throws IOException
+	{
+		byte[] header = new byte[HEADER_SIZE];
+		int read = readFully(in, header);
+		if (read == 0)
+		{
+			return null;
+		}
+		if (read < header.length)
+		{
+			throw new EOFException("The " + what + " ends inside a record");
+		}
+		byte[] payload = new byte[checkLength(getLength(header), what)];
+		if (readFully(in, payload) < payload.length)
+		{
+			throw new EOFException("The " + what + " ends inside a record");
+		}
+		return checkPayload(payload, getChecksum(header), what);
+	}
+
+	/**
+	 * @param what The file being read, for error messages
+	 * @return byte[] The payload of the record at an offset
+	 * @throws IOException When the file ends inside the record, or the record is damaged
+	 */
+	static byte[] read(FileChannel source, long offset, String what) throws IOException
+	{
+		byte[] header = new byte[HEADER_SIZE];
+		readFully(source, ByteBuffer.wrap(header), offset, what);
+		byte[] payload = new byte[checkLength(getLength(header), what)];
+		readFully(source, ByteBuffer.wrap(payload), offset + HEADER_SIZE, what);
+		return checkPayload(payload, getChecksum(header), what);
+	}
+
+	private static int checkLength(int length, String what) throws IOException
+	{
+		if (length <= 0 || length > MAX_PAYLOAD_SIZE)
+		{
+			throw new IOException("A record in the " + what + " has an impossible length of " + length);
+		}
+		return length;
+	}
+
+	private static byte[] checkPayload(byte[] payload, long expectedChecksum, String what) throws IOException
+	{
+		if (checksum(payload) != expectedChecksum)
+		{
+			throw new IOException("A record in the " + what + " does not match its checksum");
+		}
+		return payload;
+	}
+
+	private static void readFully(FileChannel source, ByteBuffer buffer, long offset, String what) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (source.read(buffer, offset + buffer.position()) < 0)
+			{
+				throw new EOFException("The " + what + " ends inside a record");
+			}
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buffer) throws IOException
+	{
+		int read = 0;
+		int count;
+		while (read < buffer.length && (count = in.read(buffer, read, buffer.length - read)) != -1)
+		{
+			read += count;
+		}
+		return read;
+	}
+}
@@ -8,8 +8,6 @@ package net.curecoin.sigmax;
  * Supports Java 1.7+
  */
 
-import java.util.ArrayList;
-
 import net.curecoin.sigmax.exceptions.TransactionContentException;
 import net.curecoin.sigmax.exceptions.TransactionFormatException;
 
@@ -32,38 +30,72 @@ public class Transaction
 	private String sourceAddress;
 	private long sourceAmount;
 	
-	private ArrayList<Pair<String, Long>> outputs = new ArrayList<>();
+	// The address and amount of each output, in order
+	private String[] outputAddresses;
+	private long[] outputAmounts;
 	
 	private String signature;
 	private long signatureIndex;
 	
 	private long transactionFee;
 	
+	// The part of the transaction covered by the signature
+	private String signedMessage;
+	
+	// The canonical flat form of the transaction, built once it has been parsed
+	private String flatTransaction;
+	
+	// SHA256 of the flat transaction, computed the first time it is needed
+	private volatile String transactionId;
+	
 	public Transaction(String transactionData) throws TransactionFormatException, TransactionContentException
 	{
-		String[] parts = transactionData.split(";");
-		if (parts.length < 3) // Need input address + amount, at least one output address + amount, and a signature
+		this(transactionData, true);
+	}
+	
+	/**
+	 * Parses a transaction, optionally leaving the expensive signature check for a later call to hasValidSignature().
+	 * Formatting and content are always checked.
+	 * 
+	 * @param transactionData The flat transaction
+	 * @param verifySignature Whether to verify the signature now, throwing a TransactionContentException if it is invalid
+	 * @throws TransactionFormatException When the transaction is incorrectly formatted
+	 * @throws TransactionContentException When the transaction contains impossible content
+	 */
+	public Transaction(String transactionData, boolean verifySignature) throws TransactionFormatException, TransactionContentException
+	{
+		this(transactionData, 0, transactionData.length(), verifySignature);
+	}
+	
+	/**
+	 * Parses a transaction held in part of a larger String, such as a flat block, without copying it out first.
+	 * 
+	 * @param data The String holding the flat transaction
+	 * @param start Offset of the first character of the transaction
+	 * @param end Offset just past the last character of the transaction
+	 * @param verifySignature Whether to verify the signature now, throwing a TransactionContentException if it is invalid
+	 * @throws TransactionFormatException When the transaction is incorrectly formatted
+	 * @throws TransactionContentException When the transaction contains impossible content
+	 */
+	public Transaction(String data, int start, int end, boolean verifySignature) throws TransactionFormatException, TransactionContentException
+	{
+		int[] parts = FlatParser.split(data, start, end, ';');
+		int partCount = parts.length / 2;
+		if (partCount < 3) // Need input address + amount, at least one output address + amount, and a signature
 		{
 			throwFormatException();
 		}
 		
 		long outputAmount = 0;
+		outputAddresses = new String[partCount - 2];
+		outputAmounts = new long[partCount - 2];
+		int outputCount = 0;
 
 		boolean processedSource = false;
 
-		String message = "";
-		for (int i = 0; i < parts.length - 1; i++)
+		for (int i = 0; i < partCount - 1; i++)
 		{
-			if (i == 0)
-			{
-				message += parts[i];
-			}
-			else
-			{
-				message += ";" + parts[i];
-			}
-			
-			String[] subparts = parts[i].split(",");
+			String[] subparts = FlatParser.splitToStrings(data, parts[i * 2], parts[i * 2 + 1], ',');
 			if (subparts.length != 2)
 			{
 				throwFormatException();
@@ -79,10 +111,6 @@ public class Transaction
 				{
 					throwFormatException();
 				}
-				if (!MerkleAddressUtility.isAddressFormattedCorrectly(subparts[0]))
-				{
-					throw new TransactionContentException("The address \"" + subparts[0] + "\" is not valid!");
-				}
 				sourceAmount = Long.parseLong(subparts[1]);
 				sourceAddress = subparts[0];
 				processedSource = true;
@@ -101,11 +129,13 @@ public class Transaction
 				}
 				
 				outputAmount += localOutput;
-				outputs.add(new Pair<>(subparts[0], localOutput));
+				outputAddresses[outputCount] = subparts[0];
+				outputAmounts[outputCount] = localOutput;
+				outputCount++;
 			}
 		}
 		
-		String[] signature = parts[parts.length - 1].split(",");
+		String[] signature = FlatParser.splitToStrings(data, parts[partCount * 2 - 2], parts[partCount * 2 - 1], ',');
 
 		if (sourceAmount < outputAmount)
 		{
@@ -121,14 +151,26 @@ public class Transaction
 		
 		this.signature = signature[0] + "," + signature[1];
 		this.signatureIndex = Long.parseLong(signature[2]);
-		System.out.println("Signature: " + this.signature);
-		System.out.println("Signature index: " + this.signatureIndex);
-		if (!MerkleAddressUtility.verifyMerkleSignature(message, this.signature, sourceAddress, signatureIndex))
+		// Everything before the signature, separators included
+		this.signedMessage = data.substring(start, parts[partCount * 2 - 3]);
+		this.flatTransaction = buildFlatTransaction(end - start);
+		if (verifySignature && !hasValidSignature())
 		{
-			System.out.println("Message: " + message);
+			System.out.println("Message: " + signedMessage);
 			throw new TransactionContentException("Transaction from " + sourceAddress + " is not accompanied by a valid signature!");
 		}
 	}
+	
+	/**
+	 * Verifies the transaction's Merkle signature against its source address. This is by far the most expensive part of
+	 * validating a transaction, and only depends on the transaction itself, so it is safe to call from any thread.
+	 * 
+	 * @return boolean Whether the transaction was signed by its source address
+	 */
+	public boolean hasValidSignature()
+	{
+		return MerkleAddressUtility.verifyMerkleSignature(signedMessage, signature, sourceAddress, signatureIndex);
+	}
 
 	public String getSourceAddress()
 	{
@@ -140,9 +182,30 @@ public class Transaction
 		return sourceAmount;
 	}
 	
-	public ArrayList<Pair<String, Long>> getOutputs()
+	/**
+	 * @return int The number of outputs
+	 */
+	public int getOutputCount()
+	{
+		return outputAmounts.length;
+	}
+	
+	/**
+	 * @param index The index of an output
+	 * @return String The output's destination address
+	 */
+	public String getOutputAddress(int index)
 	{
-		return outputs;
+		return outputAddresses[index];
+	}
+	
+	/**
+	 * @param index The index of an output
+	 * @return long The output's amount
+	 */
+	public long getOutputAmount(int index)
+	{
+		return outputAmounts[index];
 	}
 	
 	public String getSignature()
@@ -160,15 +223,53 @@ public class Transaction
 		return transactionFee;
 	}
 	
+	/**
+	 * Returns the canonical flat form of this transaction, which is built from the parsed fields rather than copied from the
+	 * input, so two transactions with the same content always have the same flat form.
+	 * 
+	 * @return String The flat transaction
+	 */
 	public String getFlatTransaction()
 	{
-		String flatTransaction = sourceAddress + "," + sourceAmount;
-		for (int i = 0; i < outputs.size(); i++)
+		return flatTransaction;
+	}
+	
+	/**
+	 * Returns the ID of this transaction, the SHA256 hash of its flat form. This is also its leaf in a block's merkle tree.
+	 * 
+	 * @return String The transaction ID
+	 */
+	public String getTransactionId()
+	{
+		String id = transactionId;
+		if (id == null)
 		{
-			flatTransaction+= ";" + outputs.get(i).getFirst() + "," + outputs.get(i).getSecond();
+			id = Utilities.getSHA256(flatTransaction);
+			transactionId = id;
 		}
-		flatTransaction += ";" + signature + "," + signatureIndex;
-		return flatTransaction;
+		return id;
+	}
+	
+	/**
+	 * Appends the flat transaction to a builder, so a whole block can be assembled without copying each transaction separately.
+	 * 
+	 * @param builder The builder to append to
+	 */
+	public void appendFlatTransaction(StringBuilder builder)
+	{
+		builder.append(flatTransaction);
+	}
+	
+	private String buildFlatTransaction(int expectedLength)
+	{
+		StringBuilder builder = new StringBuilder(expectedLength);
+		builder.append(sourceAddress).append(",").append(sourceAmount);
+		for (int i = 0; i < outputAmounts.length; i++)
+		{
+			builder.append(";").append(outputAddresses[i]).append(",").append(outputAmounts[i]);
+		}
+		builder.append(";").append(signature).append(",").append(signatureIndex);
+		return builder.toString();
 	}
 	
 	/**
@@ -183,9 +284,9 @@ public class Transaction
 		{
 			return true;
 		}
-		for (Pair<String, Long> output : outputs)
+		for (String outputAddress : outputAddresses)
 		{
-			if (output.getFirst().equals(address))
+			if (outputAddress.equals(address))
 			{
 				return true;
 			}
@@ -201,25 +302,34 @@ public class Transaction
 	{
 		String transactionSummary = "";
 		transactionSummary += getSourceAmount() + " from " + getSourceAddress() + " sent to: ";
-		for (Pair<String, Long> output : outputs)
+		for (int i = 0; i < outputAmounts.length; i++)
 		{
-			transactionSummary += output.getFirst() + "(" + output.getSecond() + " SigmaX) ";
+			transactionSummary += outputAddresses[i] + "(" + outputAmounts[i] + " SigmaX) ";
 		}
 		return transactionSummary;
 	}
 
     public boolean equals(Object toTest)
     {
+    	if (toTest == this)
+    	{
+    		return true;
+    	}
     	if (toTest instanceof Transaction)
     	{
     		Transaction txToCheck = (Transaction)toTest;
-	    	if (txToCheck.getFlatTransaction().equals(getFlatTransaction()))
+	    	if (txToCheck.flatTransaction.equals(flatTransaction))
 	    	{
 	    		return true;
 	    	}
     	}
     	return false;
     }
+    
+    public int hashCode()
+    {
+    	return flatTransaction.hashCode();
+    }
 	
 	
 	private void throwFormatException() throws TransactionFormatException
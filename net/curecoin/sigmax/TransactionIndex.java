@@ -0,0 +1,127 @@
+package net.curecoin.sigmax;
+
+/*
+ * SigmaX 1.0.0b1 Source Code
+ * Copyright (c) 2016 Curecoin Developers
+ * Distributed under MIT License
+ * Requires Apache Commons Library
+ * Supports Java 1.7+
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Indexes the transactions of the longest chain by transaction ID, so a confirmed transaction can be found without reading
+ * any block but its own. If the same transaction appears more than once on the longest chain, the latest of its positions is
+ * the one found, and the ones before it are kept so the transaction is found at the previous one once the latest leaves the
+ * chain.
+ */
+public class TransactionIndex extends ChainIndex<String[]>
+{
+	// The latest position of each transaction: its block height in the upper 32 bits, and its index in the block in the lower 32 bits
+	private HashMap<String, Long> positions = new HashMap<String, Long>();
+	// The earlier positions of the transactions which appear more than once, oldest first
+	private HashMap<String, long[]> earlierPositions = new HashMap<String, long[]>();
+
+	/**
+	 * @param indexFile The path of the index file
+	 */
+	public TransactionIndex(String indexFile)
+	{
+		super(indexFile, "transaction");
+		open();
+	}
+
+	/**
+	 * @param transactionId The ID of the transaction to look up
+	 * @return long The position of the transaction: its block height in the upper 32 bits, and its index in the block in the
+	 *         lower 32 bits. -1 if the transaction isn't on the longest chain.
+	 */
+	public long getPosition(String transactionId)
+	{
+		Long position = positions.get(transactionId);
+		return position == null ? -1 : position;
+	}
+
+	protected String[] buildEntries(ArrayList<Transaction> transactions)
+	{
+		String[] transactionIds = new String[transactions.size()];
+		for (int i = 0; i < transactionIds.length; i++)
+		{
+			transactionIds[i] = transactions.get(i).getTransactionId();
+		}
+		return transactionIds;
+	}
+
+	protected void writeEntries(DataOutputStream out, String[] transactionIds) throws IOException
+	{
+		out.writeInt(transactionIds.length);
+		for (String transactionId : transactionIds)
+		{
+			out.writeUTF(transactionId);
+		}
+	}
+
+	protected String[] readEntries(DataInputStream in) throws IOException
+	{
+		int count = in.readInt();
+		if (count < 0)
+		{
+			throw new IOException("A transaction index record has " + count + " entries");
+		}
+		String[] transactionIds = new String[count];
+		for (int i = 0; i < count; i++)
+		{
+			transactionIds[i] = in.readUTF();
+		}
+		return transactionIds;
+	}
+
+	protected void addEntries(int height, String[] transactionIds)
+	{
+		for (int i = 0; i < transactionIds.length; i++)
+		{
+			Long previous = positions.put(transactionIds[i], ((long)height << 32) | i);
+			if (previous != null)
+			{
+				long[] earlier = earlierPositions.get(transactionIds[i]);
+				earlier = earlier == null ? new long[1] : Arrays.copyOf(earlier, earlier.length + 1);
+				earlier[earlier.length - 1] = previous;
+				earlierPositions.put(transactionIds[i], earlier);
+			}
+		}
+	}
+
+	/**
+	 * Blocks are removed from the highest down, and each block's transactions from the last, so each removed position is the
+	 * latest of its transaction.
+	 */
+	protected void removeEntries(int height, String[] transactionIds)
+	{
+		for (int i = transactionIds.length - 1; i >= 0; i--)
+		{
+			long[] earlier = earlierPositions.remove(transactionIds[i]);
+			if (earlier == null)
+			{
+				positions.remove(transactionIds[i]);
+				continue;
+			}
+			positions.put(transactionIds[i], earlier[earlier.length - 1]);
+			if (earlier.length > 1)
+			{
+				earlierPositions.put(transactionIds[i], Arrays.copyOf(earlier, earlier.length - 1));
+			}
+		}
+	}
+
+	protected void clearEntries()
+	{
+		positions.clear();
+		earlierPositions.clear();
+	}
+}
@@ -19,25 +19,41 @@ import javax.xml.bind.DatatypeConverter;
 public class Utilities 
 {
 
-	private static MessageDigest md;
-	static
+	private static ThreadLocal<MessageDigest> md = threadLocalDigest("SHA-256");
+	
+	/**
+	 * MessageDigest objects can't be shared between threads, and blocks are validated on several threads at once.
+	 * This gives each thread its own MessageDigest for the provided algorithm.
+	 * 
+	 * @param algorithm The digest algorithm, such as "SHA-256"
+	 * @return ThreadLocal<MessageDigest> Holding one MessageDigest per thread
+	 */
+	public static ThreadLocal<MessageDigest> threadLocalDigest(final String algorithm)
 	{
-		try
-		{
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (Exception e)
+		return new ThreadLocal<MessageDigest>()
 		{
-			e.printStackTrace();
-			System.err.println("[CRITICAL] SHA-256 NOT SUPPORTED. EXITING.");
-			System.exit(-1);
-		}
+			@Override
+			protected MessageDigest initialValue()
+			{
+				try
+				{
+					return MessageDigest.getInstance(algorithm);
+				} catch (Exception e)
+				{
+					e.printStackTrace();
+					System.err.println("[CRITICAL] " + algorithm + " NOT SUPPORTED. EXITING.");
+					System.exit(-1);
+					return null; // Make compiler happy.
+				}
+			}
+		};
 	}
 	
 	public static String getSHA256(String input)
 	{
 		try
 		{
-			return DatatypeConverter.printHexBinary(md.digest(input.getBytes("UTF-8")));
+			return DatatypeConverter.printHexBinary(md.get().digest(input.getBytes("UTF-8")));
 		} catch (UnsupportedEncodingException e)
 		{
 			System.err.println("[CRITICAL] UTF-8 ENCODING NOT SUPPORTED. EXITING.");
@@ -103,7 +119,7 @@ public class Utilities
 		String[] currentMerkleLayer = new String[transactions.size()];
 		for (int i = 0; i < transactions.size(); i++)
 		{
-			currentMerkleLayer[i] = getSHA256(transactions.get(i).getFlatTransaction());
+			currentMerkleLayer[i] = transactions.get(i).getTransactionId();
 		}
 		while (currentMerkleLayer.length > 1)
 		{
@@ -132,7 +148,7 @@ public class Utilities
 	
 	
 	private static final long TARGET_GAP_MS = 1000 * 60 * 2; // 2 minutes between blocks
-	private static final BigInteger MINIMUM_DIFFICULTY = new BigInteger("50000000");
+	public static final BigInteger MINIMUM_DIFFICULTY = new BigInteger("50000000");
 	public static BigInteger calculateNextDifficulty(ArrayList<Block> pastBlocks)
 	{
 		if (pastBlocks.size() == 1)
@@ -145,19 +161,33 @@ public class Utilities
 		{
 			difficultySum = difficultySum.add(pastBlocks.get(i).difficulty);
 		}
-		BigInteger averageDifficulty = difficultySum.divide(BigInteger.valueOf(pastBlocks.size()));
 		for (int i = 0; i < actualGaps.length; i++)
 		{
 			actualGaps[i] = pastBlocks.get(i).timestamp - pastBlocks.get(i + 1).timestamp;
 		}
 		long totalWeightedGaps = 0;
-		long totalWeight = 0;
 		for (int i = 0; i < actualGaps.length; i++)
 		{
 			totalWeightedGaps += (actualGaps.length - i) * actualGaps[i]; // Extremely simple weighting, future versions will use ~Gaussian distributions or similar
-			totalWeight += actualGaps.length - i;
 		}
 		
+		return calculateNextDifficulty(difficultySum, pastBlocks.size(), totalWeightedGaps);
+	}
+	
+	/**
+	 * Calculates the target difficulty of the next block from running totals over a window of previous blocks, as kept by DifficultyWindow.
+	 * Gives the same result as calculateNextDifficulty(ArrayList<Block>) for the same blocks.
+	 * @param difficultySum Sum of the difficulties of all blocks in the window
+	 * @param blockCount Number of blocks in the window, at least 2
+	 * @param totalWeightedGaps Sum of the gaps between consecutive blocks, where the most recent gap has a weight of blockCount - 1, down to 1 for the oldest
+	 * @return BigInteger The target difficulty for the next block
+	 */
+	public static BigInteger calculateNextDifficulty(BigInteger difficultySum, int blockCount, long totalWeightedGaps)
+	{
+		BigInteger averageDifficulty = difficultySum.divide(BigInteger.valueOf(blockCount));
+		long gapCount = blockCount - 1;
+		long totalWeight = gapCount * (gapCount + 1) / 2;
+		
 		long averageGap = totalWeightedGaps / totalWeight;
 		double gapDelta = (double)TARGET_GAP_MS / (double)averageGap;
 		BigInteger targetDifficulty = new BigDecimal(averageDifficulty).multiply(new BigDecimal(gapDelta)).toBigInteger();